@@ -0,0 +1,74 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * File system the server writes to during a benchmark, in place of the Kerberized cluster.
+ *
+ * {@code local} is the checksummed Hadoop LocalFileSystem under a temporary directory, mounted as
+ * the fallback of a view file system so the server's absolute paths stay inside it; it is cheap
+ * and measures the gRPC side. {@code minidfs} is a one-DataNode MiniDFSCluster, which adds the
+ * real DFS client, pipeline acks and block checksums.
+ */
+final class BenchmarkFileSystem implements Closeable {
+
+    private final File base;
+    private final MiniDFSCluster cluster;
+    private final Configuration conf;
+
+    BenchmarkFileSystem(String kind) throws IOException {
+        base = Files.createTempDirectory("grpcdemo-" + kind).toFile();
+        switch (kind) {
+            case "local":
+                cluster = null;
+                conf = new Configuration();
+                conf.set("fs.defaultFS", "viewfs://bench/");
+                conf.set("fs.viewfs.mounttable.bench.linkFallback", base.toURI().toString());
+                break;
+            case "minidfs":
+                Configuration clusterConf = new Configuration();
+                cluster = new MiniDFSCluster.Builder(clusterConf, base).numDataNodes(1).build();
+                cluster.waitActive();
+                conf = new Configuration(cluster.getConfiguration(0));
+                conf.set("fs.defaultFS", cluster.getFileSystem().getUri().toString());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown file system " + kind);
+        }
+        // like the server's own configuration, every pooled handle gets its own client
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+    }
+
+    Configuration configuration() {
+        return conf;
+    }
+
+    /**
+     * Delete everything written so far, so long runs do not fill the disk.
+     */
+    void clear() throws IOException {
+        try (FileSystem fs = FileSystem.newInstance(conf)) {
+            for (FileStatus status : fs.listStatus(new Path("/"))) {
+                fs.delete(status.getPath(), true);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        FileUtils.deleteQuietly(base);
+    }
+}
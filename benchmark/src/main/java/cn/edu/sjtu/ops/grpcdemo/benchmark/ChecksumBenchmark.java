@@ -0,0 +1,166 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.Chunk;
+import cn.edu.sjtu.ops.grpcdemo.ChunkVerifier;
+import cn.edu.sjtu.ops.grpcdemo.Crc32c;
+import com.google.protobuf.ByteString;
+import org.apache.hadoop.util.DataChecksum;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server CPU per byte with and without chunk verification.
+ *
+ * One operation is the server side of a {@code fileSizeMb} upload: parse every chunk from its
+ * wire bytes and write it into a sink that does what the HDFS client does per byte (copy into a
+ * 64KB packet, CRC32C per 512 bytes, send the packet over a loopback socket to a thread that drains
+ * it). {@code serverVerified} additionally checks each chunk with a {@link ChunkVerifier}; the
+ * budget is {@code serverVerified >= 0.95 * serverPlain}. The network receive path of gRPC is left
+ * out, which makes the measured overhead an upper bound.
+ * {@code crc32c} is the bare checksum throughput, to see which implementation {@link Crc32c} picked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    @Param({"64"})
+    public int fileSizeMb;
+
+    private byte[][] wire;
+    private ByteString payload;
+    private final Crc32c crc = new Crc32c();
+    private ServerSocketChannel datanode;
+    private PacketOutputStream sink;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[chunkSize];
+        Crc32c c = new Crc32c();
+        wire = new byte[(int) ((long) fileSizeMb * 1024 * 1024 / chunkSize)][];
+        for (int i = 0; i < wire.length; i++) {
+            random.nextBytes(content);
+            ByteString bytes = ByteString.copyFrom(content);
+            wire[i] = Chunk.newBuilder().setContent(bytes).setCrc32C(c.of(bytes)).setHasCrc32C(true)
+                    .build().toByteArray();
+        }
+        payload = ByteString.copyFrom(content);
+
+        datanode = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel out = SocketChannel.open(datanode.getLocalAddress());
+        final SocketChannel in = datanode.accept();
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try {
+                while (in.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // closed by tearDown
+            }
+        }, "datanode-drain");
+        drain.setDaemon(true);
+        drain.start();
+        sink = new PacketOutputStream(out);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.channel.close();
+        datanode.close();
+    }
+
+    @Benchmark
+    public void serverPlain(Blackhole bh) throws IOException {
+        for (byte[] message : wire) {
+            Chunk.parseFrom(message).getContent().writeTo(sink);
+        }
+        bh.consume(sink.sums);
+    }
+
+    @Benchmark
+    public void serverVerified(Blackhole bh) throws IOException {
+        ChunkVerifier verifier = new ChunkVerifier();
+        for (byte[] message : wire) {
+            ByteString content = verifier.verify(Chunk.parseFrom(message));
+            if (content == null) {
+                throw new IllegalStateException(verifier.mismatchStatus().getMessage());
+            }
+            content.writeTo(sink);
+        }
+        bh.consume(sink.sums);
+        bh.consume(verifier.fileCrc());
+    }
+
+    @Benchmark
+    public int crc32c() {
+        return crc.of(payload);
+    }
+
+    /** Stands in for DFSOutputStream: packet copy, chunked CRC32C, socket write. */
+    static final class PacketOutputStream extends OutputStream {
+        private static final int BYTES_PER_CHECKSUM = 512;
+        private final DataChecksum checksum = DataChecksum.newDataChecksum(DataChecksum.Type.CRC32C, BYTES_PER_CHECKSUM);
+        private final byte[] packet = new byte[64 * 1024];
+        private final byte[] sums = new byte[packet.length / BYTES_PER_CHECKSUM * 4];
+        private final SocketChannel channel;
+        private int used = 0;
+
+        PacketOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) {
+            packet[used++] = (byte) b;
+            if (used == packet.length) {
+                flushPacket();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, packet.length - used);
+                System.arraycopy(b, off, packet, used, n);
+                used += n;
+                off += n;
+                len -= n;
+                if (used == packet.length) {
+                    flushPacket();
+                }
+            }
+        }
+
+        private void flushPacket() {
+            checksum.calculateChunkedSums(packet, 0, used, sums, 0);
+            try {
+                for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(sums), ByteBuffer.wrap(packet, 0, used)}) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            used = 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.Chunk;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies and allocations on the chunk path, old (byte[] + copyFrom / toByteArray) versus
+ * new (mapped slices + unsafeWrap / ByteString.writeTo).
+ *
+ * One operation moves the whole {@code fileSizeMb} file, so with {@code -prof gc} the
+ * allocation per GB uploaded is {@code gc.alloc.rate.norm * 1024 / fileSizeMb}.
+ * Heap copies per payload byte: legacy client 2 (read into byte[], ByteString.copyFrom) plus
+ * one more for the short last chunk, mapped client 0; legacy server 1 (toByteArray), writeTo 0.
+ * The copy into the frame buffer stands in for gRPC's framer and is the same on both sides.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkCopyBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    @Param({"64"})
+    public int fileSizeMb;
+
+    private File file;
+    private byte[] frame;
+    private Chunk[] received;
+    private final DiscardOutputStream sink = new DiscardOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("chunk-copy", ".bin");
+        file.deleteOnExit();
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream os = new FileOutputStream(file)) {
+            for (int i = 0; i < fileSizeMb; i++) {
+                os.write(block);
+            }
+        }
+        frame = new byte[chunkSize + 64];
+
+        long size = file.length();
+        received = new Chunk[(int) ((size + chunkSize - 1) / chunkSize)];
+        for (int i = 0; i < received.length; i++) {
+            int n = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+            received[i] = Chunk.newBuilder().setContent(ByteString.copyFrom(block, 0, Math.min(n, block.length))).build();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long clientLegacy() throws IOException {
+        long sent = 0;
+        try (FileInputStream is = new FileInputStream(file)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(chunkSize);
+            byte[] b = new byte[chunkSize];
+            int n;
+            while ((n = is.read(b)) != -1) {
+                Chunk chunk;
+                if (n == chunkSize) {
+                    chunk = Chunk.newBuilder().setContent(ByteString.copyFrom(b)).build();
+                } else {
+                    bos.write(b, 0, n);
+                    chunk = Chunk.newBuilder().setContent(ByteString.copyFrom(bos.toByteArray())).build();
+                }
+                sent += frame(chunk);
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long clientMapped() throws IOException {
+        long sent = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (region.hasRemaining()) {
+                int n = Math.min(chunkSize, region.remaining());
+                ByteBuffer slice = region.slice();
+                slice.limit(n);
+                region.position(region.position() + n);
+                sent += frame(Chunk.newBuilder().setContent(UnsafeByteOperations.unsafeWrap(slice)).build());
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public void serverLegacy(Blackhole bh) throws IOException {
+        for (Chunk chunk : received) {
+            sink.write(chunk.getContent().toByteArray());
+        }
+        bh.consume(sink.count);
+    }
+
+    @Benchmark
+    public void serverWriteTo(Blackhole bh) throws IOException {
+        for (Chunk chunk : received) {
+            chunk.getContent().writeTo(sink);
+        }
+        bh.consume(sink.count);
+    }
+
+    private int frame(Chunk chunk) throws IOException {
+        CodedOutputStream cos = CodedOutputStream.newInstance(frame);
+        chunk.writeTo(cos);
+        return cos.getTotalBytesWritten();
+    }
+
+    /** Stands in for the HDFS output stream. */
+    static final class DiscardOutputStream extends OutputStream {
+        long count;
+        int last;
+
+        @Override
+        public void write(int b) {
+            count++;
+            last = b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            if (len > 0) {
+                last = b[off];
+            }
+        }
+    }
+}
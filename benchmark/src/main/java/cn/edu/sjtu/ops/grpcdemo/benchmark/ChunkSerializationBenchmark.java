@@ -0,0 +1,67 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.Chunk;
+import cn.edu.sjtu.ops.grpcdemo.Crc32c;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@link Chunk} through protobuf, as gRPC's marshaller does it: {@code encode} builds the
+ * message around a wrapped slice and writes it into a frame, {@code decode} parses it back from a
+ * stream. Throughput is in chunks per millisecond; with {@code -prof gc} the
+ * {@code gc.alloc.rate.norm} is bytes allocated per chunk, which should stay near zero for encode
+ * and near {@code chunkSize} for decode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkSerializationBenchmark {
+
+    @Param({"65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    private ByteBuffer payload;
+    private int crc;
+    private byte[] frame;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = new byte[chunkSize];
+        new Random(42).nextBytes(bytes);
+        payload = ByteBuffer.allocateDirect(chunkSize);
+        payload.put(bytes).flip();
+        crc = new Crc32c().of(payload);
+        frame = new byte[chunkSize + 64];
+        serialized = chunk().toByteArray();
+    }
+
+    private Chunk chunk() {
+        return Chunk.newBuilder().setContent(UnsafeByteOperations.unsafeWrap(payload.duplicate()))
+                .setOffset(1L << 30).setCrc32C(crc).setHasCrc32C(true).build();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        CodedOutputStream cos = CodedOutputStream.newInstance(frame);
+        chunk().writeTo(cos);
+        return cos.getTotalBytesWritten();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws IOException {
+        Chunk chunk = Chunk.parser().parseFrom(new ByteArrayInputStream(serialized));
+        bh.consume(chunk.getContent());
+    }
+}
@@ -0,0 +1,169 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.Chunk;
+import cn.edu.sjtu.ops.grpcdemo.ChunkEncoder;
+import cn.edu.sjtu.ops.grpcdemo.ChunkVerifier;
+import cn.edu.sjtu.ops.grpcdemo.Codec;
+import cn.edu.sjtu.ops.grpcdemo.Crc32c;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire bytes and time per upload for each content type and codec.
+ *
+ * One operation is a {@code fileSizeMb} upload without the network: the client encodes chunks on
+ * a worker pool the way {@code ChunkSender} does (a few chunks ahead, sent in order), each chunk is
+ * serialized and parsed again, and the server inflates and verifies it. The {@code wireBytes}
+ * counter is what went over the wire per operation; on a link of B bytes/s an upload takes about
+ * {@code max(time per op, wireBytes / B)} since both sides are pipelined.
+ * {@code random} stands in for media like testfile.mp4 and should cost no more than {@code None}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int LOOKAHEAD = 4;
+
+    @Param({"random", "logs", "csv"})
+    public String content;
+
+    @Param({"None", "Lz4", "Zstd"})
+    public String codec;
+
+    @Param({"1048576"})
+    public int chunkSize;
+
+    @Param({"64"})
+    public int fileSizeMb;
+
+    private ByteBuffer file;
+    private ExecutorService workers;
+    private final DiscardOutputStream sink = new DiscardOutputStream();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        byte[] bytes = generate(content, fileSizeMb * 1024 * 1024, new Random(42));
+        file = ByteBuffer.allocateDirect(bytes.length);
+        file.put(bytes).flip();
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Benchmark
+    public void upload(Wire wire, Blackhole bh) throws IOException {
+        Codec c = Codec.valueOf(codec);
+        ChunkEncoder encoder = c == Codec.None ? null : new ChunkEncoder(c, workers);
+        Crc32c crc = new Crc32c();
+        ChunkVerifier verifier = new ChunkVerifier();
+        ArrayDeque<CompletableFuture<ChunkEncoder.Encoded>> encoding = new ArrayDeque<>();
+        int position = 0;
+        while (position < file.limit() || !encoding.isEmpty()) {
+            Chunk chunk;
+            if (encoder == null) {
+                ByteBuffer slice = slice(position);
+                position += slice.remaining();
+                chunk = Chunk.newBuilder().setContent(UnsafeByteOperations.unsafeWrap(slice))
+                        .setCrc32C(crc.of(slice)).setHasCrc32C(true).build();
+            } else {
+                while (position < file.limit() && encoding.size() < LOOKAHEAD) {
+                    ByteBuffer slice = slice(position);
+                    position += slice.remaining();
+                    encoding.add(encoder.submit(slice));
+                }
+                chunk = encoding.poll().join().fill(Chunk.newBuilder()).build();
+            }
+            byte[] onWire = chunk.toByteArray();
+            wire.wireBytes += onWire.length;
+            ByteString received = verifier.verify(Chunk.parseFrom(onWire));
+            if (received == null) {
+                throw new IllegalStateException(verifier.mismatchStatus().getMessage());
+            }
+            received.writeTo(sink);
+        }
+        bh.consume(verifier.fileCrc());
+    }
+
+    private ByteBuffer slice(int position) {
+        ByteBuffer slice = file.duplicate();
+        slice.position(position);
+        slice.limit(Math.min(file.limit(), position + chunkSize));
+        return slice.slice();
+    }
+
+    static byte[] generate(String content, int size, Random random) {
+        if (content.equals("random")) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        String[] symbols = {"AAPL", "MSFT", "GOOG", "AMZN", "TSLA", "NVDA", "META", "ORCL"};
+        StringBuilder sb = new StringBuilder(size + 256);
+        long time = 1700000000000L;
+        for (long line = 0; sb.length() < size; line++) {
+            time += random.nextInt(50);
+            if (content.equals("logs")) {
+                sb.append(time).append(' ').append(levels[random.nextInt(levels.length)])
+                        .append(" [hdfs-writer-").append(random.nextInt(32)).append("] ")
+                        .append("cn.edu.sjtu.ops.grpcdemo.DemoServer - chunk-").append(line)
+                        .append(" of ").append(Long.toHexString(random.nextLong()))
+                        .append(" written, ").append(random.nextInt(1 << 20)).append(" bytes\n");
+            } else {
+                sb.append(line).append(',').append(time).append(',')
+                        .append(symbols[random.nextInt(symbols.length)]).append(',')
+                        .append(100 + random.nextInt(10000) / 100.0).append(',')
+                        .append(random.nextInt(1000)).append('\n');
+            }
+        }
+        byte[] bytes = new byte[size];
+        System.arraycopy(sb.toString().getBytes(StandardCharsets.US_ASCII), 0, bytes, 0, size);
+        return bytes;
+    }
+
+    /** Stands in for the HDFS output stream. */
+    static final class DiscardOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.Hdfs;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the file system alone takes: {@code concurrency} writers each borrow a pooled handle and
+ * write a {@code fileSizeMb} file in {@code chunkSize} writes, the way the server's writer threads
+ * do. Compare with {@link UploadBenchmark} at the same parameters to see what gRPC adds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HdfsWriteBenchmark {
+
+    @Param({"local", "minidfs"})
+    public String fs;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    @Param({"1", "8"})
+    public int concurrency;
+
+    @Param({"64"})
+    public int fileSizeMb;
+
+    private BenchmarkFileSystem fileSystem;
+    private ExecutorService writers;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() throws IOException {
+        fileSystem = new BenchmarkFileSystem(fs);
+        Hdfs.init(fileSystem.configuration());
+        writers = Executors.newFixedThreadPool(concurrency);
+        chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writers.shutdownNow();
+        Hdfs.closePool();
+        fileSystem.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void clear() throws IOException {
+        fileSystem.clear();
+    }
+
+    @Benchmark
+    public long write() throws InterruptedException, ExecutionException {
+        List<Future<Long>> results = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            final String path = "/bench/file-" + i;
+            results.add(writers.submit(() -> writeFile(path)));
+        }
+        long written = 0;
+        for (Future<Long> result : results) {
+            written += result.get();
+        }
+        return written;
+    }
+
+    private long writeFile(String path) throws IOException {
+        long size = fileSizeMb * 1024L * 1024;
+        long written = 0;
+        try (Hdfs hdfs = Hdfs.getInstance(); FSDataOutputStream out = hdfs.create(path, true)) {
+            while (written < size) {
+                int n = (int) Math.min(chunk.length, size - written);
+                out.write(chunk, 0, n);
+                written += n;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,112 @@
+package cn.edu.sjtu.ops.grpcdemo.benchmark;
+
+import cn.edu.sjtu.ops.grpcdemo.DemoClient;
+import cn.edu.sjtu.ops.grpcdemo.DemoServer;
+import cn.edu.sjtu.ops.grpcdemo.Hdfs;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end {@code DemoService.upload}: a {@link DemoClient} sends {@code concurrency} files of
+ * {@code fileSizeMb} at once and one operation ends when the server confirmed all of them, so
+ * unlike the timing in {@code DemoClient.main} it measures completed uploads only.
+ *
+ * {@code inprocess} leaves out the network stack and shows what the service and the file system
+ * cost; {@code netty} goes through loopback TCP with the server's real transport. Throughput is
+ * in uploads of {@code concurrency} files per second, {@code SampleTime} gives the p50/p99 latency
+ * of one such batch. Files the server wrote are deleted between operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final int MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+
+    @Param({"inprocess", "netty"})
+    public String transport;
+
+    @Param({"local", "minidfs"})
+    public String fs;
+
+    @Param({"65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    @Param({"1", "8"})
+    public int concurrency;
+
+    @Param({"16", "128"})
+    public int fileSizeMb;
+
+    private BenchmarkFileSystem fileSystem;
+    private DemoServer server;
+    private DemoClient client;
+    private File source;
+    private List<String> files;
+
+    @Setup
+    public void setup() throws IOException {
+        fileSystem = new BenchmarkFileSystem(fs);
+        Hdfs.init(fileSystem.configuration());
+        if (transport.equals("inprocess")) {
+            String name = "upload-benchmark-" + UUID.randomUUID();
+            server = new DemoServer(InProcessServerBuilder.forName(name), MAX_MESSAGE_SIZE);
+            server.start();
+            client = new DemoClient(InProcessChannelBuilder.forName(name), MAX_MESSAGE_SIZE);
+        } else {
+            server = new DemoServer(NettyServerBuilder.forPort(0), MAX_MESSAGE_SIZE);
+            server.start();
+            client = new DemoClient("127.0.0.1", server.getPort(), MAX_MESSAGE_SIZE);
+        }
+
+        source = Files.createTempDirectory("upload-benchmark").toFile();
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream os = new FileOutputStream(new File(source, "upload.bin"))) {
+            for (int i = 0; i < fileSizeMb; i++) {
+                os.write(block);
+            }
+        }
+        client.setSourceDirectory(source.toPath());
+        files = Collections.nCopies(concurrency, "upload.bin");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        fileSystem.close();
+        new File(source, "upload.bin").delete();
+        source.delete();
+    }
+
+    @TearDown(Level.Invocation)
+    public void clear() throws IOException {
+        fileSystem.clear();
+    }
+
+    @Benchmark
+    public int upload() throws InterruptedException {
+        int succeeded = client.uploadFiles(files, chunkSize, 1);
+        if (succeeded != concurrency) {
+            throw new IllegalStateException((concurrency - succeeded) + " of " + concurrency + " uploads failed");
+        }
+        return succeeded;
+    }
+}
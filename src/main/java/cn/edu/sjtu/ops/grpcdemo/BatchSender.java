@@ -0,0 +1,155 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams many files on one {@code UploadBatch} call, driven by onReady like {@link ChunkSender}.
+ * The first chunk of every file carries its name; files larger than a chunk continue in chunks
+ * without one. Each file is mapped when its turn comes, so only one is open at a time.
+ */
+public class BatchSender implements ClientResponseObserver<Chunk, UploadStatus> {
+    private static final Logger logger = LoggerFactory.getLogger(BatchSender.class);
+
+    private final String name;
+    private final List<Path> files;
+    private final List<String> names;
+    private final int chunkSize;
+    private final long inFlightBudget;
+    private final CountDownLatch finishLatch = new CountDownLatch(1);
+    private final Crc32c crc = new Crc32c();
+
+    private ClientCallStreamObserver<Chunk> requestStream;
+    private int file = -1;
+    private ByteBuffer content;
+    private boolean named;
+    private long length = 0;
+    private int streamCrc = 0;
+    private boolean halfClosed = false;
+    private volatile boolean finished = false;
+    private volatile UploadStatus status;
+    private volatile Throwable error;
+
+    /**
+     * @param names name of each file in the pack, in the order of {@code files}
+     */
+    public BatchSender(String name, List<Path> files, List<String> names, int chunkSize, long inFlightBudget) {
+        this.name = name;
+        this.files = files;
+        this.names = names;
+        this.chunkSize = chunkSize;
+        this.inFlightBudget = inFlightBudget;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Chunk> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(this::pump);
+    }
+
+    private synchronized void pump() {
+        if (finished || halfClosed) {
+            return;
+        }
+        try {
+            long roundBytes = 0;
+            while (requestStream.isReady() || roundBytes < inFlightBudget) {
+                if (content == null || (!content.hasRemaining() && named)) {
+                    if (++file == files.size()) {
+                        break;
+                    }
+                    content = map(files.get(file));
+                    named = false;
+                }
+                ByteBuffer slice = content.slice();
+                slice.limit(Math.min(chunkSize, slice.remaining()));
+                content.position(content.position() + slice.remaining());
+                int chunkCrc = crc.of(slice);
+                Chunk.Builder chunk = Chunk.newBuilder().setContent(UnsafeByteOperations.unsafeWrap(slice))
+                        .setCrc32C(chunkCrc).setHasCrc32C(true);
+                if (!named) {
+                    // also for an empty file, which is all header
+                    chunk.setFileName(names.get(file));
+                    named = true;
+                }
+                requestStream.onNext(chunk.build());
+                streamCrc = crc.append(streamCrc, chunkCrc, slice.remaining());
+                length += slice.remaining();
+                roundBytes += slice.remaining();
+            }
+            if (file < files.size()) {
+                return;
+            }
+            halfClosed = true;
+            content = null;
+            requestStream.onNext(Chunk.newBuilder().setDigest(StreamDigest.newBuilder()
+                    .setLength(length).setCrc32C(streamCrc)).build());
+            requestStream.onCompleted();
+        } catch (IOException | RuntimeException e) {
+            logger.error(name + ": " + e);
+            requestStream.onError(e);
+        }
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public void onNext(UploadStatus uploadStatus) {
+        status = uploadStatus;
+        logger.info(name + ": status: " + String.valueOf(uploadStatus.getCode().getNumber())
+                + " " + uploadStatus.getMessage());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        finished = true;
+        logger.info(name + " Error! " + throwable);
+        finishLatch.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        finished = true;
+        logger.info(name + " Completed! " + files.size() + " files, " + length + " bytes");
+        finishLatch.countDown();
+    }
+
+    /**
+     * @return false if the call did not finish in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finishLatch.await(timeout, unit);
+    }
+
+    public void cancel(String message) {
+        if (requestStream != null) {
+            requestStream.cancel(message, null);
+        }
+    }
+
+    public boolean succeeded() {
+        return error == null && status != null && status.getCode() == UploadStatusCode.Ok;
+    }
+
+    public UploadStatus getStatus() {
+        return status;
+    }
+}
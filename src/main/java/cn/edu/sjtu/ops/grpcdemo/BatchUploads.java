@@ -0,0 +1,198 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Server side of {@code UploadBatch}: many small files on one stream, written into one
+ * {@link PackFile}. A chunk with a FileName starts the next file, chunks without one continue it.
+ * A batch costs one mkdir, one create and one close on the NameNode however many files it holds,
+ * and HDFS ends up with one file instead of thousands of tiny ones.
+ *
+ * The whole batch succeeds or fails together; there is no partial pack.
+ */
+public class BatchUploads {
+    private static final Logger logger = LoggerFactory.getLogger(BatchUploads.class);
+
+    private final ServerMetrics metrics;
+    private final int maxRawLength;
+
+    /**
+     * @param maxRawLength largest chunk inflated, see {@link ChunkVerifier}
+     */
+    public BatchUploads(int maxRawLength, ServerMetrics metrics) {
+        this.maxRawLength = maxRawLength;
+        this.metrics = metrics;
+    }
+
+    public StreamObserver<Chunk> newObserver(final StreamObserver<UploadStatus> responseObserver) {
+        return new StreamObserver<Chunk>() {
+            final ChunkVerifier verifier = new ChunkVerifier(maxRawLength);
+            final Crc32c crc = new Crc32c();
+            String path;
+            Hdfs hdfs = null;
+            FSDataOutputStream output;
+            PackFile.Writer pack;
+            boolean digestOk = false;
+            boolean rejected = false;
+
+            public void onNext(Chunk chunk) {
+                if (rejected) {
+                    return;
+                }
+                try {
+                    if (pack == null) {
+                        open();
+                    }
+                    if (chunk.hasDigest()) {
+                        digestOk = verifier.verify(chunk.getDigest());
+                        return;
+                    }
+                    String name = chunk.getFileName();
+                    if (!name.isEmpty()) {
+                        if (name.getBytes(StandardCharsets.UTF_8).length > PackFile.MAX_NAME_LENGTH) {
+                            reject(Status.INVALID_ARGUMENT, "file name longer than " + PackFile.MAX_NAME_LENGTH + " bytes");
+                            return;
+                        }
+                        if (!pack.startFile(name)) {
+                            reject(Status.INVALID_ARGUMENT, "file " + name + " is in the batch twice");
+                            return;
+                        }
+                    } else if (!pack.inFile()) {
+                        reject(Status.INVALID_ARGUMENT, "the first chunk of a batch must name its file");
+                        return;
+                    }
+                    ByteString content = verifier.verify(chunk);
+                    if (content == null) {
+                        corrupted();
+                        return;
+                    }
+                    pack.write(content, chunk.getHasCrc32C() ? chunk.getCrc32C() : crc.of(content));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private void open() throws IOException {
+                String dir = "/" + Thread.currentThread().getName();
+                path = dir + "/" + UUID.randomUUID().toString() + ".pack";
+                hdfs = Hdfs.getInstance();
+                hdfs.mkdir(dir);
+                output = hdfs.create(path, true);
+                pack = new PackFile.Writer(output);
+            }
+
+            private void reject(Status status, String message) throws IOException {
+                rejected = true;
+                logger.warn(path + ": " + message);
+                discard();
+                responseObserver.onError(status.withDescription(message).asRuntimeException());
+            }
+
+            private void corrupted() throws IOException {
+                rejected = true;
+                UploadStatus status = verifier.mismatchStatus();
+                logger.warn(path + ": " + status.getMessage());
+                discard();
+                // BadOffset is the offset in the stream, the batch is sent again as a whole
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            public void onError(Throwable throwable) {
+                logger.info("batch upload error: " + throwable);
+                try {
+                    discard();
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                }
+            }
+
+            public void onCompleted() {
+                if (rejected) {
+                    return;
+                }
+                if (pack == null) {
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("empty batch").asRuntimeException());
+                    return;
+                }
+                UploadStatus status;
+                if (!digestOk) {
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.ChecksumMismatch)
+                            .setMessage("stream digest missing or wrong").build();
+                    try {
+                        discard();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                } else {
+                    try {
+                        int files = pack.finish();
+                        long start = System.nanoTime();
+                        output.close();
+                        output = null;
+                        metrics.closeAck.recordSince(start);
+                        PackFile.mark(hdfs, path);
+                        logger.info(path + ": " + files + " files, " + verifier.offset() + " bytes");
+                        status = UploadStatus.newBuilder().setCode(UploadStatusCode.Ok).setMessage(path).build();
+                    } catch (IOException | UnsupportedOperationException e) {
+                        // unmarked, Download could not tell it is a pack
+                        logger.error("can not write pack " + path + ": " + e);
+                        status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                                .setMessage(String.valueOf(e)).build();
+                        try {
+                            discard();
+                        } catch (IOException e2) {
+                            logger.error(String.valueOf(e2));
+                        }
+                    }
+                }
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            /**
+             * Deletes the pack written so far.
+             */
+            private void discard() throws IOException {
+                if (hdfs != null) {
+                    closeOutput();
+                    hdfs.purge(path);
+                }
+                release();
+            }
+
+            private void closeOutput() {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    output = null;
+                }
+            }
+
+            private void release() {
+                closeOutput();
+                if (hdfs != null) {
+                    try {
+                        hdfs.close();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    hdfs = null;
+                }
+            }
+        };
+    }
+}
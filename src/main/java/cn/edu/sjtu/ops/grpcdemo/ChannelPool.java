@@ -0,0 +1,137 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.*;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of channels to one server. Every call goes to the channel with the fewest calls in
+ * flight, so many concurrent uploads share a few TCP connections as HTTP/2 streams.
+ */
+public class ChannelPool implements Closeable {
+
+    public static final int DEFAULT_FLOW_CONTROL_WINDOW = 4 * 1024 * 1024;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+    private final List<ManagedChannel> channels;
+    private final List<Channel> counted;
+    private final AtomicInteger[] active;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param flowControlWindow initial HTTP/2 window of the client, in bytes
+     * @param keepAliveSeconds  ping interval on idle connections, the server has to permit it
+     */
+    public ChannelPool(String host, int port, int size, int maxMessageSize, int flowControlWindow,
+                       long keepAliveSeconds) {
+        this(build(host, port, size, maxMessageSize, flowControlWindow, keepAliveSeconds));
+    }
+
+    public ChannelPool(List<ManagedChannel> channels) {
+        if (channels.isEmpty()) {
+            throw new IllegalArgumentException("no channels");
+        }
+        this.channels = Collections.unmodifiableList(new ArrayList<>(channels));
+        this.counted = new ArrayList<>(channels.size());
+        this.active = new AtomicInteger[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            active[i] = new AtomicInteger();
+            counted.add(ClientInterceptors.intercept(channels.get(i), new CallCounter(active[i])));
+        }
+    }
+
+    private static List<ManagedChannel> build(String host, int port, int size, int maxMessageSize,
+                                              int flowControlWindow, long keepAliveSeconds) {
+        List<ManagedChannel> channels = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            channels.add(NettyChannelBuilder.forAddress(host, port)
+                    .usePlaintext()
+                    .maxInboundMessageSize(maxMessageSize)
+                    .flowControlWindow(flowControlWindow)
+                    .keepAliveTime(keepAliveSeconds, TimeUnit.SECONDS)
+                    .keepAliveTimeout(keepAliveSeconds, TimeUnit.SECONDS)
+                    .keepAliveWithoutCalls(true)
+                    .build());
+        }
+        return channels;
+    }
+
+    /**
+     * The least loaded channel; ties are broken round-robin so idle channels get used too.
+     */
+    public Channel next() {
+        int n = channels.size();
+        int start = Math.abs(next.getAndIncrement() % n);
+        int best = start;
+        for (int i = 1; i < n; i++) {
+            int candidate = (start + i) % n;
+            if (active[candidate].get() < active[best].get()) {
+                best = candidate;
+            }
+        }
+        return counted.get(best);
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    public int activeCalls() {
+        int sum = 0;
+        for (AtomicInteger a : active) {
+            sum += a.get();
+        }
+        return sum;
+    }
+
+    @Override
+    public void close() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        try {
+            for (ManagedChannel channel : channels) {
+                if (!channel.awaitTermination(5, TimeUnit.SECONDS)) {
+                    channel.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class CallCounter implements ClientInterceptor {
+        private final AtomicInteger active;
+
+        CallCounter(AtomicInteger active) {
+            this.active = active;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    active.incrementAndGet();
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            active.decrementAndGet();
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+    }
+}
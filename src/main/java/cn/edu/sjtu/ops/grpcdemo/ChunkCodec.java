@@ -0,0 +1,397 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunk compression. LZ4 is for the wire, cheap enough to keep up with the network on both sides;
+ * zstd packs tighter for uploads kept compressed in HDFS.
+ *
+ * Archived files are a sequence of frames, one per chunk:
+ * {@code codec (1 byte) | raw length (4) | stored length (4) | payload}, readable with {@link #unframe}
+ * or, seekable, with {@link #open}.
+ */
+public final class ChunkCodec {
+
+    /** Largest frame {@link #unframe} inflates, against decompression bombs; servers take less, see ChunkVerifier. */
+    public static final int MAX_RAW_LENGTH = 64 * 1024 * 1024;
+    public static final String XATTR = "user.grpcdemo.codec";
+    public static final String FRAMED = "framed";
+    private static final int FRAME_HEADER = 9;
+
+    private static final int ZSTD_LEVEL = 3;
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+    private static final boolean ZSTD_LOADED = zstdLoads();
+
+    private ChunkCodec() {
+    }
+
+    private static boolean zstdLoads() {
+        try {
+            Zstd.compressBound(1);
+            return true;
+        } catch (Throwable e) {
+            // no native library for this platform
+            return false;
+        }
+    }
+
+    /**
+     * @return whether this process can decompress {@code codec}
+     */
+    public static boolean available(Codec codec) {
+        return codec != Codec.Zstd || ZSTD_LOADED;
+    }
+
+    public static List<Codec> available() {
+        List<Codec> codecs = new ArrayList<>();
+        codecs.add(Codec.Lz4);
+        if (ZSTD_LOADED) {
+            codecs.add(Codec.Zstd);
+        }
+        return Collections.unmodifiableList(codecs);
+    }
+
+    /**
+     * @param scratch heap copy of {@code src} for codecs that need one, grown as needed
+     * @return the compressed bytes, or null if they would not be smaller than {@code src}
+     */
+    public static ByteString compress(Codec codec, ByteBuffer src, byte[][] scratch) {
+        int n = src.remaining();
+        switch (codec) {
+            case Lz4: {
+                LZ4Compressor compressor = LZ4.fastCompressor();
+                byte[] out = new byte[compressor.maxCompressedLength(n)];
+                int length = compressor.compress(src, src.position(), n, ByteBuffer.wrap(out), 0, out.length);
+                return length < n ? UnsafeByteOperations.unsafeWrap(out, 0, length) : null;
+            }
+            case Zstd: {
+                byte[] in;
+                int offset;
+                if (src.hasArray()) {
+                    in = src.array();
+                    offset = src.arrayOffset() + src.position();
+                } else {
+                    if (scratch[0] == null || scratch[0].length < n) {
+                        scratch[0] = new byte[n];
+                    }
+                    in = scratch[0];
+                    offset = 0;
+                    src.duplicate().get(in, 0, n);
+                }
+                byte[] out = new byte[(int) Zstd.compressBound(n)];
+                long length = Zstd.compressByteArray(out, 0, out.length, in, offset, n, ZSTD_LEVEL);
+                if (Zstd.isError(length)) {
+                    throw new IllegalStateException("zstd: " + Zstd.getErrorName(length));
+                }
+                return length < n ? UnsafeByteOperations.unsafeWrap(out, 0, (int) length) : null;
+            }
+            default:
+                throw new IllegalArgumentException("not a compression codec: " + codec);
+        }
+    }
+
+    /**
+     * Inflate into {@code out}, which must hold at least {@code rawLength} bytes.
+     *
+     * @throws IllegalArgumentException if the payload is not valid for the codec and length
+     */
+    public static void decompress(Codec codec, ByteString payload, int rawLength, byte[] out) {
+        // compressed, so a fraction of the chunk
+        byte[] in = payload.toByteArray();
+        decompress(codec, in, in.length, rawLength, out);
+    }
+
+    private static void decompress(Codec codec, byte[] in, int inLength, int rawLength, byte[] out) {
+        switch (codec) {
+            case Lz4: {
+                LZ4SafeDecompressor decompressor = LZ4.safeDecompressor();
+                int length;
+                try {
+                    length = decompressor.decompress(in, 0, inLength, out, 0, rawLength);
+                } catch (LZ4Exception e) {
+                    throw new IllegalArgumentException("lz4: " + e.getMessage());
+                }
+                if (length != rawLength) {
+                    throw new IllegalArgumentException("lz4: " + length + " bytes, expected " + rawLength);
+                }
+                return;
+            }
+            case Zstd: {
+                long length = Zstd.decompressByteArray(out, 0, rawLength, in, 0, inLength);
+                if (Zstd.isError(length)) {
+                    throw new IllegalArgumentException("zstd: " + Zstd.getErrorName(length));
+                }
+                if (length != rawLength) {
+                    throw new IllegalArgumentException("zstd: " + length + " bytes, expected " + rawLength);
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("unknown codec " + codec);
+        }
+    }
+
+    public static void writeFrame(DataOutputStream out, Codec codec, int rawLength, ByteString payload)
+            throws IOException {
+        out.writeByte(codec.getNumber());
+        out.writeInt(rawLength);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    /**
+     * Mark a file as framed, so readers know to {@link #unframe} it.
+     */
+    public static void mark(Hdfs hdfs, String path) throws IOException {
+        hdfs.setXAttr(path, XATTR, FRAMED.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Decode an archived file back into its original bytes.
+     */
+    public static void unframe(InputStream in, OutputStream out) throws IOException {
+        DataInputStream frames = new DataInputStream(in);
+        byte[] stored = new byte[0];
+        byte[] raw = new byte[0];
+        while (true) {
+            int number = frames.read();
+            if (number < 0) {
+                return;
+            }
+            Codec codec = Codec.forNumber(number);
+            int rawLength = frames.readInt();
+            int storedLength = frames.readInt();
+            if (codec == null || rawLength < 0 || rawLength > MAX_RAW_LENGTH || storedLength < 0) {
+                throw new IOException(String.format("bad frame: codec %d, %d/%d bytes", number, storedLength, rawLength));
+            }
+            if (!available(codec)) {
+                // zstd-jni throws an Error without its native library
+                throw new IOException(codec + " is not available on this platform");
+            }
+            if (stored.length < storedLength) {
+                stored = new byte[storedLength];
+            }
+            try {
+                frames.readFully(stored, 0, storedLength);
+            } catch (EOFException e) {
+                throw new IOException("truncated frame", e);
+            }
+            if (codec == Codec.None) {
+                out.write(stored, 0, storedLength);
+                continue;
+            }
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+            }
+            try {
+                decompress(codec, stored, storedLength, rawLength, raw);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            out.write(raw, 0, rawLength);
+        }
+    }
+
+    /**
+     * Where the frames of an archive are, found from their headers without reading the payloads.
+     */
+    public static final class Frames {
+        /** Offset in the original bytes of every frame, and their length last. */
+        final long[] rawOffsets;
+        /** Offset of every frame's header in the file. */
+        final long[] fileOffsets;
+
+        Frames(long[] rawOffsets, long[] fileOffsets) {
+            this.rawOffsets = rawOffsets;
+            this.fileOffsets = fileOffsets;
+        }
+
+        /**
+         * @return the length of the original bytes
+         */
+        public long length() {
+            return rawOffsets[rawOffsets.length - 1];
+        }
+    }
+
+    /**
+     * @return the frames of the archive at {@code path}, or null if it is not {@link #mark marked} framed
+     */
+    public static Frames frames(Hdfs hdfs, String path) throws IOException {
+        Map<String, byte[]> xattrs;
+        try {
+            xattrs = hdfs.getXAttrs(path);
+        } catch (UnsupportedOperationException e) {
+            // no xattrs, no archives
+            return null;
+        }
+        byte[] format = xattrs.get(XATTR);
+        if (format == null || !FRAMED.equals(new String(format, StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        long fileLength = hdfs.getFileStatus(path).getLen();
+        List<long[]> frames = new ArrayList<>();
+        long raw = 0;
+        byte[] header = new byte[FRAME_HEADER];
+        try (FSDataInputStream in = hdfs.open(path)) {
+            long position = 0;
+            while (position < fileLength) {
+                in.readFully(position, header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                int number = fields.get() & 0xff;
+                int rawLength = fields.getInt();
+                int storedLength = fields.getInt();
+                Codec codec = Codec.forNumber(number);
+                if (codec == null || rawLength < 0 || rawLength > MAX_RAW_LENGTH || storedLength < 0
+                        || codec == Codec.None && rawLength != storedLength) {
+                    throw new IOException(String.format("%s: bad frame at %d: codec %d, %d/%d bytes",
+                            path, position, number, storedLength, rawLength));
+                }
+                frames.add(new long[]{raw, position});
+                raw += rawLength;
+                position += FRAME_HEADER + storedLength;
+            }
+            if (position != fileLength) {
+                throw new IOException(path + ": truncated frame at " + frames.get(frames.size() - 1)[1]);
+            }
+        }
+        long[] rawOffsets = new long[frames.size() + 1];
+        long[] fileOffsets = new long[frames.size()];
+        for (int i = 0; i < frames.size(); i++) {
+            rawOffsets[i] = frames.get(i)[0];
+            fileOffsets[i] = frames.get(i)[1];
+        }
+        rawOffsets[frames.size()] = raw;
+        return new Frames(rawOffsets, fileOffsets);
+    }
+
+    /**
+     * The original bytes of an archive, inflated a frame at a time; seekable, so ranges work as usual.
+     */
+    public static FSDataInputStream open(Hdfs hdfs, String path, Frames frames) throws IOException {
+        return new FSDataInputStream(new FramedInputStream(hdfs.open(path), frames));
+    }
+
+    private static final class FramedInputStream extends FSInputStream {
+        private final FSDataInputStream in;
+        private final Frames frames;
+        private long position = 0;
+        private int current = -1;
+        private byte[] stored = new byte[0];
+        private byte[] raw = new byte[0];
+
+        FramedInputStream(FSDataInputStream in, Frames frames) {
+            this.in = in;
+            this.frames = frames;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos < 0 || pos > frames.length()) {
+                throw new EOFException("seek to " + pos + " of " + frames.length());
+            }
+            position = pos;
+        }
+
+        @Override
+        public long getPos() {
+            return position;
+        }
+
+        @Override
+        public boolean seekToNewSource(long targetPos) {
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= frames.length()) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            long[] rawOffsets = frames.rawOffsets;
+            // the last of equal offsets, empty frames hold nothing to read
+            int frame = Arrays.binarySearch(rawOffsets, position);
+            frame = frame >= 0 ? frame : -frame - 2;
+            while (rawOffsets[frame + 1] == position) {
+                frame++;
+            }
+            if (frame != current) {
+                inflate(frame);
+            }
+            int n = (int) Math.min(len, rawOffsets[frame + 1] - position);
+            System.arraycopy(raw, (int) (position - rawOffsets[frame]), b, off, n);
+            position += n;
+            return n;
+        }
+
+        private void inflate(int frame) throws IOException {
+            current = -1;
+            in.seek(frames.fileOffsets[frame]);
+            Codec codec = Codec.forNumber(in.readUnsignedByte());
+            int rawLength = in.readInt();
+            int storedLength = in.readInt();
+            if (rawLength != frames.rawOffsets[frame + 1] - frames.rawOffsets[frame]) {
+                throw new IOException("frame " + frame + " changed since it was indexed");
+            }
+            if (!ChunkCodec.available(codec)) {
+                throw new IOException(codec + " is not available on this platform");
+            }
+            if (stored.length < storedLength) {
+                stored = new byte[storedLength];
+            }
+            in.readFully(stored, 0, storedLength);
+            if (codec == Codec.None) {
+                // read from directly, the next frame grows it if need be
+                byte[] swap = raw;
+                raw = stored;
+                stored = swap;
+            } else {
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                try {
+                    decompress(codec, stored, storedLength, rawLength, raw);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("frame " + frame + ": " + e.getMessage());
+                }
+            }
+            current = frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the chunks of one upload on a worker pool shared by the client, so the sender only
+ * hands out slices and sends what comes back.
+ *
+ * Compression is skipped for content that will not shrink: a chunk whose sampled byte entropy is
+ * close to 8 bits is sent raw without trying, as is one that did not get {@link #MIN_SAVING}
+ * smaller. After {@link #SKIP_AFTER} such chunks in a row the encoder stops trying and only probes
+ * every {@link #PROBE_EVERY}th chunk, which keeps media files like mp4 at raw speed.
+ */
+public class ChunkEncoder {
+
+    private static final int SAMPLES = 8;
+    private static final int SAMPLE_BYTES = 512;
+    private static final double MAX_ENTROPY = 7.5;
+    private static final double MIN_SAVING = 0.9;
+    private static final int SKIP_AFTER = 4;
+    private static final int PROBE_EVERY = 64;
+
+    private static final ThreadLocal<Crc32c> CRC = ThreadLocal.withInitial(Crc32c::new);
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1][]);
+
+    private final Codec codec;
+    private final Executor workers;
+    private final AtomicInteger incompressibleRun = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    public static final class Encoded {
+        final ByteString content;
+        final Codec codec;
+        final int rawLength;
+        final int crc;
+
+        Encoded(ByteString content, Codec codec, int rawLength, int crc) {
+            this.content = content;
+            this.codec = codec;
+            this.rawLength = rawLength;
+            this.crc = crc;
+        }
+
+        /**
+         * Set payload, codec and CRC on the chunk about to be sent.
+         */
+        public Chunk.Builder fill(Chunk.Builder chunk) {
+            chunk.setContent(content).setCrc32C(crc).setHasCrc32C(true);
+            if (codec != Codec.None) {
+                chunk.setCodec(codec).setRawLength(rawLength);
+            }
+            return chunk;
+        }
+    }
+
+    public ChunkEncoder(Codec codec, Executor workers) {
+        this.codec = codec;
+        this.workers = workers;
+    }
+
+    public Codec codec() {
+        return codec;
+    }
+
+    /**
+     * @param slice not modified, read until the future completes
+     */
+    public CompletableFuture<Encoded> submit(final ByteBuffer slice) {
+        return CompletableFuture.supplyAsync(() -> encode(slice), workers);
+    }
+
+    Encoded encode(ByteBuffer slice) {
+        int n = slice.remaining();
+        int crc = CRC.get().of(slice);
+        rawBytes.addAndGet(n);
+        if (worthTrying(slice)) {
+            ByteString compressed = ChunkCodec.compress(codec, slice, SCRATCH.get());
+            if (compressed != null && compressed.size() <= n * MIN_SAVING) {
+                incompressibleRun.set(0);
+                wireBytes.addAndGet(compressed.size());
+                return new Encoded(compressed, codec, n, crc);
+            }
+            incompressibleRun.incrementAndGet();
+        }
+        wireBytes.addAndGet(n);
+        return new Encoded(UnsafeByteOperations.unsafeWrap(slice), Codec.None, n, crc);
+    }
+
+    private boolean worthTrying(ByteBuffer slice) {
+        if (incompressibleRun.get() >= SKIP_AFTER && skipped.incrementAndGet() % PROBE_EVERY != 0) {
+            return false;
+        }
+        if (entropy(slice) > MAX_ENTROPY) {
+            incompressibleRun.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shannon entropy in bits per byte of a few samples spread over the slice.
+     */
+    static double entropy(ByteBuffer slice) {
+        int n = slice.remaining();
+        int[] counts = new int[256];
+        int total = 0;
+        int spots = Math.max(1, Math.min(SAMPLES, n / SAMPLE_BYTES));
+        int stride = n / spots;
+        for (int s = 0; s < spots; s++) {
+            int from = slice.position() + s * stride;
+            int to = Math.min(from + SAMPLE_BYTES, slice.limit());
+            for (int i = from; i < to; i++) {
+                counts[slice.get(i) & 0xff]++;
+            }
+            total += to - from;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    public long rawBytes() {
+        return rawBytes.get();
+    }
+
+    public long wireBytes() {
+        return wireBytes.get();
+    }
+}
@@ -0,0 +1,220 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent set of SHA-256 chunk hashes: an open-addressing table in a memory-mapped file, 32
+ * bytes per slot and nothing on the heap, so millions of chunks cost page cache rather than GC.
+ * The hashes are uniform already, their first 8 bytes pick the slot; an all-zero slot is empty.
+ * The table doubles into a new file once it is {@link #MAX_LOAD} full. Removing a hash shifts the
+ * entries probed past it back, so lookups stop at the first empty slot without tombstones.
+ *
+ * The index is a cache of what the chunk store holds. Losing recent additions only makes clients
+ * send those chunks again, so it is forced to disk when it grows and on close, not on every add.
+ */
+public class ChunkIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkIndex.class);
+
+    public static final int HASH_LENGTH = 32;
+    private static final long MAGIC = 0x4744434849445831L;
+    private static final int HEADER = 32;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_CAPACITY = 1 << 16;
+    // a MappedByteBuffer ends at 2GB
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / HASH_LENGTH;
+
+    private final File file;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+
+    public ChunkIndex(File file) throws IOException {
+        this.file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        if (file.isFile() && file.length() >= HEADER) {
+            table = map(file, file.length());
+            if (table.getLong(0) == MAGIC) {
+                capacity = table.getInt(8);
+                size = table.getInt(12);
+                logger.info("chunk index " + file + ": " + size + " chunks");
+                return;
+            }
+            logger.error("chunk index " + file + " is broken, starting empty");
+        }
+        File fresh = create(MIN_CAPACITY);
+        Files.move(fresh.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = map(file, file.length());
+        capacity = MIN_CAPACITY;
+        size = 0;
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        check(hash);
+        return slot(table, capacity, hash) < 0;
+    }
+
+    /**
+     * @return false if the hash was there already
+     */
+    public synchronized boolean add(byte[] hash) throws IOException {
+        check(hash);
+        int slot = slot(table, capacity, hash);
+        if (slot < 0) {
+            return false;
+        }
+        put(table, slot, hash);
+        table.putInt(12, ++size);
+        if (size > capacity * MAX_LOAD) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the hash was not there
+     */
+    public synchronized boolean remove(byte[] hash) {
+        check(hash);
+        int slot = slot(table, capacity, hash);
+        if (slot >= 0) {
+            return false;
+        }
+        int mask = capacity - 1;
+        int hole = -1 - slot;
+        byte[] moved = new byte[HASH_LENGTH];
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            if (!get(table, next, moved)) {
+                break;
+            }
+            int home = (int) (prefix(moved) & mask);
+            // an entry may fill the hole only if its probe from home passed the hole
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                put(table, hole, moved);
+                hole = next;
+            }
+        }
+        put(table, hole, new byte[HASH_LENGTH]);
+        table.putInt(12, --size);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        table.force();
+    }
+
+    /**
+     * @return the slot holding {@code hash} as {@code -1 - slot}, or the empty slot it belongs in
+     */
+    private static int slot(MappedByteBuffer table, int capacity, byte[] hash) {
+        int mask = capacity - 1;
+        int slot = (int) (prefix(hash) & mask);
+        while (true) {
+            int base = HEADER + slot * HASH_LENGTH;
+            boolean empty = true;
+            boolean equal = true;
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                byte b = table.get(base + i);
+                empty &= b == 0;
+                equal &= b == hash[i];
+            }
+            if (equal) {
+                return -1 - slot;
+            }
+            if (empty) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static void put(MappedByteBuffer table, int slot, byte[] hash) {
+        int base = HEADER + slot * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            table.put(base + i, hash[i]);
+        }
+    }
+
+    /**
+     * @return false if the slot is empty
+     */
+    private static boolean get(MappedByteBuffer table, int slot, byte[] hash) {
+        int base = HEADER + slot * HASH_LENGTH;
+        boolean empty = true;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            hash[i] = table.get(base + i);
+            empty &= hash[i] == 0;
+        }
+        return !empty;
+    }
+
+    private static long prefix(byte[] hash) {
+        long p = 0;
+        for (int i = 0; i < 8; i++) {
+            p = (p << 8) | (hash[i] & 0xff);
+        }
+        return p;
+    }
+
+    private static void check(byte[] hash) {
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("not a SHA-256 hash: " + hash.length + " bytes");
+        }
+    }
+
+    private void grow() throws IOException {
+        if (capacity * 2L > MAX_CAPACITY) {
+            throw new IOException("chunk index full at " + size + " chunks");
+        }
+        int bigger = capacity * 2;
+        File fresh = create(bigger);
+        MappedByteBuffer grown = map(fresh, fresh.length());
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot < capacity; slot++) {
+            if (get(table, slot, hash)) {
+                put(grown, slot(grown, bigger, hash), hash);
+            }
+        }
+        grown.putInt(12, size);
+        grown.force();
+        Files.move(fresh.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = grown;
+        capacity = bigger;
+        logger.info("chunk index grown to " + capacity + " slots");
+    }
+
+    private File create(int capacity) throws IOException {
+        File fresh = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(fresh.toPath());
+        MappedByteBuffer header = map(fresh, HEADER + (long) capacity * HASH_LENGTH);
+        header.putLong(0, MAGIC);
+        header.putInt(8, capacity);
+        header.putInt(12, 0);
+        header.force();
+        return fresh;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+}
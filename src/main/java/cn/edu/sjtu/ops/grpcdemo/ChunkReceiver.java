@@ -0,0 +1,139 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives one {@code Download} range and writes it into a local file with positional writes, so
+ * any number of ranges can fill the same file at once. Every chunk is checked against its CRC32C
+ * and the range against the server's digest before the download counts as complete.
+ */
+public class ChunkReceiver implements ClientResponseObserver<DownloadRequest, Chunk> {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkReceiver.class);
+
+    private final String name;
+    private final FileChannel channel;
+    private final long offset;
+    private final CountDownLatch sizeLatch = new CountDownLatch(1);
+    private final CountDownLatch finishLatch = new CountDownLatch(1);
+
+    private ClientCallStreamObserver<DownloadRequest> requestStream;
+    private ChunkVerifier verifier;
+    private volatile long fileSize = -1;
+    private volatile boolean verified = false;
+    private volatile Throwable error;
+
+    public ChunkReceiver(String name, FileChannel channel, long offset) {
+        this.name = name;
+        this.channel = channel;
+        this.offset = offset;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<DownloadRequest> requestStream) {
+        this.requestStream = requestStream;
+    }
+
+    @Override
+    public void onNext(Chunk chunk) {
+        if (error != null) {
+            return;
+        }
+        if (verifier == null) {
+            if (chunk.getOffset() != offset) {
+                abort(new IOException(name + ": server sent offset " + chunk.getOffset() + ", asked for " + offset));
+                return;
+            }
+            verifier = new ChunkVerifier(offset, 0);
+            fileSize = chunk.getFileSize();
+            sizeLatch.countDown();
+        }
+        if (chunk.hasDigest()) {
+            if (verifier.verify(chunk.getDigest())) {
+                verified = true;
+            } else {
+                abort(new IOException(name + ": " + verifier.mismatchStatus().getMessage()));
+            }
+            return;
+        }
+        long position = verifier.offset();
+        ByteString content = verifier.verify(chunk);
+        if (content == null) {
+            abort(new IOException(name + ": " + verifier.mismatchStatus().getMessage()));
+            return;
+        }
+        try {
+            for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    private void abort(Throwable e) {
+        logger.error(String.valueOf(e));
+        error = e;
+        requestStream.cancel(e.getMessage(), e);
+        sizeLatch.countDown();
+        finishLatch.countDown();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+            logger.info(name + " Error! " + throwable);
+        }
+        sizeLatch.countDown();
+        finishLatch.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        sizeLatch.countDown();
+        finishLatch.countDown();
+    }
+
+    /**
+     * Wait for the first chunk, which tells the length of the whole file.
+     *
+     * @return the file size, or -1 if the call failed or did not answer in time
+     */
+    public long awaitFileSize(long timeout, TimeUnit unit) throws InterruptedException {
+        sizeLatch.await(timeout, unit);
+        return error == null ? fileSize : -1;
+    }
+
+    /**
+     * @return false if the call did not finish in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finishLatch.await(timeout, unit);
+    }
+
+    public void cancel(String message) {
+        if (requestStream != null) {
+            requestStream.cancel(message, null);
+        }
+    }
+
+    public boolean succeeded() {
+        return error == null && verified;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
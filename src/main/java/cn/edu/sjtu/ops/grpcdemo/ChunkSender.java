@@ -0,0 +1,227 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams bytes [start, end) of a file on one upload call, driven by the call's onReady handler.
+ *
+ * The file is only read when the transport can take more: the sender keeps going while
+ * {@code isReady()} holds, and past that at most {@code inFlightBudget} more bytes until the next
+ * onReady. Memory held by one upload is therefore bounded by the budget plus one chunk, whatever
+ * the file size. Chunks are slices of the mapped file wrapped without copying; gRPC serializes each
+ * message before onNext returns, so the slice is not used afterwards.
+ * How long each round took to drain is fed back to the {@link ChunkSizeController}.
+ * Every chunk carries the CRC32C of its payload and the last message the digest of the whole range,
+ * computed from the same slices, so the file is still read only once.
+ *
+ * With a {@link ChunkEncoder}, slices are compressed on its worker pool up to {@link #LOOKAHEAD}
+ * chunks ahead of the transport and sent in order as they come back; a worker finishing the chunk
+ * the sender waits for pumps on its thread.
+ */
+public class ChunkSender implements ClientResponseObserver<Chunk, UploadStatus> {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkSender.class);
+
+    private static final long MAP_REGION_SIZE = 256L * 1024 * 1024;
+    private static final int LOOKAHEAD = 4;
+
+    private final String name;
+    private final FileChannel channel;
+    private final long end;
+    private final ChunkSizeController chunkSizes;
+    private final long inFlightBudget;
+    private final CountDownLatch finishLatch = new CountDownLatch(1);
+    private final Crc32c crc = new Crc32c();
+    private final ChunkEncoder encoder;
+    private final ArrayDeque<CompletableFuture<ChunkEncoder.Encoded>> encoding = new ArrayDeque<>();
+
+    private ClientCallStreamObserver<Chunk> requestStream;
+    private Chunk.Builder next;
+    private final long start;
+    private long position;
+    private int streamCrc = 0;
+    private MappedByteBuffer region;
+    private boolean halfClosed = false;
+    private long roundStart = 0;
+    private long roundBytes = 0;
+    private long blockedAt = 0;
+    private boolean awaitingEncoder = false;
+    private volatile boolean finished = false;
+    private volatile UploadStatus status;
+    private volatile Throwable error;
+
+    public ChunkSender(String name, FileChannel channel, long start, long end, ChunkSizeController chunkSizes,
+                       Chunk.Builder first, long inFlightBudget) {
+        this(name, channel, start, end, chunkSizes, first, inFlightBudget, null);
+    }
+
+    /**
+     * @param first   builder for the first chunk, carrying whatever header the RPC expects
+     * @param encoder compresses the chunks, null to send them raw
+     */
+    public ChunkSender(String name, FileChannel channel, long start, long end, ChunkSizeController chunkSizes,
+                       Chunk.Builder first, long inFlightBudget, ChunkEncoder encoder) {
+        this.name = name;
+        this.channel = channel;
+        this.start = start;
+        this.position = start;
+        this.end = end;
+        this.chunkSizes = chunkSizes;
+        this.next = first;
+        this.inFlightBudget = inFlightBudget;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Chunk> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(this::pump);
+    }
+
+    /**
+     * Runs on the call's serialized callback executor, first when the call starts and again
+     * whenever the transport drained below its ready threshold; with an encoder also on the worker
+     * that finished the chunk the sender was waiting for.
+     */
+    private synchronized void pump() {
+        if (finished || halfClosed) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (awaitingEncoder) {
+            // the round goes on, the transport was not the one holding it up
+            awaitingEncoder = false;
+        } else {
+            if (blockedAt != 0) {
+                // the server drained the last round, that is the feedback for the chunk size
+                chunkSizes.record(roundBytes, now - roundStart, now - blockedAt);
+                blockedAt = 0;
+            }
+            roundStart = now;
+            roundBytes = 0;
+        }
+        try {
+            int chunkSize = chunkSizes.chunkSize();
+            while (requestStream.isReady() || roundBytes < inFlightBudget) {
+                if (encoder == null) {
+                    if (position >= end) {
+                        break;
+                    }
+                    ByteBuffer slice = nextSlice(chunkSize);
+                    send(new ChunkEncoder.Encoded(UnsafeByteOperations.unsafeWrap(slice), Codec.None,
+                            slice.remaining(), crc.of(slice)));
+                    continue;
+                }
+                while (position < end && encoding.size() < LOOKAHEAD) {
+                    encoding.add(encoder.submit(nextSlice(chunkSize)));
+                }
+                CompletableFuture<ChunkEncoder.Encoded> head = encoding.peek();
+                if (head == null) {
+                    break;
+                }
+                if (!head.isDone()) {
+                    awaitingEncoder = true;
+                    head.whenComplete((encoded, e) -> pump());
+                    return;
+                }
+                encoding.poll();
+                send(head.join());
+            }
+            if (position < end || !encoding.isEmpty()) {
+                blockedAt = System.nanoTime();
+            } else {
+                halfClosed = true;
+                region = null;
+                requestStream.onNext(next.setDigest(StreamDigest.newBuilder()
+                        .setLength(end - start).setCrc32C(streamCrc)).build());
+                requestStream.onCompleted();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error(name + ": " + e);
+            requestStream.onError(e);
+        }
+    }
+
+    private void send(ChunkEncoder.Encoded chunk) {
+        streamCrc = crc.append(streamCrc, chunk.crc, chunk.rawLength);
+        requestStream.onNext(chunk.fill(next).build());
+        next = Chunk.newBuilder();
+        roundBytes += chunk.rawLength;
+    }
+
+    private ByteBuffer nextSlice(int chunkSize) throws IOException {
+        if (region == null || !region.hasRemaining()) {
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, end - position));
+        }
+        int n = Math.min(chunkSize, region.remaining());
+        ByteBuffer slice = region.slice();
+        slice.limit(n);
+        region.position(region.position() + n);
+        position += n;
+        return slice;
+    }
+
+    @Override
+    public void onNext(UploadStatus uploadStatus) {
+        status = uploadStatus;
+        logger.info(name + ": status: " + String.valueOf(uploadStatus.getCode().getNumber())
+                + " " + uploadStatus.getMessage());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        finished = true;
+        logger.info(name + " Error! " + throwable);
+        finishLatch.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        finished = true;
+        logger.info("finish upload (chunk size: " + String.valueOf(chunkSizes.chunkSize()) + ")");
+        logger.info(name + " Completed!");
+        finishLatch.countDown();
+    }
+
+    /**
+     * @return false if the call did not finish in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finishLatch.await(timeout, unit);
+    }
+
+    public void cancel(String message) {
+        if (requestStream != null) {
+            requestStream.cancel(message, null);
+        }
+    }
+
+    public boolean corrupted() {
+        return status != null && status.getCode() == UploadStatusCode.ChecksumMismatch;
+    }
+
+    public boolean succeeded() {
+        return error == null && status != null && status.getCode() == UploadStatusCode.Ok;
+    }
+
+    public UploadStatus getStatus() {
+        return status;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,111 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+/**
+ * Picks the upload chunk size by hill climbing on measured throughput.
+ *
+ * Starts at {@code minChunkSize} and doubles while throughput keeps improving, steps back
+ * once it gets worse and then settles, probing a neighbour now and then in case the link changed.
+ * A chunk size whose transport stalls (time from running out of send budget to the next
+ * onReady) exceed {@code maxStallNanos} is too coarse for the link and gets halved.
+ * One controller is shared by all uploads of a client, so later uploads start at the learned size.
+ */
+public class ChunkSizeController {
+
+    private static final double IMPROVEMENT = 1.05;
+    private static final double DEGRADATION = 0.90;
+    private static final int PROBE_EVERY = 32;
+    private static final long MIN_WINDOW_NANOS = 50000000L;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long maxStallNanos;
+
+    private int chunkSize;
+    private int direction = 1;
+    private double lastThroughput = 0;
+    private int settledWindows = -1;
+
+    private long windowBytes = 0;
+    private long windowNanos = 0;
+    private long windowStallNanos = 0;
+    private int windowSamples = 0;
+
+    public ChunkSizeController(int minChunkSize, int maxChunkSize, long maxStallNanos) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("bad chunk size range " + minChunkSize + ".." + maxChunkSize);
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.maxStallNanos = maxStallNanos;
+        this.chunkSize = minChunkSize;
+    }
+
+    /**
+     * A controller that never moves, for callers that asked for an explicit chunk size.
+     */
+    public static ChunkSizeController fixed(int chunkSize) {
+        return new ChunkSizeController(chunkSize, chunkSize, Long.MAX_VALUE);
+    }
+
+    public synchronized int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * One send round: {@code bytes} handed to the transport, {@code nanos} from the start of the
+     * round to the next onReady, of which {@code stallNanos} were spent waiting for it.
+     */
+    public synchronized void record(long bytes, long nanos, long stallNanos) {
+        if (minChunkSize == maxChunkSize) {
+            return;
+        }
+        windowBytes += bytes;
+        windowNanos += nanos;
+        windowStallNanos += stallNanos;
+        windowSamples++;
+        if (windowNanos < MIN_WINDOW_NANOS || windowBytes < 8L * chunkSize) {
+            return;
+        }
+        double throughput = (double) windowBytes / windowNanos;
+        long meanStall = windowStallNanos / windowSamples;
+        windowBytes = windowNanos = windowStallNanos = 0;
+        windowSamples = 0;
+
+        if (meanStall > maxStallNanos && chunkSize > minChunkSize) {
+            direction = -1;
+            step(throughput);
+            return;
+        }
+        if (settledWindows >= 0) {
+            if (throughput < lastThroughput * DEGRADATION || ++settledWindows >= PROBE_EVERY) {
+                // conditions changed, or time for a probe: climb again from here
+                settledWindows = -1;
+                step(throughput);
+            }
+            return;
+        }
+        if (lastThroughput == 0 || throughput > lastThroughput * IMPROVEMENT) {
+            step(throughput);
+        } else if (throughput < lastThroughput * DEGRADATION) {
+            // the last step hurt, go back and stay there
+            direction = -direction;
+            step(throughput);
+            settledWindows = 0;
+        } else {
+            settledWindows = 0;
+            lastThroughput = throughput;
+        }
+    }
+
+    private void step(double throughput) {
+        lastThroughput = throughput;
+        long next = direction > 0 ? (long) chunkSize * 2 : chunkSize / 2;
+        int clamped = (int) Math.max(minChunkSize, Math.min(maxChunkSize, next));
+        if (clamped == chunkSize) {
+            // hit a bound, try the other way next time
+            direction = -direction;
+            settledWindows = 0;
+        }
+        chunkSize = clamped;
+    }
+}
@@ -0,0 +1,157 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks the CRC32C of every chunk of one upload stream as it arrives, before it is written, and
+ * keeps the digest of the stream and of the file it writes into.
+ *
+ * The payload is read once: its CRC is checked against the one the client sent and then appended
+ * to the running digests, so verifying costs one CRC pass over bytes that are being copied anyway.
+ * Compressed chunks are inflated first, the CRC is over the bytes the client read. They inflate
+ * into a buffer of the thread, not of the stream: on the server only the pipeline's writer threads
+ * verify, so however many streams are open, inflated chunks take at most one buffer of
+ * {@code maxRawLength} bytes per writer.
+ */
+public class ChunkVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkVerifier.class);
+
+    public static final String XATTR = "user.grpcdemo.crc32c";
+
+    private static final ThreadLocal<byte[]> INFLATED = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private final Crc32c crc = new Crc32c();
+    private final long start;
+    private long offset;
+    private int streamCrc = 0;
+    private int fileCrc;
+    private int chunks = 0;
+    private String mismatch;
+    private final int maxRawLength;
+
+    /**
+     * @param offset       file offset of the first byte of the stream
+     * @param prefixCrc    CRC32C of the file bytes before {@code offset}
+     * @param maxRawLength largest chunk inflated; a server takes its inbound message size, which
+     *                     is what clients keep their chunks to, see {@code HandshakeResponse}
+     */
+    public ChunkVerifier(long offset, int prefixCrc, int maxRawLength) {
+        this.start = offset;
+        this.offset = offset;
+        this.fileCrc = prefixCrc;
+        this.maxRawLength = maxRawLength;
+    }
+
+    public ChunkVerifier(long offset, int prefixCrc) {
+        this(offset, prefixCrc, ChunkCodec.MAX_RAW_LENGTH);
+    }
+
+    public ChunkVerifier(int maxRawLength) {
+        this(0, 0, maxRawLength);
+    }
+
+    /**
+     * @return the uncompressed payload, valid until the next call on this thread, or null if it
+     * does not match the chunk's CRC; the chunk must not be written then
+     * @throws io.grpc.StatusRuntimeException UNIMPLEMENTED if the chunk's codec is not available here
+     */
+    public ByteString verify(Chunk chunk) {
+        ByteString content;
+        try {
+            content = inflate(chunk);
+        } catch (IllegalArgumentException e) {
+            mismatch = String.format("chunk %d at offset %d does not decompress: %s", chunks, offset, e.getMessage());
+            return null;
+        }
+        int length = content.size();
+        int actual = crc.of(content);
+        if (chunk.getHasCrc32C() && actual != chunk.getCrc32C()) {
+            mismatch = String.format("crc32c mismatch in chunk %d at offset %d: sent %s, received %s",
+                    chunks, offset, Crc32c.hex(chunk.getCrc32C()), Crc32c.hex(actual));
+            return null;
+        }
+        streamCrc = crc.append(streamCrc, actual, length);
+        fileCrc = crc.append(fileCrc, actual, length);
+        offset += length;
+        chunks++;
+        return content;
+    }
+
+    private ByteString inflate(Chunk chunk) {
+        if (chunk.getCodec() == Codec.None) {
+            return chunk.getContent();
+        }
+        if (!ChunkCodec.available(chunk.getCodec())) {
+            throw Status.UNIMPLEMENTED.withDescription(chunk.getCodec() + " is not available on this server")
+                    .asRuntimeException();
+        }
+        int rawLength = chunk.getRawLength();
+        if (rawLength < 0 || rawLength > maxRawLength) {
+            throw new IllegalArgumentException("raw length " + rawLength + ", at most " + maxRawLength);
+        }
+        byte[] inflated = INFLATED.get();
+        if (inflated.length < rawLength) {
+            inflated = new byte[rawLength];
+            INFLATED.set(inflated);
+        }
+        ChunkCodec.decompress(chunk.getCodec(), chunk.getContent(), rawLength, inflated);
+        // reused for the next chunk of the thread, the caller is done with it by then
+        return UnsafeByteOperations.unsafeWrap(inflated, 0, rawLength);
+    }
+
+    /**
+     * Compare the client's trailer with what arrived on the stream.
+     */
+    public boolean verify(StreamDigest digest) {
+        long length = offset - start;
+        if (digest.getLength() != length || digest.getCrc32C() != streamCrc) {
+            mismatch = String.format("stream digest mismatch: sent %d bytes crc32c %s, received %d bytes crc32c %s",
+                    digest.getLength(), Crc32c.hex(digest.getCrc32C()), length, Crc32c.hex(streamCrc));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * File offset of the next byte expected on the stream.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    public int streamCrc() {
+        return streamCrc;
+    }
+
+    /**
+     * CRC32C of the file from byte 0 up to {@link #offset()}.
+     */
+    public int fileCrc() {
+        return fileCrc;
+    }
+
+    public UploadStatus mismatchStatus() {
+        return UploadStatus.newBuilder().setCode(UploadStatusCode.ChecksumMismatch).setMessage(mismatch)
+                .setBadOffset(offset).build();
+    }
+
+    /**
+     * Record the digest of a finished file as the {@link #XATTR} xattr, hex like
+     * {@code hdfs dfs -checksum} prints it. With CRC32C block checksums this matches the
+     * COMPOSITE_CRC file checksum of HDFS. The upload does not fail if it can not be stored.
+     */
+    public static void store(Hdfs hdfs, String path, int crc) {
+        try {
+            hdfs.setXAttr(path, XATTR, Crc32c.hex(crc).getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("can not store crc32c of " + path + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-defined chunking with FastCDC: a gear rolling hash over the bytes cuts a chunk where its
+ * masked bits are all zero, so an insert early in a file only moves the boundaries around it and
+ * the chunks after it keep their hashes. Normalized chunking, a stricter mask below the average
+ * size and a looser one above it, keeps sizes close to the average.
+ *
+ * The gear table comes from a fixed seed; every client must cut the same way for chunks to match.
+ */
+public final class ContentChunker {
+
+    public static final int MIN_SIZE = 256 * 1024;
+    public static final int AVG_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final long MAP_REGION_SIZE = 256L * 1024 * 1024;
+    private static final long[] GEAR = gear(0x6772706364656d6fL);
+    // the high bits of the gear hash depend on the most bytes
+    private static final long MASK_SMALL = highBits(22);
+    private static final long MASK_LARGE = highBits(18);
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize largest chunk, at most {@link #MAX_SIZE}; smaller limits cut differently
+     */
+    public ContentChunker(int maxSize) {
+        this.maxSize = Math.max(MIN_SIZE, Math.min(MAX_SIZE, maxSize));
+    }
+
+    /**
+     * @return offset and length of every chunk of the file, in order
+     */
+    public List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<long[]> chunks = new ArrayList<>((int) Math.min(Integer.MAX_VALUE, size / AVG_SIZE + 1));
+        long position = 0;
+        while (position < size) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_REGION_SIZE, size - position));
+            boolean last = position + region.limit() == size;
+            int at = 0;
+            // stop early enough that a full chunk always fits into the region, unless it is the file's end
+            while (at < region.limit() && (last || region.limit() - at >= maxSize)) {
+                int length = cut(region, at, region.limit() - at);
+                chunks.add(new long[]{position + at, length});
+                at += length;
+            }
+            position += at;
+        }
+        return chunks;
+    }
+
+    private int cut(MappedByteBuffer region, int from, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int n = Math.min(available, maxSize);
+        int normal = Math.min(n, AVG_SIZE);
+        long fp = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[region.get(from + i) & 0xff];
+            if ((fp & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < n; i++) {
+            fp = (fp << 1) + GEAR[region.get(from + i) & 0xff];
+            if ((fp & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    private static long highBits(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    private static long[] gear(long seed) {
+        long[] table = new long[256];
+        long x = seed;
+        for (int i = 0; i < table.length; i++) {
+            // SplitMix64, so the table does not depend on a library's random generator
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+}
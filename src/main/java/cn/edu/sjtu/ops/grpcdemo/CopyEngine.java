@@ -0,0 +1,338 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side of {@code Copy}: copies and moves of files and directory trees within HDFS.
+ *
+ * A move is one rename on the NameNode, atomic also when it replaces a file; a non-empty directory
+ * is not replaced. HDFS has no way to copy bytes without reading them, so a copy reads them, but spread over a fork-join pool: by
+ * file across a tree, and by block-aligned range within a file larger than {@link #rangeSize},
+ * each range into a part file that {@link Hdfs#concat} joins by moving blocks on the NameNode.
+ * Throughput then grows with the pool's parallelism up to what the DataNodes deliver, instead of
+ * being one stream through this server.
+ *
+ * A copy is written under a hidden name next to the target and renamed into place when complete,
+ * so a failed copy leaves no half-copied target behind. A file target is replaced atomically. A
+ * directory target is not: it is renamed aside first and deleted after the copy took its place,
+ * so readers may briefly find no target, though never a mix of old and new files, and a failed
+ * rename puts the old one back. Xattrs are copied along, archives, packs and stored CRCs stay valid.
+ */
+public class CopyEngine implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CopyEngine.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final ForkJoinPool pool;
+    private final long rangeSize;
+
+    /**
+     * @param parallelism files and ranges copied at once, each one on a shared hdfs handle
+     * @param rangeSize   files larger than this are copied in ranges of about this size
+     */
+    public CopyEngine(int parallelism, long rangeSize) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Runs the request on the pool, a copy can take long and must not hold a gRPC thread.
+     */
+    public void serve(final CopyRequest request, final StreamObserver<CopyResult> responseObserver) {
+        if (request.getSource().isEmpty() || request.getDestination().isEmpty()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("source and destination are required")
+                    .asRuntimeException());
+            return;
+        }
+        pool.execute(() -> {
+            try {
+                responseObserver.onNext(request.getMove() ? move(request) : copy(request));
+                responseObserver.onCompleted();
+            } catch (StatusRuntimeException e) {
+                responseObserver.onError(e);
+            } catch (FileAlreadyExistsException e) {
+                responseObserver.onError(Status.ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
+            } catch (IOException | RuntimeException e) {
+                logger.error((request.getMove() ? "move" : "copy") + " of " + request.getSource() + " to "
+                        + request.getDestination() + " failed: " + e);
+                responseObserver.onError(Status.INTERNAL.withDescription(String.valueOf(e)).asRuntimeException());
+            }
+        });
+    }
+
+    private CopyResult move(CopyRequest request) throws IOException {
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            FileStatus status = source(hdfs, request.getSource());
+            if (!hdfs.rename(request.getSource(), request.getDestination(), request.getOverwrite())) {
+                throw new IOException("can not move " + request.getSource() + " to " + request.getDestination());
+            }
+            logger.info("moved " + request.getSource() + " to " + request.getDestination());
+            return CopyResult.newBuilder().setFiles(status.isDirectory() ? 0 : 1)
+                    .setBytes(status.isDirectory() ? 0 : status.getLen()).build();
+        }
+    }
+
+    private CopyResult copy(CopyRequest request) throws IOException {
+        String src = request.getSource();
+        String dst = request.getDestination();
+        String tmp = hidden(dst, "copying");
+        boolean directory;
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            directory = source(hdfs, src).isDirectory();
+            if (!request.getOverwrite() && hdfs.exists(dst)) {
+                throw Status.ALREADY_EXISTS.withDescription(dst + " exists").asRuntimeException();
+            }
+        }
+        long started = System.nanoTime();
+        Progress progress = new Progress();
+        try {
+            pool.invoke(directory ? new TreeTask(src, tmp, progress) : new FileTask(src, tmp, progress));
+            try (Hdfs hdfs = Hdfs.getInstance()) {
+                if (directory && request.getOverwrite() && hdfs.exists(dst)) {
+                    replace(hdfs, tmp, dst);
+                } else if (!hdfs.rename(tmp, dst, request.getOverwrite())) {
+                    throw new IOException("can not rename " + tmp + " to " + dst);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            discard(tmp);
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            discard(tmp);
+            throw e;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        logger.info(String.format("copied %s to %s: %d files, %d bytes in %.1fs, %.1f MB/s", src, dst,
+                progress.files.get(), progress.bytes.get(), seconds, progress.bytes.get() / 1e6 / seconds));
+        return CopyResult.newBuilder().setFiles(progress.files.get()).setBytes(progress.bytes.get()).build();
+    }
+
+    /**
+     * A directory target is replaced as a whole, like rename replaces a file, but rename does not
+     * replace a non-empty directory: move it aside, put the copy in its place, then delete it.
+     */
+    private static void replace(Hdfs hdfs, String tmp, String dst) throws IOException {
+        String old = hidden(dst, "replaced");
+        if (!hdfs.rename(dst, old, false)) {
+            throw new IOException("can not move " + dst + " aside");
+        }
+        boolean renamed = false;
+        try {
+            renamed = hdfs.rename(tmp, dst, false);
+        } finally {
+            if (!renamed) {
+                try {
+                    hdfs.rename(old, dst, false);
+                } catch (IOException e) {
+                    logger.error("can not move " + old + " back to " + dst + ": " + e);
+                }
+            }
+        }
+        if (!renamed) {
+            throw new IOException("can not rename " + tmp + " to " + dst);
+        }
+        try {
+            hdfs.purge(old);
+        } catch (IOException e) {
+            logger.error("replaced " + dst + " but can not remove " + old + ": " + e);
+        }
+    }
+
+    /**
+     * @return a hidden name next to {@code path}
+     */
+    static String hidden(String path, String what) {
+        int slash = path.lastIndexOf('/');
+        return path.substring(0, slash + 1) + "." + path.substring(slash + 1) + "." + what + "-" + UUID.randomUUID();
+    }
+
+    private static FileStatus source(Hdfs hdfs, String path) throws IOException {
+        try {
+            return hdfs.getFileStatus(path);
+        } catch (FileNotFoundException e) {
+            throw Status.NOT_FOUND.withDescription("no such file " + path).asRuntimeException();
+        }
+    }
+
+    private static void discard(String tmp) {
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            hdfs.purge(tmp);
+        } catch (IOException e) {
+            logger.error("can not remove " + tmp + ": " + e);
+        }
+    }
+
+    private static final class Progress {
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * Creates the directory, then copies its children in parallel. The hdfs handle is given back
+     * before forking, a deep tree would hold the whole pool otherwise.
+     */
+    private final class TreeTask extends RecursiveAction {
+        final String src;
+        final String dst;
+        final Progress progress;
+
+        TreeTask(String src, String dst, Progress progress) {
+            this.src = src;
+            this.dst = dst;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> children = new ArrayList<>();
+            try (Hdfs hdfs = Hdfs.getInstance()) {
+                hdfs.mkdir(dst);
+                copyXAttrs(hdfs, src, dst);
+                // uncached, a file created within the cache's TTL must not be skipped
+                RemoteIterator<FileStatus> entries = hdfs.listIterator(src);
+                while (entries.hasNext()) {
+                    FileStatus child = entries.next();
+                    String name = child.getPath().getName();
+                    children.add(child.isDirectory()
+                            ? new TreeTask(src + "/" + name, dst + "/" + name, progress)
+                            : new FileTask(src + "/" + name, dst + "/" + name, progress));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(children);
+        }
+    }
+
+    /**
+     * Copies one file, in ranges joined by concat if it is large.
+     */
+    private final class FileTask extends RecursiveAction {
+        final String src;
+        final String dst;
+        final Progress progress;
+
+        FileTask(String src, String dst, Progress progress) {
+            this.src = src;
+            this.dst = dst;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long length;
+                long blockSize;
+                try (Hdfs hdfs = Hdfs.getInstance()) {
+                    FileStatus status = hdfs.getFileStatus(src);
+                    length = status.getLen();
+                    blockSize = Math.max(1, status.getBlockSize());
+                    if (length <= rangeSize) {
+                        copyRange(hdfs, src, dst, 0, length);
+                        copyXAttrs(hdfs, src, dst);
+                        progress.files.incrementAndGet();
+                        progress.bytes.addAndGet(length);
+                        return;
+                    }
+                }
+                // whole blocks per range, the parts then concat without partial blocks in between
+                long step = Math.max(blockSize, rangeSize / blockSize * blockSize);
+                String dir = dst.substring(0, dst.lastIndexOf('/'));
+                String prefix = dir + "/." + dst.substring(dst.lastIndexOf('/') + 1) + ".part-";
+                List<String> parts = new ArrayList<>();
+                List<RangeTask> ranges = new ArrayList<>();
+                for (long start = 0; start < length; start += step) {
+                    String part = prefix + parts.size();
+                    parts.add(part);
+                    ranges.add(new RangeTask(src, part, start, Math.min(length, start + step)));
+                }
+                invokeAll(ranges);
+                try (Hdfs hdfs = Hdfs.getInstance()) {
+                    hdfs.concat(dst, parts);
+                    copyXAttrs(hdfs, src, dst);
+                }
+                progress.files.incrementAndGet();
+                progress.bytes.addAndGet(length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        final String src;
+        final String part;
+        final long start;
+        final long end;
+
+        RangeTask(String src, String part, long start, long end) {
+            this.src = src;
+            this.part = part;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            try (Hdfs hdfs = Hdfs.getInstance()) {
+                copyRange(hdfs, src, part, start, end);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static void copyRange(Hdfs hdfs, String src, String dst, long start, long end) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FSDataInputStream in = hdfs.open(src); FSDataOutputStream out = hdfs.create(dst, false)) {
+            in.seek(start);
+            long position = start;
+            while (position < end) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (n < 0) {
+                    throw new IOException(src + " ended at " + position + ", expected " + end);
+                }
+                out.write(buffer, 0, n);
+                position += n;
+            }
+        }
+    }
+
+    private static void copyXAttrs(Hdfs hdfs, String src, String dst) throws IOException {
+        Map<String, byte[]> xattrs;
+        try {
+            xattrs = hdfs.getXAttrs(src);
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> xattr : xattrs.entrySet()) {
+            hdfs.setXAttr(dst, xattr.getKey(), xattr.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
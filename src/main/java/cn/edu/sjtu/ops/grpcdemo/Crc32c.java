@@ -0,0 +1,231 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C of chunk payloads, not thread safe.
+ *
+ * On Java 9+ this is {@code java.util.zip.CRC32C}, which the JIT turns into the SSE4.2/CLMUL
+ * instructions; it is looked up reflectively because the build still targets Java 8, where Hadoop's
+ * pure Java implementation is used instead. ByteStrings are fed through their backing arrays or
+ * buffers (mapped file slices on the client), so nothing is copied.
+ *
+ * CRCs of consecutive ranges are joined with {@link #combine}, which lets one pass over the bytes
+ * give both the per-chunk CRC and the digest of the whole stream.
+ */
+public final class Crc32c {
+
+    /** Reflected Castagnoli polynomial. */
+    private static final int POLY = 0x82F63B78;
+
+    private static final MethodHandle NEW_CRC32C;
+    private static final MethodHandle UPDATE_BUFFER;
+
+    static {
+        MethodHandle create = null;
+        MethodHandle update = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            create = lookup.findConstructor(Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            // Java 8
+        }
+        NEW_CRC32C = create;
+        UPDATE_BUFFER = update;
+    }
+
+    private final Checksum checksum;
+    private final ByteOutput sink = new ChecksumOutput();
+    private byte[] scratch;
+    private long shiftLength = -1;
+    private int[] shift;
+
+    public Crc32c() {
+        Checksum c;
+        if (NEW_CRC32C != null) {
+            try {
+                c = (Checksum) NEW_CRC32C.invokeExact();
+            } catch (Throwable e) {
+                c = new PureJavaCrc32C();
+            }
+        } else {
+            c = new PureJavaCrc32C();
+        }
+        this.checksum = c;
+    }
+
+    /**
+     * @return true if the intrinsified JDK implementation is in use
+     */
+    public static boolean accelerated() {
+        return NEW_CRC32C != null;
+    }
+
+    public int of(ByteString bytes) {
+        checksum.reset();
+        try {
+            UnsafeByteOperations.unsafeWriteTo(bytes, sink);
+        } catch (IOException e) {
+            // the sink does not throw
+            throw new UncheckedIOException(e);
+        }
+        return (int) checksum.getValue();
+    }
+
+    public int of(ByteBuffer buffer) {
+        checksum.reset();
+        update(buffer.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * The CRC of A followed by B, from the CRCs of both and the length of B.
+     * The operator for the last length is kept, chunks of a stream are mostly of the same size.
+     */
+    public int append(int crcA, int crcB, long lengthB) {
+        if (lengthB <= 0) {
+            return crcA;
+        }
+        if (lengthB != shiftLength) {
+            shift = shiftOperator(lengthB);
+            shiftLength = lengthB;
+        }
+        return times(shift, crcA) ^ crcB;
+    }
+
+    public static int combine(int crcA, int crcB, long lengthB) {
+        if (lengthB <= 0) {
+            return crcA;
+        }
+        return times(shiftOperator(lengthB), crcA) ^ crcB;
+    }
+
+    public static String hex(int crc) {
+        return String.format("%08x", crc);
+    }
+
+    private void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (UPDATE_BUFFER != null) {
+            try {
+                UPDATE_BUFFER.invokeExact(checksum, buffer);
+                return;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (scratch == null) {
+            scratch = new byte[64 * 1024];
+        }
+        while (buffer.hasRemaining()) {
+            int n = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, n);
+            checksum.update(scratch, 0, n);
+        }
+    }
+
+    /**
+     * GF(2) matrix that advances a CRC over {@code length} zero bytes, built by repeated squaring
+     * as in zlib's crc32_combine.
+     */
+    private static int[] shiftOperator(long length) {
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        // one zero bit
+        odd[0] = POLY;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two, four, then eight zero bits
+        square(even, odd);
+        square(odd, even);
+        square(even, odd);
+        int[] result = null;
+        int[] op = even;
+        int[] spare = odd;
+        while (true) {
+            if ((length & 1) != 0) {
+                result = result == null ? op.clone() : multiply(op, result);
+            }
+            length >>>= 1;
+            if (length == 0) {
+                return result;
+            }
+            square(spare, op);
+            int[] t = op;
+            op = spare;
+            spare = t;
+        }
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] target, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            target[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    /** a applied after b */
+    private static int[] multiply(int[] a, int[] b) {
+        int[] c = new int[32];
+        for (int n = 0; n < 32; n++) {
+            c[n] = times(a, b[n]);
+        }
+        return c;
+    }
+
+    private final class ChecksumOutput extends ByteOutput {
+        @Override
+        public void write(byte value) {
+            checksum.update(value);
+        }
+
+        @Override
+        public void write(byte[] value, int offset, int length) {
+            checksum.update(value, offset, length);
+        }
+
+        @Override
+        public void writeLazy(byte[] value, int offset, int length) {
+            checksum.update(value, offset, length);
+        }
+
+        @Override
+        public void write(ByteBuffer value) {
+            update(value);
+        }
+
+        @Override
+        public void writeLazy(ByteBuffer value) {
+            update(value);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the chunks a {@code ProbeChunks} answer asked for on one {@code UploadDeduplicated} call,
+ * driven by onReady like {@link ChunkSender}, and ends with the digest of the whole file.
+ */
+public class DedupSender implements ClientResponseObserver<Chunk, UploadStatus> {
+    private static final Logger logger = LoggerFactory.getLogger(DedupSender.class);
+
+    private final String name;
+    private final FileChannel channel;
+    private final List<long[]> chunks;
+    private final ChunkManifest manifest;
+    private final ChunkPresence presence;
+    private final long inFlightBudget;
+    private final CountDownLatch finishLatch = new CountDownLatch(1);
+
+    private ClientCallStreamObserver<Chunk> requestStream;
+    private int next = 0;
+    private long sentBytes = 0;
+    private boolean halfClosed = false;
+    private volatile boolean finished = false;
+    private volatile UploadStatus status;
+    private volatile Throwable error;
+
+    /**
+     * @param chunks offset and length of every manifest entry in the file
+     */
+    public DedupSender(String name, FileChannel channel, List<long[]> chunks, ChunkManifest manifest,
+                       ChunkPresence presence, long inFlightBudget) {
+        this.name = name;
+        this.channel = channel;
+        this.chunks = chunks;
+        this.manifest = manifest;
+        this.presence = presence;
+        this.inFlightBudget = inFlightBudget;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Chunk> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(this::pump);
+    }
+
+    private synchronized void pump() {
+        if (finished || halfClosed) {
+            return;
+        }
+        try {
+            long roundBytes = 0;
+            while (next < presence.getMissingCount() && (requestStream.isReady() || roundBytes < inFlightBudget)) {
+                int index = presence.getMissing(next++);
+                ChunkRef ref = manifest.getChunks(index);
+                long[] chunk = chunks.get(index);
+                ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1]);
+                requestStream.onNext(Chunk.newBuilder().setUploadId(presence.getUploadId()).setPartIndex(index)
+                        .setContent(UnsafeByteOperations.unsafeWrap(slice))
+                        .setCrc32C(ref.getCrc32C()).setHasCrc32C(true).build());
+                roundBytes += chunk[1];
+                sentBytes += chunk[1];
+            }
+            if (next < presence.getMissingCount()) {
+                return;
+            }
+            halfClosed = true;
+            long length = 0;
+            int crc = 0;
+            Crc32c combiner = new Crc32c();
+            for (ChunkRef ref : manifest.getChunksList()) {
+                crc = combiner.append(crc, ref.getCrc32C(), ref.getLength());
+                length += ref.getLength();
+            }
+            requestStream.onNext(Chunk.newBuilder().setUploadId(presence.getUploadId())
+                    .setDigest(StreamDigest.newBuilder().setLength(length).setCrc32C(crc)).build());
+            requestStream.onCompleted();
+        } catch (IOException | RuntimeException e) {
+            logger.error(name + ": " + e);
+            requestStream.onError(e);
+        }
+    }
+
+    @Override
+    public void onNext(UploadStatus uploadStatus) {
+        status = uploadStatus;
+        logger.info(name + ": status: " + String.valueOf(uploadStatus.getCode().getNumber())
+                + " " + uploadStatus.getMessage());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        finished = true;
+        logger.info(name + " Error! " + throwable);
+        finishLatch.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        finished = true;
+        logger.info(name + " Completed! sent " + presence.getMissingCount() + " of " + manifest.getChunksCount()
+                + " chunks, " + sentBytes + " bytes");
+        finishLatch.countDown();
+    }
+
+    /**
+     * @return false if the call did not finish in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finishLatch.await(timeout, unit);
+    }
+
+    public void cancel(String message) {
+        if (requestStream != null) {
+            requestStream.cancel(message, null);
+        }
+    }
+
+    public boolean succeeded() {
+        return error == null && status != null && status.getCode() == UploadStatusCode.Ok;
+    }
+
+    public UploadStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,492 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of deduplicated uploads.
+ *
+ * Chunks are stored once, content-addressed, under {@link #CHUNK_DIR} and listed in a
+ * {@link ChunkIndex}. {@code ProbeChunks} answers which chunks of a manifest are not stored yet;
+ * {@code UploadDeduplicated} then receives only those, checks them against their SHA-256 and stores
+ * them. The uploaded file is then assembled on the server by copying its chunks, stored ones as well
+ * as those just sent, out of the chunk store into an ordinary file: uploading a file the server has
+ * seen before sends little more than its manifest, the data moves within the cluster only. Every
+ * chunk is checked against its hash again as it is copied, and the file's CRC is the one of the
+ * bytes copied, not the client's word.
+ *
+ * The chunk store is a cache of what clients may send again. A chunk not used by an upload for
+ * {@code chunkTtlMillis} is deleted, unless a probed upload still counts on it: probes pin the
+ * chunks of their manifest until the upload is over or expired.
+ */
+public class DedupStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DedupStore.class);
+
+    /** Everything the store writes is below this directory. */
+    public static final String ROOT = "/dedup";
+    public static final String CHUNK_DIR = ROOT + "/chunks";
+    private static final long PENDING_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(DedupStore::sha256);
+    private static final ThreadLocal<Crc32c> CRC = ThreadLocal.withInitial(Crc32c::new);
+
+    private final ChunkIndex index;
+    private final long chunkTtlMillis;
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    /** Uploads counting on a chunk, by hash; the lock also orders probes against the collector. */
+    private final Map<ByteString, Integer> pins = new HashMap<>();
+    private final ScheduledExecutorService collector;
+
+    /**
+     * A probed manifest waiting for its missing chunks.
+     */
+    final class Pending {
+        final String id;
+        final ChunkManifest manifest;
+        final BitSet missing;
+        final Set<ByteString> pinned;
+        final long createdAt = System.currentTimeMillis();
+        private boolean released = false;
+
+        Pending(String id, ChunkManifest manifest, BitSet missing, Set<ByteString> pinned) {
+            this.id = id;
+            this.manifest = manifest;
+            this.missing = missing;
+            this.pinned = pinned;
+        }
+
+        long offset(int index) {
+            long offset = 0;
+            for (int i = 0; i < index; i++) {
+                offset += manifest.getChunks(i).getLength();
+            }
+            return offset;
+        }
+
+        /**
+         * Let the collector have the chunks again; once, whichever way the upload ends.
+         */
+        void release() {
+            synchronized (pins) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                for (ByteString hash : pinned) {
+                    pins.computeIfPresent(hash, (h, n) -> n == 1 ? null : n - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param chunkTtlMillis how long a chunk no upload used is kept
+     */
+    public DedupStore(ChunkIndex index, long chunkTtlMillis) {
+        this.index = index;
+        this.chunkTtlMillis = chunkTtlMillis;
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dedup-chunk-collector");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(chunkTtlMillis / 4, TimeUnit.HOURS.toMillis(1)));
+        collector.scheduleWithFixedDelay(() -> {
+            try {
+                collect(System.currentTimeMillis());
+            } catch (IOException | RuntimeException e) {
+                logger.error("collecting dedup chunks failed: " + e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        collector.shutdownNow();
+    }
+
+    public static String chunkPath(byte[] hash) {
+        String hex = hex(hash);
+        return CHUNK_DIR + "/" + hex.substring(0, 2) + "/" + hex;
+    }
+
+    public ChunkPresence probe(ChunkManifest manifest) {
+        sweep();
+        BitSet missing = new BitSet(manifest.getChunksCount());
+        for (int i = 0; i < manifest.getChunksCount(); i++) {
+            ChunkRef ref = manifest.getChunks(i);
+            if (ref.getSha256().size() != ChunkIndex.HASH_LENGTH || ref.getLength() <= 0
+                    || ref.getLength() > ContentChunker.MAX_SIZE) {
+                throw Status.INVALID_ARGUMENT.withDescription(String.format("chunk %d: %d byte hash, %d bytes",
+                        i, ref.getSha256().size(), ref.getLength())).asRuntimeException();
+            }
+        }
+        Set<ByteString> pinned = new HashSet<>();
+        synchronized (pins) {
+            for (int i = 0; i < manifest.getChunksCount(); i++) {
+                ByteString hash = manifest.getChunks(i).getSha256();
+                if (!pinned.add(hash)) {
+                    continue;
+                }
+                pins.merge(hash, 1, Integer::sum);
+                if (!index.contains(hash.toByteArray())) {
+                    missing.set(i);
+                }
+            }
+        }
+        String id = UUID.randomUUID().toString();
+        pending.put(id, new Pending(id, manifest, missing, pinned));
+        logger.info(String.format("dedup %s for %s: %d of %d chunks missing", id, manifest.getFileName(),
+                missing.cardinality(), manifest.getChunksCount()));
+        ChunkPresence.Builder presence = ChunkPresence.newBuilder().setUploadId(id);
+        for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+            presence.addMissing(i);
+        }
+        return presence.build();
+    }
+
+    /**
+     * Probes nobody followed up on.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (now - p.createdAt > PENDING_TTL_MS) {
+                it.remove();
+                p.release();
+            }
+        }
+    }
+
+    /**
+     * Delete the chunks no upload used since {@code now - chunkTtlMillis} and none is pinned by, and
+     * temporary files left behind that long.
+     */
+    void collect(long now) throws IOException {
+        int deleted = 0;
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            FileStatus[] dirs;
+            try {
+                dirs = hdfs.list(CHUNK_DIR);
+            } catch (FileNotFoundException e) {
+                // nothing stored yet
+                return;
+            }
+            for (FileStatus dir : dirs) {
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+                for (FileStatus file : hdfs.list(CHUNK_DIR + "/" + dir.getPath().getName())) {
+                    if (now - file.getModificationTime() < chunkTtlMillis) {
+                        continue;
+                    }
+                    String name = file.getPath().getName();
+                    String path = CHUNK_DIR + "/" + dir.getPath().getName() + "/" + name;
+                    byte[] hash = unhex(name);
+                    if (hash == null) {
+                        hdfs.purge(path);
+                        continue;
+                    }
+                    // under the lock, or a probe could find the chunk and pin it just before it goes
+                    synchronized (pins) {
+                        if (pins.containsKey(ByteString.copyFrom(hash))) {
+                            continue;
+                        }
+                        index.remove(hash);
+                        hdfs.purge(path);
+                    }
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            logger.info("deleted " + deleted + " dedup chunks unused for " + chunkTtlMillis + " ms");
+        }
+    }
+
+    public StreamObserver<Chunk> newObserver(final StreamObserver<UploadStatus> responseObserver) {
+        return new StreamObserver<Chunk>() {
+            Pending upload;
+            Hdfs hdfs = null;
+            StreamDigest digest;
+            /** Chunks stored by this stream, fresh in the store. */
+            final Set<ByteString> sent = new HashSet<>();
+            boolean rejected = false;
+
+            public void onNext(Chunk chunk) {
+                if (rejected) {
+                    return;
+                }
+                try {
+                    if (upload == null && !start(chunk)) {
+                        return;
+                    }
+                    if (chunk.hasDigest()) {
+                        digest = chunk.getDigest();
+                        return;
+                    }
+                    int i = chunk.getPartIndex();
+                    if (i < 0 || i >= upload.manifest.getChunksCount() || !upload.missing.get(i)) {
+                        reject(Status.INVALID_ARGUMENT, "chunk " + i + " was not asked for");
+                        return;
+                    }
+                    ChunkRef ref = upload.manifest.getChunks(i);
+                    ByteString content = chunk.getContent();
+                    if (content.size() != ref.getLength() || CRC.get().of(content) != ref.getCrc32C()
+                            || !Arrays.equals(sha256(content), ref.getSha256().toByteArray())) {
+                        corrupted(i);
+                        return;
+                    }
+                    store(ref.getSha256().toByteArray(), content);
+                    sent.add(ref.getSha256());
+                    upload.missing.clear(i);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private boolean start(Chunk chunk) throws IOException {
+                // taking it out of the map makes this stream the only one for the upload
+                upload = pending.remove(chunk.getUploadId());
+                if (upload == null) {
+                    return reject(Status.NOT_FOUND, "unknown or expired dedup upload " + chunk.getUploadId());
+                }
+                hdfs = Hdfs.getInstance();
+                return true;
+            }
+
+            /**
+             * Content-addressed, so a chunk that raced in from another upload is simply replaced by
+             * the same bytes.
+             */
+            private void store(byte[] hash, ByteString content) throws IOException {
+                String path = chunkPath(hash);
+                String tmp = path + "." + upload.id;
+                try (FSDataOutputStream out = hdfs.create(tmp, true)) {
+                    content.writeTo(out);
+                }
+                if (!hdfs.rename(tmp, path, true)) {
+                    throw new IOException("can not rename " + tmp + " to " + path);
+                }
+                index.add(hash);
+            }
+
+            private boolean reject(Status status, String message) {
+                rejected = true;
+                logger.warn(message);
+                release();
+                responseObserver.onError(status.withDescription(message).asRuntimeException());
+                return false;
+            }
+
+            private void corrupted(int i) {
+                rejected = true;
+                long offset = upload.offset(i);
+                logger.warn("dedup " + upload.id + ": chunk " + i + " at " + offset + " does not match its hash");
+                release();
+                responseObserver.onNext(UploadStatus.newBuilder().setCode(UploadStatusCode.ChecksumMismatch)
+                        .setBadOffset(offset).setMessage("chunk " + i + " does not match the manifest").build());
+                responseObserver.onCompleted();
+            }
+
+            public void onError(Throwable throwable) {
+                logger.warn("dedup upload error: " + throwable);
+                release();
+            }
+
+            public void onCompleted() {
+                if (rejected) {
+                    return;
+                }
+                if (upload == null) {
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("empty stream").asRuntimeException());
+                    return;
+                }
+                UploadStatus status;
+                if (!upload.missing.isEmpty()) {
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                            .setMessage(upload.missing.cardinality() + " chunks were not sent").build();
+                } else if (digest == null) {
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                            .setMessage("no stream digest").build();
+                } else {
+                    String path = "/" + Thread.currentThread().getName() + "/" + UUID.randomUUID().toString();
+                    try {
+                        status = assemble(path);
+                    } catch (IOException e) {
+                        logger.error("can not assemble " + path + ": " + e);
+                        status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                                .setMessage(String.valueOf(e)).build();
+                    }
+                }
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            /**
+             * Copy the chunks into a hidden file next to {@code path}, checking each against its
+             * hash, and put it in place if the bytes are the ones the client's digest describes.
+             */
+            private UploadStatus assemble(String path) throws IOException {
+                hdfs.mkdir(path.substring(0, path.lastIndexOf('/')));
+                String tmp = CopyEngine.hidden(path, "assembling");
+                ChunkManifest manifest = upload.manifest;
+                Crc32c crc = CRC.get();
+                MessageDigest sha = SHA256.get();
+                byte[] buffer = new byte[ContentChunker.MAX_SIZE];
+                int fileCrc = 0;
+                long length = 0;
+                String damaged = null;
+                Set<ByteString> used = new HashSet<>();
+                try (FSDataOutputStream out = hdfs.create(tmp, true)) {
+                    for (int i = 0; i < manifest.getChunksCount(); i++) {
+                        ChunkRef ref = manifest.getChunks(i);
+                        byte[] hash = ref.getSha256().toByteArray();
+                        int n = ref.getLength();
+                        try (FSDataInputStream in = hdfs.open(chunkPath(hash))) {
+                            in.readFully(buffer, 0, n);
+                            if (in.read() >= 0) {
+                                throw new IOException("longer than " + n + " bytes");
+                            }
+                        } catch (IOException e) {
+                            damaged = String.format("stored chunk %d at %d is unreadable: %s", i, length, e);
+                            index.remove(hash);
+                            break;
+                        }
+                        sha.update(buffer, 0, n);
+                        if (!Arrays.equals(sha.digest(), hash)) {
+                            damaged = String.format("stored chunk %d at %d does not match its hash", i, length);
+                            index.remove(hash);
+                            hdfs.purge(chunkPath(hash));
+                            break;
+                        }
+                        out.write(buffer, 0, n);
+                        fileCrc = crc.append(fileCrc, crc.of(ByteBuffer.wrap(buffer, 0, n)), n);
+                        length += n;
+                        used.add(ref.getSha256());
+                    }
+                } catch (IOException e) {
+                    hdfs.purge(tmp);
+                    throw e;
+                }
+                if (damaged != null || digest.getLength() != length || digest.getCrc32C() != fileCrc) {
+                    hdfs.purge(tmp);
+                    String message = damaged != null ? damaged + ", probe again"
+                            : String.format("stream digest: sent %d bytes crc32c %s, assembled %d bytes crc32c %s",
+                            digest.getLength(), Crc32c.hex(digest.getCrc32C()), length, Crc32c.hex(fileCrc));
+                    logger.warn("dedup " + upload.id + ": " + message);
+                    return UploadStatus.newBuilder().setCode(damaged != null ? UploadStatusCode.Failed
+                            : UploadStatusCode.ChecksumMismatch).setMessage(message).build();
+                }
+                ChunkVerifier.store(hdfs, tmp, fileCrc);
+                if (!hdfs.rename(tmp, path, false)) {
+                    hdfs.purge(tmp);
+                    throw new IOException("can not rename " + tmp + " to " + path);
+                }
+                used.removeAll(sent);
+                touch(used);
+                logger.info("dedup " + upload.id + " assembled as " + path + " from " + manifest.getChunksCount()
+                        + " chunks, " + used.size() + " of them stored before");
+                return UploadStatus.newBuilder().setCode(UploadStatusCode.Ok).setMessage(path).build();
+            }
+
+            /**
+             * Chunks used again are kept for another {@code chunkTtlMillis}.
+             */
+            private void touch(Set<ByteString> used) {
+                long now = System.currentTimeMillis();
+                for (ByteString hash : used) {
+                    try {
+                        hdfs.setTimes(chunkPath(hash.toByteArray()), now, -1);
+                    } catch (IOException e) {
+                        logger.warn("can not touch chunk " + hex(hash.toByteArray()) + ": " + e);
+                    }
+                }
+            }
+
+            private void release() {
+                if (upload != null) {
+                    upload.release();
+                }
+                if (hdfs != null) {
+                    try {
+                        hdfs.close();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    hdfs = null;
+                }
+            }
+        };
+    }
+
+    private static byte[] sha256(ByteString content) {
+        MessageDigest sha = SHA256.get();
+        for (java.nio.ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+            sha.update(buffer);
+        }
+        return sha.digest();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JRE has SHA-256", e);
+        }
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the hash a chunk file is named after, null for other names
+     */
+    static byte[] unhex(String name) {
+        if (name.length() != 2 * ChunkIndex.HASH_LENGTH) {
+            return null;
+        }
+        byte[] hash = new byte[ChunkIndex.HASH_LENGTH];
+        for (int i = 0; i < hash.length; i++) {
+            int high = Character.digit(name.charAt(2 * i), 16);
+            int low = Character.digit(name.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            hash[i] = (byte) (high << 4 | low);
+        }
+        return hash;
+    }
+}
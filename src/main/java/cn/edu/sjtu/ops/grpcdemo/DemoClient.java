@@ -1,135 +1,749 @@
 package cn.edu.sjtu.ops.grpcdemo;
 
 import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
 import cn.edu.sjtu.ops.grpcdemo.DemoServiceGrpc.*;
-import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.CountDownLatch;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cn.edu.sjtu.ops.grpcdemo.DemoServiceGrpc.newBlockingStub;
 import static cn.edu.sjtu.ops.grpcdemo.DemoServiceGrpc.newStub;
 
-public class DemoClient {
+public class DemoClient implements Closeable {
 
-    private final ManagedChannel channel;
-    private final DemoServiceBlockingStub blockingStub;
-    private final DemoServiceStub asyncStub;
+    private final ChannelPool channels;
+    private final ExecutorService uploads;
+    private final ExecutorService compressors;
     private static Logger logger;
 
+    public static final long DEFAULT_IN_FLIGHT_BUDGET = 1024 * 1024;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+    // what gRPC servers accept when they don't answer the handshake
+    private static final int GRPC_DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+    // room for the Chunk fields around the payload
+    private static final int CHUNK_HEADER_ROOM = 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long MIN_PART_SIZE = 1024 * 1024;
+    // ranged downloads start with this much, which also brings back the file size
+    private static final long FIRST_RANGE = 8 * 1024 * 1024;
+    private static final long MAX_STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    private final int maxMessageSize;
+    private volatile long inFlightBudget = DEFAULT_IN_FLIGHT_BUDGET;
+    private int maxChunkSize = 0;
+    private List<Codec> serverCodecs = Collections.emptyList();
+    private ChunkSizeController adaptiveChunkSizes;
+    private volatile Codec codec = Codec.None;
+    private volatile boolean archive = false;
+    private volatile Metadata tenantHeaders;
+    private volatile java.nio.file.Path sourceDirectory = Paths.get("src/main/resources");
+
     public DemoClient(String host, int port) throws IOException {
-        this(ManagedChannelBuilder.forAddress(host, port).usePlaintext());
+        this(host, port, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public DemoClient(String host, int port, int maxMessageSize) throws IOException {
+        this(new ChannelPool(host, port, DEFAULT_CHANNELS, maxMessageSize, ChannelPool.DEFAULT_FLOW_CONTROL_WINDOW,
+                ChannelPool.DEFAULT_KEEP_ALIVE_SECONDS), maxMessageSize, DEFAULT_CONCURRENCY);
     }
 
     public DemoClient(ManagedChannelBuilder<?> channelBuilder) throws IOException {
+        this(channelBuilder, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public DemoClient(ManagedChannelBuilder<?> channelBuilder, int maxMessageSize) throws IOException {
+        this(new ChannelPool(Collections.singletonList(channelBuilder.maxInboundMessageSize(maxMessageSize).build())),
+                maxMessageSize, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param concurrency uploads {@link #submitUpload} runs at the same time
+     */
+    public DemoClient(ChannelPool channels, int maxMessageSize, int concurrency) {
         logger = LoggerFactory.getLogger(DemoClient.class);
-        channel = channelBuilder.build();
-        blockingStub = newBlockingStub(channel);
-        asyncStub = newStub(channel);
+        this.maxMessageSize = maxMessageSize;
+        this.channels = channels;
+        final AtomicInteger n = new AtomicInteger();
+        this.uploads = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "upload-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger c = new AtomicInteger();
+        this.compressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "compress-" + c.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private DemoServiceStub asyncStub() {
+        Metadata headers = tenantHeaders;
+        DemoServiceStub stub = newStub(channels.next());
+        return headers == null ? stub : MetadataUtils.attachHeaders(stub, headers);
+    }
+
+    private DemoServiceBlockingStub blockingStub() {
+        Metadata headers = tenantHeaders;
+        DemoServiceBlockingStub stub = newBlockingStub(channels.next());
+        return headers == null ? stub : MetadataUtils.attachHeaders(stub, headers);
+    }
+
+    /**
+     * Tenant the server accounts calls of this client to, null for its default tenant.
+     */
+    public void setTenant(String tenant) {
+        if (tenant == null) {
+            tenantHeaders = null;
+            return;
+        }
+        Metadata headers = new Metadata();
+        headers.put(TenantScheduler.TENANT_HEADER, tenant);
+        tenantHeaders = headers;
     }
 
     public void shutdown() throws InterruptedException {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        close();
     }
 
-    public void uploadFile(String filename, final int chunkSize) throws InterruptedException {
-        final CountDownLatch finishLatch = new CountDownLatch(1);
-        StreamObserver<UploadStatus> responseObserver = new StreamObserver<UploadStatus>() {
-            public void onNext(UploadStatus uploadStatus) {
-                logger.info("uploadFile: status: "+ String.valueOf(uploadStatus.getCode().getNumber()));
+    /**
+     * Stop taking uploads, give running ones a moment, then close the channels.
+     */
+    @Override
+    public void close() {
+        uploads.shutdown();
+        try {
+            if (!uploads.awaitTermination(5, TimeUnit.SECONDS)) {
+                uploads.shutdownNow();
             }
+        } catch (InterruptedException e) {
+            uploads.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        compressors.shutdown();
+        channels.close();
+    }
 
-            public void onError(Throwable throwable) {
-                logger.info("uploadFile Error!");
+    /**
+     * Run an upload on the client's executor; the future tells whether the server confirmed it.
+     */
+    public Future<Boolean> submitUpload(final String filename, final int chunkSize, final int parallelism) {
+        return uploads.submit(() -> uploadFile(filename, chunkSize, parallelism));
+    }
+
+    /**
+     * Upload all files, at most {@code concurrency} at a time, multiplexed over the channel pool.
+     *
+     * @return how many uploads succeeded
+     */
+    public int uploadFiles(List<String> filenames, int chunkSize, int parallelism) throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            results.add(submitUpload(filename, chunkSize, parallelism));
+        }
+        int succeeded = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) {
+                    succeeded++;
+                }
+            } catch (ExecutionException e) {
+                logger.info("upload failed: " + e.getCause());
             }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Bytes an upload may hand to gRPC beyond the point where the call stops being ready.
+     * Together with the chunk size this bounds client memory per upload.
+     */
+    public void setInFlightBudget(long bytes) {
+        this.inFlightBudget = bytes;
+    }
 
-            public void onCompleted() {
-                logger.info("finish upload (chunk size: " + String.valueOf(chunkSize) + ")");
-                logger.info("uploadFile Completed!");
-                finishLatch.countDown();
+    /**
+     * Counters and latencies of the server, see {@link ServerMetrics}.
+     */
+    public MetricsSnapshot serverMetrics() {
+        return blockingStub().getMetrics(MetricsRequest.getDefaultInstance());
+    }
+
+    /**
+     * A head, tail or range of a remote file, checked against the CRCs the server sent.
+     *
+     * @throws IOException if the preview arrived corrupted
+     */
+    public byte[] preview(PreviewRequest request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Crc32c crc = new Crc32c();
+        int streamCrc = 0;
+        Iterator<Chunk> chunks = blockingStub().preview(request);
+        while (chunks.hasNext()) {
+            Chunk chunk = chunks.next();
+            if (chunk.hasDigest()) {
+                if (chunk.getDigest().getLength() != out.size() || chunk.getDigest().getCrc32C() != streamCrc) {
+                    throw new IOException("preview of " + request.getPath() + " does not match its digest");
+                }
+                return out.toByteArray();
             }
-        };
+            int chunkCrc = crc.of(chunk.getContent());
+            if (chunk.getHasCrc32C() && chunkCrc != chunk.getCrc32C()) {
+                throw new IOException("crc32c mismatch in preview of " + request.getPath() + " at " + out.size());
+            }
+            streamCrc = crc.append(streamCrc, chunkCrc, chunk.getContent().size());
+            chunk.getContent().writeTo(out);
+        }
+        throw new IOException("preview of " + request.getPath() + " ended without a digest");
+    }
 
-        logger.info("start upload (chunk size: " + String.valueOf(chunkSize) + ")");
-        StreamObserver<Chunk> requestObserver = asyncStub.upload(responseObserver);
-        try {
-            FileInputStream is = new FileInputStream(new File("src/main/resources/" + filename));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(chunkSize);
-            byte[] b = new byte[chunkSize];
-            int n;
-            while ((n = is.read(b)) != -1) {
-                if (n == chunkSize) {
-                    requestObserver.onNext(Chunk.newBuilder().setContent(ByteString.copyFrom(b)).build());
-                } else {
-                    bos.write(b, 0, n);
-                    requestObserver.onNext(Chunk.newBuilder().setContent(ByteString.copyFrom(bos.toByteArray())).build());
+    /**
+     * Copy, or with {@code move} rename, a remote file or directory tree; the bytes stay in HDFS.
+     */
+    public CopyResult copy(String src, String dst, boolean overwrite, boolean move) {
+        return blockingStub().copy(CopyRequest.newBuilder().setSource(src).setDestination(dst)
+                .setOverwrite(overwrite).setMove(move).build());
+    }
+
+    /**
+     * Entries of a remote directory, fetched a page at a time as the iterator reaches them.
+     *
+     * @param pageSize entries per message, 0 for the server's default
+     */
+    public Iterator<FileInfo> list(String path, int pageSize) {
+        final Iterator<ListPage> pages = blockingStub().list(ListRequest.newBuilder().setPath(path)
+                .setPageSize(pageSize).build());
+        return new Iterator<FileInfo>() {
+            Iterator<FileInfo> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && pages.hasNext()) {
+                    page = pages.next().getEntriesList().iterator();
                 }
-                if (finishLatch.getCount() == 0) {
-                    // RPC completed or errored before we finished sending.
-                    // Sending further requests won't error, but they will just be thrown away.
-                    return;
+                return page.hasNext();
+            }
+
+            @Override
+            public FileInfo next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return page.next();
             }
-            is.close();
-            bos.close();
-        } catch (RuntimeException e) {
-            // Cancel RPC
-            requestObserver.onError(e);
-            throw e;
-        } catch (FileNotFoundException e) {
+        };
+    }
+
+    /**
+     * Status of remote paths in one call; missing ones come back with {@code getExists()} false.
+     */
+    public List<FileInfo> stat(List<String> paths) {
+        return blockingStub().stat(StatRequest.newBuilder().addAllPaths(paths).build()).getFilesList();
+    }
+
+    /**
+     * Create remote directories with their parents, in one call.
+     */
+    public MkdirsResult mkdirs(List<String> paths) {
+        return blockingStub().mkdirs(MkdirsRequest.newBuilder().addAllPaths(paths).build());
+    }
+
+    /**
+     * Upload the local tree under {@code directory} into {@code remoteDirectory}, keeping the
+     * relative paths, with {@code concurrency} streams at a time; see {@link TreeUpload}.
+     *
+     * @param overwrite replace files already there, otherwise they fail and stay as they are
+     */
+    public TreeUpload.Result uploadTree(java.nio.file.Path directory, String remoteDirectory, int concurrency,
+                                        boolean overwrite) throws IOException, InterruptedException {
+        return new TreeUpload(this, directory, remoteDirectory, concurrency, TreeUpload.DEFAULT_WINDOW, 0, overwrite)
+                .run();
+    }
+
+    /**
+     * Directory the file names given to the upload methods are resolved against.
+     */
+    public void setSourceDirectory(java.nio.file.Path directory) {
+        this.sourceDirectory = directory;
+    }
+
+    /**
+     * Compress the chunks of later uploads with {@code codec}, {@link Codec#None} to send them raw.
+     * Lz4 is meant for the wire and is undone by the server; with {@code archive} the server keeps
+     * the compressed chunks, which is what Zstd is for.
+     * Codecs the server does not support fall back to raw.
+     */
+    public void setCompression(Codec codec, boolean archive) {
+        this.codec = codec;
+        this.archive = archive;
+    }
+
+    /**
+     * A fresh encoder for one upload, or null if its chunks go raw.
+     */
+    private ChunkEncoder encoder() {
+        Codec c = codec;
+        if (c == Codec.None) {
+            return null;
+        }
+        maxChunkSize();
+        if (!serverCodecs.contains(c)) {
+            logger.info("server can not decompress " + c + ", sending raw");
+            return null;
+        }
+        return new ChunkEncoder(c, compressors);
+    }
+
+    /**
+     * Largest chunk payload the server accepts, asked once with Handshake together with the codecs.
+     */
+    private synchronized int maxChunkSize() {
+        if (maxChunkSize == 0) {
+            int serverMax;
+            try {
+                HandshakeResponse response = blockingStub().handshake(HandshakeRequest.newBuilder()
+                        .setMaxMessageSize(maxMessageSize).addAllCodecs(ChunkCodec.available()).build());
+                serverMax = response.getMaxMessageSize();
+                serverCodecs = response.getCodecsList();
+            } catch (StatusRuntimeException e) {
+                logger.info("handshake failed, assume the gRPC default message size: " + e.getStatus());
+                serverMax = GRPC_DEFAULT_MAX_MESSAGE_SIZE;
+            }
+            maxChunkSize = Math.max(MIN_CHUNK_SIZE, serverMax - CHUNK_HEADER_ROOM);
+        }
+        return maxChunkSize;
+    }
+
+    /**
+     * A fixed size for {@code chunkSize > 0} (capped at what the server accepts),
+     * otherwise the client's shared adaptive controller.
+     */
+    private synchronized ChunkSizeController chunkSizes(int chunkSize) {
+        if (chunkSize > 0) {
+            return ChunkSizeController.fixed(Math.min(chunkSize, maxChunkSize()));
+        }
+        if (adaptiveChunkSizes == null) {
+            adaptiveChunkSizes = new ChunkSizeController(MIN_CHUNK_SIZE, maxChunkSize(), MAX_STALL_NANOS);
+        }
+        return adaptiveChunkSizes;
+    }
+
+    /**
+     * Upload with an adaptive chunk size.
+     */
+    public boolean uploadFile(String filename) throws InterruptedException {
+        return uploadFile(filename, 0);
+    }
+
+    /**
+     * @param chunkSize bytes per chunk, or 0 to let the client find the best size
+     */
+    public boolean uploadFile(String filename, final int chunkSize) throws InterruptedException {
+        return send(sourceDirectory.resolve(filename), null, false, chunkSize) == null;
+    }
+
+    /**
+     * Upload {@code file} to {@code remotePath} on one stream. The file only appears there once the
+     * server verified it.
+     *
+     * @param overwrite replace a file already at {@code remotePath}, otherwise the upload fails
+     * @return null if the server confirmed the upload, otherwise why not, see
+     * {@link #tryUpload(String, int, int)}
+     */
+    public String tryUpload(java.nio.file.Path file, String remotePath, boolean overwrite, int chunkSize)
+            throws InterruptedException {
+        return send(file, remotePath, overwrite, chunkSize);
+    }
+
+    /**
+     * @param remotePath where the server stores the file, null for a name of its choice
+     * @return null on success, why the upload failed otherwise
+     */
+    private String send(java.nio.file.Path file, String remotePath, boolean overwrite, final int chunkSize)
+            throws InterruptedException {
+        logger.info("start upload (chunk size: " + (chunkSize > 0 ? String.valueOf(chunkSize) : "adaptive") + ")");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChunkEncoder encoder = encoder();
+            Chunk.Builder header = Chunk.newBuilder().setArchive(encoder != null && archive);
+            if (remotePath != null) {
+                header.setPath(remotePath).setOverwrite(overwrite);
+            }
+            ChunkSender sender = new ChunkSender("uploadFile", channel, 0, channel.size(), chunkSizes(chunkSize),
+                    header, inFlightBudget, encoder);
+            asyncStub().upload(sender);
+            // Receiving happens asynchronously
+            if (!sender.await(5, TimeUnit.MINUTES)) {
+                sender.cancel("timeout");
+                System.out.println("operation can not finish within 5 minutes");
+                return "timeout";
+            }
+            return failure(sender);
+        } catch (IOException e) {
             e.printStackTrace();
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * Split the file into {@code parallelism} byte ranges and send each one on its own UploadPart stream.
+     * The server concatenates the parts once the last one arrived; a part that breaks is sent again,
+     * up to {@link PartUploads#MAX_PART_ATTEMPTS} times.
+     */
+    public boolean uploadFile(String filename, final int chunkSize, int parallelism) throws InterruptedException {
+        return tryUpload(filename, chunkSize, parallelism) == null;
+    }
+
+    /**
+     * Like {@link #uploadFile(String, int, int)}, for callers that count failures by cause.
+     *
+     * @return null if the server confirmed the upload, otherwise why not: the gRPC status code the
+     * call failed with, the {@link UploadStatusCode} the server answered, "timeout" or the class of
+     * a local exception
+     */
+    public String tryUpload(String filename, final int chunkSize, int parallelism) throws InterruptedException {
+        final java.nio.file.Path path = sourceDirectory.resolve(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parts = (int) Math.min(parallelism, (size + MIN_PART_SIZE - 1) / MIN_PART_SIZE);
+            if (parts <= 1) {
+                return send(path, null, false, chunkSize);
+            }
+            long partSize = (size + parts - 1) / parts;
+            parts = (int) ((size + partSize - 1) / partSize);
+            String uploadId = UUID.randomUUID().toString();
+            logger.info("start parallel upload " + uploadId + " (chunk size: "
+                    + (chunkSize > 0 ? String.valueOf(chunkSize) : "adaptive") + ", parts: " + parts + ")");
+
+            List<Integer> todo = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                todo.add(i);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+            String failure = null;
+            for (int attempt = 1; !todo.isEmpty(); attempt++) {
+                List<ChunkSender> senders = new ArrayList<>(todo.size());
+                for (int i : todo) {
+                    long start = i * partSize;
+                    Chunk.Builder header = Chunk.newBuilder()
+                            .setUploadId(uploadId).setPartIndex(i).setPartCount(parts).setOffset(start);
+                    ChunkSender sender = new ChunkSender("uploadPart " + i, channel, start,
+                            Math.min(size, start + partSize), chunkSizes(chunkSize), header, inFlightBudget, encoder());
+                    senders.add(sender);
+                    asyncStub().uploadPart(sender);
+                }
+                List<Integer> again = new ArrayList<>();
+                boolean givenUp = false;
+                failure = null;
+                for (int k = 0; k < senders.size(); k++) {
+                    ChunkSender sender = senders.get(k);
+                    if (!sender.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        for (ChunkSender s : senders) {
+                            s.cancel("timeout");
+                        }
+                        System.out.println("operation can not finish within 5 minutes");
+                        return "timeout";
+                    }
+                    String f = failure(sender);
+                    if (f == null) {
+                        continue;
+                    }
+                    if (failure == null) {
+                        failure = f;
+                    }
+                    if (retriable(sender) && attempt < PartUploads.MAX_PART_ATTEMPTS) {
+                        again.add(todo.get(k));
+                    } else {
+                        givenUp = true;
+                    }
+                }
+                if (givenUp || again.isEmpty()) {
+                    return failure;
+                }
+                logger.info("send parts " + again + " of upload " + uploadId + " again");
+                todo = again;
+            }
+            return failure;
         } catch (IOException e) {
             e.printStackTrace();
+            return e.getClass().getSimpleName();
         }
-        // Mark the end of requests
-        requestObserver.onCompleted();
+    }
+
+    /**
+     * A part may be sent again after a corrupted chunk or a broken call, see {@code UploadPart};
+     * not when the server refused it or answered that the upload failed.
+     */
+    private static boolean retriable(ChunkSender sender) {
+        if (sender.getError() != null) {
+            Status.Code code = Status.fromThrowable(sender.getError()).getCode();
+            return code != Status.Code.INVALID_ARGUMENT && code != Status.Code.CANCELLED;
+        }
+        return sender.corrupted();
+    }
+
+    private static String failure(ChunkSender sender) {
+        if (sender.succeeded()) {
+            return null;
+        }
+        if (sender.getError() != null) {
+            return Status.fromThrowable(sender.getError()).getCode().name();
+        }
+        return sender.getStatus() != null ? sender.getStatus().getCode().name() : "NoStatus";
+    }
 
-        // Receiving happens asynchronously
-        if (!finishLatch.await(5, TimeUnit.MINUTES)) {
+    /**
+     * Upload through a server-side session. When a stream breaks, ask the server how many bytes
+     * it has durably stored and continue from there instead of from byte 0.
+     *
+     * @return true once the server confirmed the whole file
+     */
+    public boolean uploadResumable(String filename, final int chunkSize, int maxAttempts) throws InterruptedException {
+        java.nio.file.Path path = sourceDirectory.resolve(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            UploadSession session = blockingStub().startUpload(
+                    UploadRequest.newBuilder().setFileName(filename).setSize(size).build());
+            long offset = 0;
+            for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                if (attempt > 1) {
+                    Thread.sleep(Math.min(30000, 500L << Math.min(attempt, 6)));
+                    try {
+                        offset = blockingStub().queryOffset(session).getOffset();
+                    } catch (StatusRuntimeException e) {
+                        logger.info("queryOffset failed: " + e.getStatus());
+                        continue;
+                    }
+                }
+                logger.info("upload session " + session.getSessionId() + " from offset " + offset
+                        + " (attempt " + attempt + ")");
+                Chunk.Builder first = Chunk.newBuilder().setSessionId(session.getSessionId()).setOffset(offset);
+                ChunkSender sender = new ChunkSender("uploadResumable", channel, offset, size, chunkSizes(chunkSize),
+                        first, inFlightBudget, encoder());
+                asyncStub().uploadResumable(sender);
+                if (!sender.await(5, TimeUnit.MINUTES)) {
+                    sender.cancel("no answer within 5 minutes");
+                    continue;
+                }
+                if (sender.succeeded()) {
+                    return true;
+                }
+            }
+        } catch (IOException | StatusRuntimeException e) {
+            logger.info("uploadResumable failed: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Upload only the content-defined chunks the server does not have yet. The file is cut with
+     * {@link ContentChunker}, hashed on the compression pool, and its manifest probed first; a file
+     * the server has seen before costs little more than the manifest.
+     */
+    public boolean uploadDeduplicated(String filename) throws InterruptedException {
+        java.nio.file.Path path = sourceDirectory.resolve(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> chunks = new ContentChunker(maxChunkSize()).split(channel);
+            List<CompletableFuture<ChunkRef>> refs = new ArrayList<>(chunks.size());
+            for (long[] chunk : chunks) {
+                refs.add(CompletableFuture.supplyAsync(() -> chunkRef(channel, chunk), compressors));
+            }
+            ChunkManifest.Builder manifest = ChunkManifest.newBuilder().setFileName(filename);
+            for (CompletableFuture<ChunkRef> ref : refs) {
+                manifest.addChunks(ref.join());
+            }
+            ChunkPresence presence = blockingStub().probeChunks(manifest.build());
+            logger.info("dedup upload of " + filename + ": " + presence.getMissingCount() + " of "
+                    + chunks.size() + " chunks to send");
+            DedupSender sender = new DedupSender("uploadDeduplicated", channel, chunks, manifest.build(), presence,
+                    inFlightBudget);
+            asyncStub().uploadDeduplicated(sender);
+            if (!sender.await(5, TimeUnit.MINUTES)) {
+                sender.cancel("timeout");
+                System.out.println("operation can not finish within 5 minutes");
+                return false;
+            }
+            return sender.succeeded();
+        } catch (IOException | StatusRuntimeException | CompletionException e) {
+            logger.info("uploadDeduplicated failed: " + e);
+            return false;
+        }
+    }
+
+    private static ChunkRef chunkRef(FileChannel channel, long[] chunk) {
+        try {
+            ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1]);
+            int crc = new Crc32c().of(slice);
+            MessageDigest sha = DedupStore.sha256();
+            sha.update(slice);
+            return ChunkRef.newBuilder().setSha256(ByteString.copyFrom(sha.digest())).setLength((int) chunk[1])
+                    .setCrc32C(crc).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Upload many small files on one call into one pack on the server, named by their paths
+     * relative to the source directory. Files of the pack are downloaded with
+     * {@link #download(String, String, String, int)}.
+     *
+     * @return the pack's path on the server, null if the batch failed
+     */
+    public String uploadBatch(List<String> filenames) throws InterruptedException {
+        List<java.nio.file.Path> files = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            files.add(sourceDirectory.resolve(filename));
+        }
+        BatchSender sender = new BatchSender("uploadBatch", files, filenames, maxChunkSize(), inFlightBudget);
+        asyncStub().uploadBatch(sender);
+        if (!sender.await(5, TimeUnit.MINUTES)) {
+            sender.cancel("timeout");
             System.out.println("operation can not finish within 5 minutes");
+            return null;
+        }
+        return sender.succeeded() ? sender.getStatus().getMessage() : null;
+    }
+
+    /**
+     * Fetch a remote file into {@code localPath}. The first range also tells the file size; the
+     * rest is split into {@code parallelism} ranges streamed at once, each written at its own
+     * position of the preallocated local file.
+     */
+    public boolean download(String remotePath, String localPath, int parallelism) throws InterruptedException {
+        return download(remotePath, "", localPath, parallelism);
+    }
+
+    /**
+     * Fetch one file of a pack written by {@link #uploadBatch}, or the whole remote file if
+     * {@code member} is empty.
+     */
+    public boolean download(String remotePath, String member, String localPath, int parallelism)
+            throws InterruptedException {
+        java.nio.file.Path path = Paths.get(localPath);
+        int chunkSize = Math.min(Downloads.DEFAULT_CHUNK_SIZE, maxMessageSize - CHUNK_HEADER_ROOM);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<ChunkReceiver> receivers = new ArrayList<>();
+            ChunkReceiver first = new ChunkReceiver("download " + remotePath, channel, 0);
+            receivers.add(first);
+            asyncStub().download(DownloadRequest.newBuilder().setPath(remotePath).setMember(member)
+                    .setLength(parallelism > 1 ? FIRST_RANGE : 0).setChunkSize(chunkSize).build(), first);
+            long size = first.awaitFileSize(5, TimeUnit.MINUTES);
+            if (size < 0) {
+                first.cancel("no answer within 5 minutes");
+                logger.info("download of " + remotePath + " failed: " + first.getError());
+                return false;
+            }
+            if (parallelism > 1 && size > FIRST_RANGE) {
+                try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                    file.setLength(size);
+                }
+                long rest = size - FIRST_RANGE;
+                int ranges = (int) Math.max(1, Math.min(parallelism, rest / MIN_PART_SIZE));
+                long rangeSize = (rest + ranges - 1) / ranges;
+                for (long start = FIRST_RANGE; start < size; start += rangeSize) {
+                    ChunkReceiver receiver = new ChunkReceiver("download " + remotePath + "@" + start, channel, start);
+                    receivers.add(receiver);
+                    asyncStub().download(DownloadRequest.newBuilder().setPath(remotePath).setMember(member)
+                            .setOffset(start).setLength(rangeSize).setChunkSize(chunkSize).build(), receiver);
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+            boolean succeeded = true;
+            for (ChunkReceiver receiver : receivers) {
+                if (!receiver.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    for (ChunkReceiver r : receivers) {
+                        r.cancel("timeout");
+                    }
+                    System.out.println("operation can not finish within 5 minutes");
+                    return false;
+                }
+                succeeded &= receiver.succeeded();
+            }
+            return succeeded;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
     public static void main(String[] args) throws InterruptedException, IOException {
         String hostname = "127.0.0.1";
-        int chunkSize = Integer.parseInt("100");
+        final int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        // chunk size in KB, adaptive unless given
+        final int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) * 1024 : 0;
         DemoClient client = new DemoClient(hostname, 8980);
-        Date start = new Date();
-        for (int i = 0; i < 200; i++){
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        (new DemoClient(hostname, 8980)).uploadFile("testfile.mp4", chunkSize * 1024);
-                    } catch (InterruptedException | IOException e) {
-                        e.printStackTrace();
+        // none, lz4, zstd or zstd-archive
+        if (args.length > 2) {
+            String codec = args[2].toLowerCase();
+            client.setCompression(codec.startsWith("zstd") ? Codec.Zstd : codec.equals("lz4") ? Codec.Lz4 : Codec.None,
+                    codec.endsWith("-archive"));
+        }
+        // every file of the source directory in one pack
+        if (args.length > 3 && args[3].equals("batch")) {
+            List<String> names = new ArrayList<>();
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> dir =
+                         java.nio.file.Files.newDirectoryStream(client.sourceDirectory)) {
+                for (java.nio.file.Path file : dir) {
+                    if (java.nio.file.Files.isRegularFile(file)) {
+                        names.add(file.getFileName().toString());
                     }
                 }
-            }).start();
-            Thread.sleep(100);
+            }
+            Date start = new Date();
+            String pack = client.uploadBatch(names);
+            float seconds = (new Date().getTime() - start.getTime()) / 1000f;
+            System.out.println(names.size() + " files " + (pack != null ? "packed into " + pack : "failed") + ", "
+                    + seconds + "s, " + names.size() / Math.max(seconds, 0.001f) + " files/s");
+            client.shutdown();
+            return;
+        }
+        // send only the chunks the server has not seen
+        if (args.length > 3 && args[3].equals("dedup")) {
+            Date start = new Date();
+            boolean succeeded = client.uploadDeduplicated("testfile.mp4");
+            System.out.println("dedup upload " + (succeeded ? "succeeded" : "failed") + ", "
+                    + (new Date().getTime() - start.getTime()) / 1000f + "s");
+            client.shutdown();
+            return;
         }
-        Date end = new Date();
-        float diff = end.getTime() - start.getTime();
-        System.out.println(String.valueOf(diff / 1000) + "s");
+        // one upload of a file from the source directory; for load tests see LoadGenerator
+        String filename = args.length > 3 ? args[3] : "testfile.mp4";
+        Date start = new Date();
+        String failure = client.tryUpload(filename, chunkSize, parallelism);
+        float seconds = (new Date().getTime() - start.getTime()) / 1000f;
+        long size = client.sourceDirectory.resolve(filename).toFile().length();
+        System.out.println(filename + " " + (failure == null ? "uploaded" : "failed: " + failure) + ", " + seconds
+                + "s, " + size / 1e6f / Math.max(seconds, 0.001f) + " MB/s");
         client.shutdown();
     }
 }
 
-
-/*
-64KB : 8.617s
-128KB: 4.523s
-256KB: 2.778s
-512KB: 2.041s
-1MB  : 1.609s
-2MB  : 1.344s
-3MB  : 1.536s
-4000KB: 1.207s
-4MB  : RESOURCE_EXHAUSTED: gRPC message exceeds maximum size 4194304: 4194309
- */
\ No newline at end of file
@@ -1,40 +1,195 @@
 package cn.edu.sjtu.ops.grpcdemo;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
 
 public class DemoServer {
 
-    private final int port;
     private final Server server;
+    private final WritePipeline pipeline;
+    private final ExecutorService readers;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final SpillStage stage;
+    private final ChunkIndex chunkIndex;
+    private final DedupStore dedup;
+    private final CopyEngine copies;
+    private final TenantScheduler tenants;
     private static Logger logger;
 
-    private static final int CHUNKSIZE = 1;
+    // writes block on the DataNode pipeline, not on the hdfs pool: streams share its handles
+    private static final int WRITER_THREADS = 32;
+    private static final int STREAM_WINDOW = 4;
+    private static final long MAX_BUFFERED_BYTES = 1024L * 1024 * 1024;
+    // downloads also hold a shared hdfs handle while they stream
+    private static final int READER_THREADS = 32;
+    private static final int MAX_DOWNLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final long MAX_PREVIEW_BYTES = 4L * 1024 * 1024;
+    // paths of one Stat call, each FileInfo is about 150 bytes of the response
+    private static final int MAX_STAT_PATHS = 10000;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+    // honour Archive on uploads: compressed chunks are stored as they came, framed
+    private static final boolean KEEP_ARCHIVES_COMPRESSED = true;
+    // acknowledge plain uploads once they are on local disk and flush them to HDFS in the background
+    private static final boolean STAGE_UPLOADS = false;
+    private static final File STAGING_DIRECTORY = new File("staging");
+    private static final long STAGING_QUOTA = 64L * 1024 * 1024 * 1024;
+    private static final int STAGING_FLUSH_THREADS = 4;
+    // local index of the chunks deduplicated uploads stored in HDFS
+    private static final File CHUNK_INDEX = new File("dedup/chunks.idx");
+    // chunks no deduplicated upload used for this long are deleted
+    private static final long DEDUP_CHUNK_TTL_MS = TimeUnit.DAYS.toMillis(7);
+    // copies also hold shared hdfs handles, one per file or range in flight
+    private static final int COPY_THREADS = 16;
+    private static final long COPY_RANGE_SIZE = 256L * 1024 * 1024;
+    // what a tenant without a policy of its own may use, see getTenants()
+    private static final int TENANT_WEIGHT = 1;
+    private static final long TENANT_BYTES_PER_SECOND = 0;
+    static final int TENANT_MAX_STREAMS = 64;
+    private static final long TENANT_RETRY_AFTER_MS = 1000;
+    // resumable sessions name their files after the thread that starts them, like uploads after writers
+    private static final String WORKER_THREAD = "grpc-worker-";
 
     public DemoServer(int port) throws IOException {
+        this(port, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public DemoServer(int port, int maxMessageSize) throws IOException {
+        this(NettyServerBuilder.forPort(port)
+                // clients of a ChannelPool ping idle connections to keep them open
+                .permitKeepAliveTime(10, TimeUnit.SECONDS)
+                .permitKeepAliveWithoutCalls(true)
+                .executor(workers(Runtime.getRuntime().availableProcessors() * 2)),
+                maxMessageSize);
+    }
+
+    private static ExecutorService workers(int threads) {
+        final AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> new Thread(r, WORKER_THREAD + n.incrementAndGet()));
+    }
+
+    /**
+     * Uploads to a path may not touch files the server names itself: dedup chunks, the files of
+     * other uploads and sessions in the directories named after its threads.
+     *
+     * @return why a client may not upload to {@code path}, null if it may
+     */
+    static String refusal(String path) {
+        if (!path.startsWith("/")) {
+            return "not an absolute path: " + path;
+        }
+        for (String name : path.split("/")) {
+            if (name.equals(".") || name.equals("..")) {
+                return "not a normalized path: " + path;
+            }
+        }
+        String normalized = normalize(path);
+        int slash = normalized.indexOf('/', 1);
+        String top = slash < 0 ? normalized.substring(1) : normalized.substring(1, slash);
+        if (top.isEmpty()) {
+            return "not a file path: " + path;
+        }
+        if (("/" + top).equals(DedupStore.ROOT) || top.startsWith(WritePipeline.WRITER_THREAD)
+                || top.startsWith(WORKER_THREAD)) {
+            return path + " is in a directory of the server's own";
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code path} without repeated and trailing slashes; a URI would take {@code //a/b} for
+     * the path {@code /b} on host {@code a}
+     */
+    static String normalize(String path) {
+        String normalized = path.replaceAll("/{2,}", "/");
+        return normalized.length() > 1 && normalized.endsWith("/")
+                ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    /**
+     * Serve on a transport of the caller's choice, e.g. an in-process one.
+     */
+    public DemoServer(ServerBuilder<?> sb, int maxMessageSize) throws IOException {
         logger = LoggerFactory.getLogger(DemoServer.class);
-        this.port = port;
-        ServerBuilder sb = ServerBuilder.forPort(port);
-        this.server = sb.addService(new DemoService()).build();
+        // gRPC callbacks only enqueue now, HDFS writes happen on the pipeline's writer threads.
+        // Every credit may become a message of maxMessageSize, so the budget is counted in those.
+        int maxBufferedChunks = (int) Math.max(STREAM_WINDOW, MAX_BUFFERED_BYTES / maxMessageSize);
+        this.tenants = new TenantScheduler(new TenantScheduler.Policy(TENANT_WEIGHT, TENANT_BYTES_PER_SECOND,
+                TENANT_MAX_STREAMS), TENANT_RETRY_AFTER_MS, metrics);
+        this.pipeline = new WritePipeline(WRITER_THREADS, STREAM_WINDOW, maxBufferedChunks, tenants, metrics);
+        metrics.gauge("upload.active", pipeline::activeStreams);
+        metrics.gauge("pipeline.queued_chunks", pipeline::queuedChunks);
+        metrics.gauge("pipeline.free_credits", pipeline::availableCredits);
+        metrics.gauge("hdfs.pool.active", () -> {
+            HdfsPool.Stats stats = Hdfs.poolStats();
+            return stats == null ? 0 : stats.active;
+        });
+        metrics.gauge("hdfs.pool.open", () -> {
+            HdfsPool.Stats stats = Hdfs.poolStats();
+            return stats == null ? 0 : stats.open;
+        });
+        metrics.gauge("hdfs.metadata_cache.hits", () -> {
+            MetadataCache.Stats stats = Hdfs.metadataStats();
+            return stats == null ? 0 : stats.hits;
+        });
+        metrics.gauge("hdfs.metadata_cache.misses", () -> {
+            MetadataCache.Stats stats = Hdfs.metadataStats();
+            return stats == null ? 0 : stats.misses;
+        });
+        final AtomicInteger n = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(READER_THREADS, r -> {
+            Thread t = new Thread(r, "hdfs-reader-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.stage = STAGE_UPLOADS ? new SpillStage(STAGING_DIRECTORY, STAGING_QUOTA, STAGING_FLUSH_THREADS, metrics) : null;
+        this.chunkIndex = new ChunkIndex(CHUNK_INDEX);
+        this.dedup = new DedupStore(chunkIndex, DEDUP_CHUNK_TTL_MS);
+        this.copies = new CopyEngine(COPY_THREADS, COPY_RANGE_SIZE);
+        DemoService service = new DemoService(pipeline, new Downloads(readers, MAX_DOWNLOAD_CHUNK_SIZE),
+                new Previews(readers, MAX_PREVIEW_BYTES), copies, new Listings(readers, MAX_STAT_PATHS), stage,
+                dedup, metrics, maxMessageSize);
+        this.server = sb.maxInboundMessageSize(maxMessageSize)
+                .addService(ServerInterceptors.intercept(service, new MetricsInterceptor(metrics), tenants)).build();
     }
 
     /**
-     * Start serving requests.
+     * Log in to HDFS, connect and warm up, then start serving requests. The port only opens once all
+     * of it succeeded, so the first requests are neither slow nor failing and a client or load
+     * balancer that can connect may send traffic.
+     *
+     * @throws IOException if HDFS can not be reached, the server does not start then
      */
     public void start() throws IOException {
         logger.info("************ START *************");
-
+        long started = System.nanoTime();
+        Hdfs.start();
+        warmUp();
         server.start();
-        logger.info("Server started, listening on " + port);
+        long startupMs = (System.nanoTime() - started) / 1000000;
+        metrics.gauge("server.startup_ms", () -> startupMs);
+        logger.info("Server ready after " + startupMs + " ms, listening on " + server.getPort());
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -46,6 +201,50 @@ public class DemoServer {
         });
     }
 
+    /**
+     * Load and run once what the first upload would otherwise: message classes and their parsers,
+     * the checksum and the codecs with their native libraries, and the service's method descriptors.
+     */
+    private static void warmUp() {
+        byte[] content = new byte[64 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 31);
+        }
+        Crc32c crc = new Crc32c();
+        try {
+            Chunk chunk = Chunk.newBuilder().setContent(ByteString.copyFrom(content))
+                    .setCrc32C(crc.of(ByteBuffer.wrap(content))).setHasCrc32C(true).build();
+            Chunk.parser().parseFrom(chunk.toByteArray());
+            UploadStatus.parser().parseFrom(UploadStatus.newBuilder()
+                    .setCode(UploadStatusCode.Ok).build().toByteArray());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[][] scratch = new byte[1][];
+        byte[] out = new byte[content.length];
+        for (Codec codec : ChunkCodec.available()) {
+            ByteString compressed = ChunkCodec.compress(codec, ByteBuffer.wrap(content), scratch);
+            if (compressed != null) {
+                ChunkCodec.decompress(codec, compressed, content.length, out);
+            }
+        }
+        DemoServiceGrpc.getServiceDescriptor();
+    }
+
+    /**
+     * The port the server listens on, useful when it was built for port 0; -1 for in-process servers.
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Where weights, rates and stream limits of single tenants are set.
+     */
+    public TenantScheduler getTenants() {
+        return tenants;
+    }
+
     /**
      * Stop serving requests and shutdown resources.
      */
@@ -53,6 +252,17 @@ public class DemoServer {
         if (server != null) {
             server.shutdown();
         }
+        pipeline.shutdown();
+        tenants.close();
+        readers.shutdownNow();
+        copies.close();
+        if (stage != null) {
+            stage.close();
+        }
+        dedup.close();
+        chunkIndex.close();
+        logger.info("metrics:\n" + ServerMetrics.format(metrics.snapshot()));
+        Hdfs.closePool();
         logger.info("************ FINISH ************");
     }
 
@@ -78,64 +288,374 @@ public class DemoServer {
     }
 
     public static class DemoService extends DemoServiceGrpc.DemoServiceImplBase {
+        private final WritePipeline pipeline;
+        private final Downloads downloads;
+        private final Previews previews;
+        private final CopyEngine copies;
+        private final Listings listings;
+        private final SpillStage stage;
+        private final DedupStore dedup;
+        private final ServerMetrics metrics;
+        private final int maxMessageSize;
+        private final PartUploads parts;
+        private final UploadSessions sessions;
+        private final BatchUploads batches;
+
+        /**
+         * @param stage where plain uploads are staged, null to write them to HDFS directly
+         */
+        public DemoService(WritePipeline pipeline, Downloads downloads, Previews previews, CopyEngine copies,
+                           Listings listings, SpillStage stage, DedupStore dedup, ServerMetrics metrics, int maxMessageSize) {
+            this.pipeline = pipeline;
+            this.downloads = downloads;
+            this.previews = previews;
+            this.copies = copies;
+            this.listings = listings;
+            this.stage = stage;
+            this.dedup = dedup;
+            this.metrics = metrics;
+            this.maxMessageSize = maxMessageSize;
+            // clients keep their chunks to a message, see handshake; so must the inflated ones
+            this.parts = new PartUploads(TimeUnit.HOURS.toMillis(24), maxMessageSize, metrics);
+            this.sessions = new UploadSessions(new File("sessions"), TimeUnit.HOURS.toMillis(24), maxMessageSize,
+                    metrics);
+            this.batches = new BatchUploads(maxMessageSize, metrics);
+        }
+
+        @Override
+        public void getMetrics(MetricsRequest request, StreamObserver<MetricsSnapshot> responseObserver) {
+            responseObserver.onNext(metrics.snapshot());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void handshake(HandshakeRequest request, StreamObserver<HandshakeResponse> responseObserver) {
+            List<Codec> codecs = new ArrayList<>(request.getCodecsList());
+            codecs.retainAll(ChunkCodec.available());
+            responseObserver.onNext(HandshakeResponse.newBuilder().setMaxMessageSize(maxMessageSize)
+                    .addAllCodecs(codecs).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<Chunk> uploadPart(final StreamObserver<UploadStatus> responseObserver) {
+            return pipeline.wrap(responseObserver, parts::newObserver);
+        }
+
+        @Override
+        public void startUpload(UploadRequest request, StreamObserver<UploadSession> responseObserver) {
+            try {
+                responseObserver.onNext(sessions.start(request));
+                responseObserver.onCompleted();
+            } catch (IOException e) {
+                logger.error(String.valueOf(e));
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+
+        @Override
+        public void queryOffset(UploadSession request, StreamObserver<UploadOffset> responseObserver) {
+            long offset = sessions.offset(request.getSessionId());
+            if (offset < 0) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("unknown session " + request.getSessionId()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(UploadOffset.newBuilder().setSessionId(request.getSessionId()).setOffset(offset).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<Chunk> uploadResumable(final StreamObserver<UploadStatus> responseObserver) {
+            return pipeline.wrap(responseObserver, sessions::newObserver);
+        }
+
+        @Override
+        public void probeChunks(ChunkManifest request, StreamObserver<ChunkPresence> responseObserver) {
+            try {
+                responseObserver.onNext(dedup.probe(request));
+                responseObserver.onCompleted();
+            } catch (StatusRuntimeException e) {
+                responseObserver.onError(e);
+            }
+        }
+
+        @Override
+        public StreamObserver<Chunk> uploadDeduplicated(final StreamObserver<UploadStatus> responseObserver) {
+            return pipeline.wrap(responseObserver, dedup::newObserver);
+        }
+
+        @Override
+        public StreamObserver<Chunk> uploadBatch(final StreamObserver<UploadStatus> responseObserver) {
+            return pipeline.wrap(responseObserver, batches::newObserver);
+        }
+
+        @Override
+        public void download(DownloadRequest request, StreamObserver<Chunk> responseObserver) {
+            downloads.serve(request, responseObserver);
+        }
+
         @Override
-        public StreamObserver<Chunk> upload(final StreamObserver<UploadStatus> responseObserver) {
-            return new StreamObserver<Chunk>() {
-//                ByteArrayOutputStream bos = new ByteArrayOutputStream(CHUNKSIZE);
+        public void preview(PreviewRequest request, StreamObserver<Chunk> responseObserver) {
+            previews.serve(request, responseObserver);
+        }
+
+        @Override
+        public void copy(CopyRequest request, StreamObserver<CopyResult> responseObserver) {
+            copies.serve(request, responseObserver);
+        }
+
+        @Override
+        public void list(ListRequest request, StreamObserver<ListPage> responseObserver) {
+            listings.list(request, responseObserver);
+        }
+
+        @Override
+        public void stat(StatRequest request, StreamObserver<StatResponse> responseObserver) {
+            listings.stat(request, responseObserver);
+        }
+
+        @Override
+        public void mkdirs(MkdirsRequest request, StreamObserver<MkdirsResult> responseObserver) {
+            listings.mkdirs(request, responseObserver);
+        }
+
+        @Override
+        public StreamObserver<Chunk> upload(final StreamObserver<UploadStatus> call) {
+            return pipeline.wrap(call, responseObserver -> new StreamObserver<Chunk>() {
                 String filename = UUID.randomUUID().toString();
+                // where the bytes go: the target itself, or a hidden file next to a named one
+                String path;
+                String target;
+                boolean overwrite = false;
                 int count = 0;
+                long createdAt = 0;
                 FSDataOutputStream output;
+                SpillStage.Segment staged;
+                // output or staged
+                DataOutputStream sink;
                 Hdfs hdfs = null;
                 boolean first = true;
+                final ChunkVerifier verifier = new ChunkVerifier(maxMessageSize);
+                boolean archive = false;
+                boolean rejected = false;
                 public void onNext(Chunk chunk) {
+                    if (rejected) {
+                        return;
+                    }
                     try {
-                        if (first == true) {
+                        if (first) {
                             first = false;
-                            hdfs = Hdfs.getInstance();
-                            hdfs.mkdir("/" + Thread.currentThread().getName());
-                            String path = "/" + Thread.currentThread().getName() + "/" + filename;
-                            output = hdfs.create(path, true);
-
+                            boolean named = !chunk.getPath().isEmpty();
+                            if (named) {
+                                String refusal = refusal(chunk.getPath());
+                                if (refusal != null) {
+                                    refuse(refusal);
+                                    return;
+                                }
+                                target = normalize(chunk.getPath());
+                                overwrite = chunk.getOverwrite();
+                                path = CopyEngine.hidden(target, "uploading");
+                            } else {
+                                target = path = "/" + Thread.currentThread().getName() + "/" + filename;
+                            }
+                            archive = KEEP_ARCHIVES_COMPRESSED && chunk.getArchive();
+                            // a named file may only replace another on HDFS, which the stage does not check
+                            if (!named && stage != null && stage.admits()) {
+                                staged = stage.open(path);
+                                sink = new DataOutputStream(staged);
+                            } else {
+                                hdfs = Hdfs.getInstance();
+                                if (named && !overwrite && hdfs.exists(target)) {
+                                    refuse(target + " exists");
+                                    return;
+                                }
+                                // a named file's directory comes from Mkdirs, or create makes it
+                                if (!named) {
+                                    hdfs.mkdir("/" + Thread.currentThread().getName());
+                                }
+                                createdAt = System.nanoTime();
+                                output = hdfs.create(path, !named);
+                                sink = output;
+                            }
+                        }
+                        if (chunk.hasDigest()) {
+                            if (!verifier.verify(chunk.getDigest())) {
+                                reject();
+                            }
+                            return;
+                        }
+                        ByteString content = verifier.verify(chunk);
+                        if (content == null) {
+                            reject();
+                            return;
+                        }
+                        if (archive) {
+                            ChunkCodec.writeFrame(sink, chunk.getCodec(), content.size(), chunk.getContent());
                         } else {
-                            output.write(chunk.getContent().toByteArray());
+                            // writes the ByteString's backing buffers directly, without a toByteArray() copy
+                            content.writeTo(sink);
                         }
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                    count++;
-                    logger.info("chunk-" + String.valueOf(count) + " start");
+                    if (count++ == 0 && createdAt != 0) {
+                        metrics.firstByte.recordSince(createdAt);
+                    }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("chunk-" + count + " of " + path + " written");
+                    }
                 }
 
+                /**
+                 * A plain upload can not be resumed, so a corrupted one is dropped as a whole.
+                 */
+                private void reject() throws IOException {
+                    rejected = true;
+                    UploadStatus status = verifier.mismatchStatus();
+                    logger.warn(path + ": " + status.getMessage());
+                    if (hdfs != null) {
+                        closeOutput();
+                        hdfs.purge(path);
+                    }
+                    release();
+                    responseObserver.onNext(status);
+                    responseObserver.onCompleted();
+                }
+
+                private void refuse(String message) {
+                    rejected = true;
+                    logger.warn(message);
+                    release();
+                    responseObserver.onNext(UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                            .setMessage(message).build());
+                    responseObserver.onCompleted();
+                }
 
                 public void onError(Throwable throwable) {
-                    logger.info("error!!!!");
+                    logger.error("upload of " + (target != null ? target : "a new file") + " failed: " + throwable);
+                    // a hidden file would never be found again
+                    if (hdfs != null && !path.equals(target)) {
+                        closeOutput();
+                        try {
+                            hdfs.purge(path);
+                        } catch (IOException e) {
+                            logger.error("can not remove " + path + ": " + e);
+                        }
+                    }
+                    // the handle must go back to the pool, or it is never closed
+                    release();
                 }
 
                 public void onCompleted() {
-                    try {
-                        if (output != null) {
+                    if (rejected) {
+                        return;
+                    }
+                    if (staged != null) {
+                        commitStaged();
+                        return;
+                    }
+                    // output is null for an empty stream, there is no file to finish then
+                    if (output != null) {
+                        if (!closeOutput()) {
+                            // the last blocks may not be on the DataNodes, nothing to keep
+                            fail("closing " + path + " failed");
+                            return;
+                        }
+                        // the digest is of the original bytes, also for archives
+                        ChunkVerifier.store(hdfs, path, verifier.fileCrc());
+                        if (archive) {
                             try {
-                                output.close();
-                            } catch (Exception e) {
-                                logger.error(String.valueOf(e));
+                                ChunkCodec.mark(hdfs, path);
+                            } catch (IOException | UnsupportedOperationException e) {
+                                logger.error("can not mark " + path + " as framed: " + e);
                             }
                         }
-                        if (hdfs != null) {
+                        // xattrs move along; only a verified file takes the target's place
+                        if (!path.equals(target)) {
                             try {
-                                hdfs.close();
+                                if (!hdfs.rename(path, target, overwrite)) {
+                                    fail("can not rename " + path + " to " + target);
+                                    return;
+                                }
                             } catch (IOException e) {
-                                logger.error(String.valueOf(e));
+                                fail("can not rename " + path + " to " + target + ": " + e);
+                                return;
                             }
                         }
-                    } catch (RuntimeException e) {
-                        throw new RuntimeException(e);
                     }
-                    logger.info("complete!!!!!");
-                    logger.info("File Transfer Completed\n");
+                    release();
+                    logger.info(target == null ? "empty upload completed"
+                            : "upload of " + target + " completed, " + verifier.offset() + " bytes");
                     responseObserver.onNext(UploadStatus.newBuilder().setCodeValue(1).build());
                     responseObserver.onCompleted();
                 }
-            };
+
+                private void fail(String message) {
+                    logger.error(message);
+                    try {
+                        hdfs.purge(path);
+                    } catch (IOException e) {
+                        logger.error("can not remove " + path + ": " + e);
+                    }
+                    release();
+                    responseObserver.onNext(UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                            .setMessage(message).build());
+                    responseObserver.onCompleted();
+                }
+
+                /**
+                 * The upload counts as stored once it is durable in the stage, HDFS gets it later.
+                 */
+                private void commitStaged() {
+                    UploadStatus status;
+                    try {
+                        staged.commit(verifier.fileCrc(), archive);
+                        staged = null;
+                        status = UploadStatus.newBuilder().setCode(UploadStatusCode.Ok).setMessage(path).build();
+                    } catch (IOException e) {
+                        logger.error("can not stage " + path + ": " + e);
+                        status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                                .setMessage("staging failed: " + e.getMessage()).build();
+                    }
+                    release();
+                    responseObserver.onNext(status);
+                    responseObserver.onCompleted();
+                }
+
+                private boolean closeOutput() {
+                    if (output == null) {
+                        return false;
+                    }
+                    try {
+                        long start = System.nanoTime();
+                        output.close();
+                        metrics.closeAck.recordSince(start);
+                        return true;
+                    } catch (Exception e) {
+                        logger.error(String.valueOf(e));
+                        return false;
+                    } finally {
+                        output = null;
+                    }
+                }
+
+                private void release() {
+                    closeOutput();
+                    if (staged != null) {
+                        staged.discard();
+                        staged = null;
+                    }
+                    if (hdfs != null) {
+                        try {
+                            hdfs.close();
+                        } catch (IOException e) {
+                            logger.error(String.valueOf(e));
+                        }
+                        hdfs = null;
+                    }
+                }
+            });
         }
     }
 
@@ -0,0 +1,286 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server side of {@code Download}.
+ *
+ * Reads happen on the reader pool and only while the call is ready: every onReady schedules the
+ * stream, which then sends chunks until {@code isReady()} turns false, so a slow client holds back
+ * the HDFS reads instead of piling up responses in memory. The file is read sequentially through
+ * {@code ByteBufferReadable} with readahead into one buffer per stream, which is reused because
+ * gRPC serializes a message before onNext returns.
+ */
+public class Downloads {
+    private static final Logger logger = LoggerFactory.getLogger(Downloads.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final long READAHEAD = 4L * 1024 * 1024;
+    /** Chunks one reader task sends before yielding the thread to other streams. */
+    private static final int BATCH = 16;
+
+    private final ExecutorService readers;
+    private final int maxChunkSize;
+
+    public Downloads(ExecutorService readers, int maxChunkSize) {
+        this.readers = readers;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Must be called from the service method, the handlers have to be set before it returns.
+     */
+    public void serve(DownloadRequest request, StreamObserver<Chunk> responseObserver) {
+        ServerCallStreamObserver<Chunk> call = (ServerCallStreamObserver<Chunk>) responseObserver;
+        int chunkSize = Math.min(maxChunkSize, request.getChunkSize() > 0 ? request.getChunkSize() : DEFAULT_CHUNK_SIZE);
+        DownloadStream stream = new DownloadStream(request, call, chunkSize);
+        call.setOnCancelHandler(stream::cancel);
+        call.setOnReadyHandler(stream::schedule);
+        stream.schedule();
+    }
+
+    /**
+     * The bytes a path stands for: the file itself, the original of an archive kept compressed, or
+     * a file in a pack, which is the range {@code [base, base + size)} of {@code in}.
+     */
+    static final class Source {
+        final FSDataInputStream in;
+        final long base;
+        final long size;
+
+        Source(FSDataInputStream in, long base, long size) {
+            this.in = in;
+            this.base = base;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param member a file of the pack at {@code path}, empty for the path itself
+     * @throws StatusRuntimeException NOT_FOUND or OUT_OF_RANGE if there is nothing to read
+     */
+    static Source resolve(Hdfs hdfs, String path, String member) throws IOException {
+        FileStatus status;
+        try {
+            status = hdfs.getFileStatus(path);
+        } catch (FileNotFoundException e) {
+            throw Status.NOT_FOUND.withDescription("no such file " + path).asRuntimeException();
+        }
+        if (status.isDirectory()) {
+            throw Status.OUT_OF_RANGE.withDescription(path + " is a directory").asRuntimeException();
+        }
+        if (!member.isEmpty()) {
+            PackFile.Entry entry = PackFile.find(hdfs, path, member);
+            if (entry == null) {
+                throw Status.NOT_FOUND.withDescription("no file " + member + " in " + path).asRuntimeException();
+            }
+            return new Source(hdfs.open(path), entry.offset, entry.length);
+        }
+        // archives are stored as frames, served inflated: sizes, offsets and CRCs are of the uploaded bytes
+        ChunkCodec.Frames frames = ChunkCodec.frames(hdfs, path);
+        if (frames != null) {
+            return new Source(ChunkCodec.open(hdfs, path, frames), 0, frames.length());
+        }
+        return new Source(hdfs.open(path), 0, status.getLen());
+    }
+
+    private final class DownloadStream implements Runnable {
+        final DownloadRequest request;
+        final ServerCallStreamObserver<Chunk> call;
+        final int chunkSize;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final Crc32c crc = new Crc32c();
+        volatile boolean pending = false;
+        volatile boolean cancelled = false;
+        boolean done = false;
+        Hdfs hdfs;
+        FSDataInputStream in;
+        ByteBuffer buffer;
+        boolean byteBufferReads = true;
+        long base;
+        long position;
+        long end;
+        int streamCrc = 0;
+        Chunk.Builder next = Chunk.newBuilder();
+
+        DownloadStream(DownloadRequest request, ServerCallStreamObserver<Chunk> call, int chunkSize) {
+            this.request = request;
+            this.call = call;
+            this.chunkSize = chunkSize;
+        }
+
+        void schedule() {
+            pending = true;
+            if (scheduled.compareAndSet(false, true)) {
+                readers.execute(this);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * Runs on a reader thread; the scheduled flag keeps at most one task per stream alive.
+         */
+        public void run() {
+            while (true) {
+                pending = false;
+                boolean yielded = step();
+                if (yielded) {
+                    readers.execute(this);
+                    return;
+                }
+                scheduled.set(false);
+                if (!pending || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if the stream still has a ready call and gave the thread up for fairness
+         */
+        private boolean step() {
+            if (done) {
+                return false;
+            }
+            if (cancelled) {
+                logger.info("download of " + request.getPath() + " cancelled at " + position);
+                close();
+                return false;
+            }
+            try {
+                if (in == null && !open()) {
+                    return false;
+                }
+                for (int i = 0; i < BATCH && position < end; i++) {
+                    if (!call.isReady()) {
+                        return false;
+                    }
+                    send();
+                }
+                if (position < end) {
+                    return call.isReady();
+                }
+                call.onNext(next.setDigest(StreamDigest.newBuilder()
+                        .setLength(end - request.getOffset()).setCrc32C(streamCrc)).build());
+                call.onCompleted();
+                close();
+            } catch (IOException | RuntimeException e) {
+                logger.error("download of " + request.getPath() + " failed at " + position + ": " + e);
+                fail(Status.fromThrowable(e).withDescription(String.valueOf(e)));
+            }
+            return false;
+        }
+
+        private boolean open() throws IOException {
+            hdfs = Hdfs.getInstance();
+            Source source;
+            try {
+                source = resolve(hdfs, request.getPath(), request.getMember());
+            } catch (StatusRuntimeException e) {
+                fail(e.getStatus());
+                return false;
+            }
+            in = source.in;
+            long size = source.size;
+            if (request.getOffset() < 0 || request.getOffset() > size || request.getLength() < 0) {
+                fail(Status.OUT_OF_RANGE.withDescription(String.format("%s: range %d+%d of a %d byte file",
+                        request.getPath(), request.getOffset(), request.getLength(), size)));
+                return false;
+            }
+            base = source.base;
+            position = request.getOffset();
+            end = request.getLength() == 0 ? size : Math.min(size, position + request.getLength());
+            try {
+                in.setReadahead(READAHEAD);
+            } catch (UnsupportedOperationException e) {
+                // not every file system reads ahead
+            }
+            in.seek(base + position);
+            buffer = ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(0, end - position)));
+            next.setOffset(position).setFileSize(size);
+            return true;
+        }
+
+        private void send() throws IOException {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (read() < 0) {
+                    throw new EOFException(request.getPath() + " ended at " + position + ", expected " + end);
+                }
+            }
+            buffer.flip();
+            int n = buffer.remaining();
+            int chunkCrc = crc.of(buffer);
+            streamCrc = crc.append(streamCrc, chunkCrc, n);
+            call.onNext(next.setContent(UnsafeByteOperations.unsafeWrap(buffer))
+                    .setCrc32C(chunkCrc).setHasCrc32C(true).build());
+            next = Chunk.newBuilder();
+            position += n;
+        }
+
+        private int read() throws IOException {
+            if (byteBufferReads) {
+                try {
+                    return in.read(buffer);
+                } catch (UnsupportedOperationException e) {
+                    // the stream is not ByteBufferReadable, fall back to arrays for good
+                    byteBufferReads = false;
+                }
+            }
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            return n;
+        }
+
+        private void fail(Status status) {
+            try {
+                call.onError(status.asRuntimeException());
+            } catch (RuntimeException e) {
+                // cancelled already
+            }
+            close();
+        }
+
+        private void close() {
+            done = true;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                }
+                in = null;
+            }
+            if (hdfs != null) {
+                try {
+                    hdfs.close();
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                }
+                hdfs = null;
+            }
+        }
+    }
+}
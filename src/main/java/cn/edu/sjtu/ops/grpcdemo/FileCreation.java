@@ -5,11 +5,33 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 public class FileCreation {
 
+    private static final int BLOCK = 1024 * 1024;
+
+    /**
+     * What a synthetic file is filled with. Sparse files are quick to create but all zeros, which
+     * compress to nothing and make any compression or dedup measurement meaningless.
+     */
+    public enum Content {
+        SPARSE,
+        /** Incompressible, like media or archives. */
+        RANDOM,
+        /** Words from a small vocabulary, compresses about like text or logs. */
+        COMPRESSIBLE
+    }
+
+    /**
+     * Usage: FileCreation [file] [bytes] [sparse|random|compressible]
+     */
     public static void main(String[] args) throws IOException {
-        createFixLengthFile(new File("src/main/resources/file-10M"), 100*1024*1024);
+        File file = new File(args.length > 0 ? args[0] : "src/main/resources/file-10M");
+        long length = args.length > 1 ? Long.parseLong(args[1]) : 100 * 1024 * 1024;
+        Content content = args.length > 2 ? Content.valueOf(args[2].toUpperCase()) : Content.SPARSE;
+        createFile(file, length, content, new Random());
     }
 
     public static void createFixLengthFile(File file, long length) throws IOException {
@@ -35,4 +57,57 @@ public class FileCreation {
         long end = System.currentTimeMillis();
         System.out.println("total times "+(end-start));
     }
+
+    /**
+     * Write {@code length} bytes of {@code content} to {@code file}; the same seed gives the same file.
+     */
+    public static void createFile(File file, long length, Content content, Random random) throws IOException {
+        if (content == Content.SPARSE) {
+            if (length > 0) {
+                createFixLengthFile(file, length);
+            } else {
+                new FileOutputStream(file).close();
+            }
+            return;
+        }
+        byte[][] words = content == Content.COMPRESSIBLE ? vocabulary(random) : null;
+        byte[] block = new byte[BLOCK];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < length; written += BLOCK) {
+                int n = (int) Math.min(BLOCK, length - written);
+                if (words == null) {
+                    random.nextBytes(block);
+                } else {
+                    fillWithWords(block, n, words, random);
+                }
+                out.write(block, 0, n);
+            }
+        }
+    }
+
+    private static byte[][] vocabulary(Random random) {
+        byte[][] words = new byte[4096][];
+        for (int i = 0; i < words.length; i++) {
+            char[] word = new char[2 + random.nextInt(10)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(word).getBytes(StandardCharsets.US_ASCII);
+        }
+        return words;
+    }
+
+    private static void fillWithWords(byte[] block, int n, byte[][] words, Random random) {
+        int i = 0;
+        while (i < n) {
+            // a skewed pick, frequent words like in real text
+            byte[] word = words[(int) (words.length * Math.pow(random.nextDouble(), 3))];
+            int m = Math.min(word.length, n - i);
+            System.arraycopy(word, 0, block, i, m);
+            i += m;
+            if (i < n) {
+                block[i++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+        }
+    }
 }
@@ -0,0 +1,303 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Head, tail and ranges of a file, by lines or by bytes, read block by block with positional reads
+ * into pooled direct buffers. Output goes to a {@link Sink} one block at a time, so a preview needs
+ * one block of memory whatever it returns, and a typical one is answered by a single read; a tail
+ * seeks back from the end instead of reading the file up to it.
+ *
+ * Newlines are found eight bytes at a time: {@link #newlines} marks the '\n' bytes of a word
+ * exactly, then the marks are counted or located with a bit count or a leading/trailing zero count.
+ */
+public final class FilePreview {
+
+    public static final int BLOCK = 64 * 1024;
+    private static final int POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * Takes the preview block by block.
+     */
+    public interface Sink {
+        /**
+         * @param bytes valid only during the call
+         */
+        void write(ByteBuffer bytes) throws IOException;
+    }
+
+    private final FSDataInputStream in;
+    private final long base;
+    private final long length;
+    private final long maxBytes;
+    private boolean byteBufferReads = true;
+    private byte[] heap;
+    // newlines still to pass in the current scan
+    private long pending;
+
+    /**
+     * @param base     offset of the previewed bytes in the stream, non-zero for a file inside a pack
+     * @param length   bytes from {@code base} on that make up the file
+     * @param maxBytes most bytes a preview writes; longer ones are cut off
+     */
+    public FilePreview(FSDataInputStream in, long base, long length, long maxBytes) {
+        this.in = in;
+        this.base = base;
+        this.length = length;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return file offset of the first byte written
+     */
+    public long head(long lines, Sink sink) throws IOException {
+        return lines(0, lines, sink);
+    }
+
+    /**
+     * Lines {@code from} (0-based) to {@code from + count}, the last with its newline if it has one.
+     *
+     * @return file offset of the first byte written, the file length if it has fewer lines
+     */
+    public long lines(long from, long count, Sink sink) throws IOException {
+        long start = skipLines(from);
+        if (count > 0) {
+            copyLines(start, count, sink);
+        }
+        return start;
+    }
+
+    /**
+     * The last {@code lines} lines; a newline at the very end does not start another one.
+     *
+     * @return file offset of the first byte written
+     */
+    public long tail(long lines, Sink sink) throws IOException {
+        long start = Math.max(tailStart(lines), length - maxBytes);
+        copy(start, length - start, sink);
+        return start;
+    }
+
+    /**
+     * @return file offset of the first byte written
+     */
+    public long range(long offset, long count, Sink sink) throws IOException {
+        if (offset < 0 || offset > length || count < 0) {
+            throw new EOFException(String.format("range %d+%d of %d bytes", offset, count, length));
+        }
+        copy(offset, Math.min(count, length - offset), sink);
+        return offset;
+    }
+
+    private long skipLines(long lines) throws IOException {
+        if (lines <= 0) {
+            return 0;
+        }
+        pending = lines;
+        ByteBuffer buffer = borrow();
+        try {
+            for (long position = 0; position < length; position += buffer.limit()) {
+                read(position, buffer);
+                int after = scanForward(buffer);
+                if (after >= 0) {
+                    return position + after;
+                }
+            }
+            return length;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private void copyLines(long start, long lines, Sink sink) throws IOException {
+        pending = lines;
+        // start + maxBytes overflows without a limit
+        long end = start + Math.min(length - start, maxBytes);
+        ByteBuffer buffer = borrow();
+        try {
+            for (long position = start; position < end; position += buffer.limit()) {
+                read(position, buffer);
+                if (buffer.limit() > end - position) {
+                    buffer.limit((int) (end - position));
+                }
+                int after = scanForward(buffer);
+                if (after >= 0) {
+                    buffer.limit(after);
+                    sink.write(buffer);
+                    return;
+                }
+                sink.write(buffer);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private long tailStart(long lines) throws IOException {
+        if (lines <= 0 || length == 0) {
+            return length;
+        }
+        pending = lines;
+        ByteBuffer buffer = borrow();
+        try {
+            // the last byte ends the last line, whether it is a newline or not
+            long end = length - 1;
+            while (end > 0) {
+                long position = Math.max(0, end - BLOCK);
+                read(position, buffer);
+                buffer.limit((int) (end - position));
+                int newline = scanBackward(buffer);
+                if (newline >= 0) {
+                    return position + newline + 1;
+                }
+                end = position;
+            }
+            return 0;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private void copy(long start, long count, Sink sink) throws IOException {
+        long end = start + Math.min(count, maxBytes);
+        ByteBuffer buffer = borrow();
+        try {
+            for (long position = start; position < end; position += buffer.limit()) {
+                read(position, buffer);
+                if (buffer.limit() > end - position) {
+                    buffer.limit((int) (end - position));
+                }
+                sink.write(buffer);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * @return the index after the newline that ends the pending lines, -1 if the buffer ends first
+     */
+    private int scanForward(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int i = 0;
+        for (; i + 8 <= limit; i += 8) {
+            long marks = newlines(buffer.getLong(i));
+            if (marks == 0) {
+                continue;
+            }
+            int found = Long.bitCount(marks);
+            if (found < pending) {
+                pending -= found;
+                continue;
+            }
+            // the pending-th mark, from the lowest byte up
+            while (--pending > 0) {
+                marks &= marks - 1;
+            }
+            return i + (Long.numberOfTrailingZeros(marks) >>> 3) + 1;
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) == '\n' && --pending == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Like {@link #scanForward} from the buffer's end down.
+     *
+     * @return the index of the newline before the pending lines, -1 if the buffer starts first
+     */
+    private int scanBackward(ByteBuffer buffer) {
+        int i = buffer.limit();
+        for (; i % 8 != 0; i--) {
+            if (buffer.get(i - 1) == '\n' && --pending == 0) {
+                return i - 1;
+            }
+        }
+        for (; i >= 8; i -= 8) {
+            long marks = newlines(buffer.getLong(i - 8));
+            if (marks == 0) {
+                continue;
+            }
+            int found = Long.bitCount(marks);
+            if (found < pending) {
+                pending -= found;
+                continue;
+            }
+            // the pending-th mark, from the highest byte down
+            int bit = 63;
+            while (true) {
+                bit = 63 - Long.numberOfLeadingZeros(marks & ((2L << bit) - 1));
+                if (--pending == 0) {
+                    return i - 8 + (bit >>> 3);
+                }
+                bit--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the high bit of every byte of {@code word} that is '\n', no other bits
+     */
+    static long newlines(long word) {
+        long x = word ^ NEWLINES;
+        // a byte's high bit ends up clear only if the byte is zero
+        return ~(((x & LOW_7_BITS) + LOW_7_BITS) | x | LOW_7_BITS);
+    }
+
+    /**
+     * Fill {@code buffer} from file offset {@code position}, as far as the file goes.
+     */
+    private void read(long position, ByteBuffer buffer) throws IOException {
+        int n = (int) Math.min(BLOCK, length - position);
+        buffer.clear();
+        buffer.limit(n);
+        if (byteBufferReads) {
+            try {
+                while (buffer.hasRemaining()) {
+                    if (in.read(base + position + buffer.position(), buffer) < 0) {
+                        throw new EOFException("file ended at " + (position + buffer.position()) + " of " + length);
+                    }
+                }
+                buffer.flip();
+                return;
+            } catch (UnsupportedOperationException e) {
+                // not ByteBufferPositionedReadable, e.g. a local file or an archive
+                byteBufferReads = false;
+                buffer.clear();
+                buffer.limit(n);
+            }
+        }
+        if (heap == null) {
+            heap = new byte[BLOCK];
+        }
+        in.readFully(base + position, heap, 0, n);
+        buffer.put(heap, 0, n);
+        buffer.flip();
+    }
+
+    private static ByteBuffer borrow() {
+        ByteBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        // an unbounded queue would keep the largest burst of concurrent previews forever
+        if (POOL.size() < POOLED_BUFFERS) {
+            POOL.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import java.io.File;
+import java.io.IOException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Credentials and identity of the server towards HDFS, read from {@code conf/file_system.config.json}:
+ *
+ * <pre>
+ * { "file_system": {
+ *     "default_user": "...",          user of all requests without Kerberos
+ *     "kerberos_enabled": true,
+ *     "kerberos_user": "...",         principal, unless kerberos_principal is given
+ *     "kerberos_principal": "...",    optional
+ *     "kerberos_keytab": "...",       optional, conf/krb5.keytab
+ *     "krb5_conf": "..."              optional, conf/krb5.conf
+ * } }
+ * </pre>
+ */
+public class FileSystemConfig {
+
+    public static final String DEFAULT_FILE = "conf/file_system.config.json";
+
+    private final String defaultUser;
+    private final boolean kerberosEnabled;
+    private final String principal;
+    private final String keytab;
+    private final String krb5Conf;
+
+    private FileSystemConfig(JsonNode fileSystem) {
+        this.defaultUser = text(fileSystem, "default_user", null);
+        this.kerberosEnabled = fileSystem.path("kerberos_enabled").asBoolean(false);
+        this.principal = text(fileSystem, "kerberos_principal", text(fileSystem, "kerberos_user", null));
+        this.keytab = text(fileSystem, "kerberos_keytab", "conf/krb5.keytab");
+        this.krb5Conf = text(fileSystem, "krb5_conf", "conf/krb5.conf");
+    }
+
+    public static FileSystemConfig load(File file) throws IOException {
+        JsonNode fileSystem = new ObjectMapper().readTree(file).path("file_system");
+        if (!fileSystem.isObject()) {
+            throw new IOException(file + ": no file_system section");
+        }
+        FileSystemConfig config = new FileSystemConfig(fileSystem);
+        if (config.kerberosEnabled && (config.principal == null || !new File(config.keytab).isFile())) {
+            throw new IOException(String.format("%s: kerberos needs a principal and a keytab, have %s and %s",
+                    file, config.principal, config.keytab));
+        }
+        return config;
+    }
+
+    private static String text(JsonNode node, String field, String defaultValue) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() || value.asText().isEmpty() ? defaultValue : value.asText();
+    }
+
+    public String getDefaultUser() {
+        return defaultUser;
+    }
+
+    public boolean isKerberosEnabled() {
+        return kerberosEnabled;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getKeytab() {
+        return keytab;
+    }
+
+    public String getKrb5Conf() {
+        return krb5Conf;
+    }
+}
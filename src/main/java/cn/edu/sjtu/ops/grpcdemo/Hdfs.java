@@ -3,60 +3,160 @@ package cn.edu.sjtu.ops.grpcdemo;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import com.google.common.base.Joiner;
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.fs.permission.AclEntry;
 import org.apache.hadoop.fs.permission.FsPermission;
-import org.apache.hadoop.fs.shell.Command;
-import org.apache.hadoop.fs.shell.CommandFactory;
-import org.apache.hadoop.fs.shell.FsCommand;
+import org.apache.hadoop.hdfs.DFSClient;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.log4j.Logger;
 
 public class Hdfs implements Closeable {
     private static final Logger log = Logger.getLogger(Hdfs.class);
 
+    public static final int PREVIEW_MAX_BYTES = 16 * 1024 * 1024;
+    // as hadoop fs -stat prints times
+    private static final DateTimeFormatter STAT_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
     private volatile static Configuration conf;
+    private volatile static HdfsPool pool;
+    private volatile static MetadataCache metadata;
+    private final HdfsPool owner;
+    private final MetadataCache cache;
+    private HdfsPool.Handle handle;
     private FileSystem fs;
     private Trash trash;
 
+    /**
+     * Borrow a pooled FileSystem handle, shared with other instances; {@link #close()} gives it back.
+     */
     public static Hdfs getInstance() throws IOException {
-        return new Hdfs();
+        HdfsPool owner = getPool();
+        return new Hdfs(owner, owner.borrow(), metadata);
     }
 
-    Hdfs() throws IOException {
-        synchronized(Hdfs.class) {
-            init();
+    static HdfsPool getPool() throws IOException {
+        if (pool == null) {
+            synchronized (Hdfs.class) {
+                if (pool == null) {
+                    init();
+                    metadata = new MetadataCache(conf);
+                    pool = new HdfsPool(conf);
+                }
+            }
         }
-        fs = FileSystem.get(conf);
-        trash = new Trash(fs, conf);
+        return pool;
+    }
+
+    /**
+     * Log in, connect to the NameNode and fill the pool with checked handles now, instead of in the
+     * first request that needs HDFS while every other one waits for it on the class lock.
+     *
+     * @throws IOException if the login fails or the NameNode does not answer
+     */
+    public static void start() throws IOException {
+        long started = System.nanoTime();
+        getPool().prestart();
+        log.info(String.format("hdfs ready in %d ms: %s", (System.nanoTime() - started) / 1000000,
+                conf.get("fs.defaultFS")));
+    }
+
+    /**
+     * @return the pool's counters, or null while no handle was borrowed yet
+     */
+    public static HdfsPool.Stats poolStats() {
+        HdfsPool p = pool;
+        return p == null ? null : p.getStats();
+    }
+
+    /**
+     * @return hits and misses of the metadata cache, or null while no handle was borrowed yet
+     */
+    public static MetadataCache.Stats metadataStats() {
+        MetadataCache m = metadata;
+        return m == null ? null : m.getStats();
     }
 
-    void init() throws IOException {
+    public static void closePool() {
+        synchronized (Hdfs.class) {
+            if (pool != null) {
+                log.info(pool.getStats());
+                log.info(metadata.getStats());
+                pool.close();
+                metadata.close();
+                pool = null;
+                metadata = null;
+            }
+        }
+    }
+
+    private Hdfs(HdfsPool owner, HdfsPool.Handle handle, MetadataCache cache) {
+        this.owner = owner;
+        this.cache = cache;
+        this.handle = handle;
+        this.fs = handle.fs;
+        this.trash = handle.trash;
+    }
+
+    /**
+     * Use {@code configuration} as it is instead of the login of {@link #init()}, e.g. for
+     * a local file system or a MiniDFSCluster. Has no effect once the pool exists.
+     */
+    public static synchronized void init(Configuration configuration) {
         if (conf != null) {
             log.info("others already init hdfs!");
             return;
         }
+        conf = configuration;
+        log.info("hdfs configured for " + conf.get("fs.defaultFS"));
+    }
 
-        conf = new Configuration();
-
-        conf.set("hadoop.security.authentication", "Kerberos");
-        conf.set("hadoop.security.authorization", "true");
-        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
-        conf.set("fs.hdfs.impl", DistributedFileSystem.class.getName());
-
-        System.setProperty("java.security.krb5.conf", "conf/krb5.conf");
-        UserGroupInformation.setConfiguration(conf);
-        UserGroupInformation.loginUserFromKeytab("zhangxiping/127.0.0.1@EXAMPLE.COM", "D:\\Users\\temp\\zhangxiping.keytab");
+    /**
+     * Log in as configured in {@link FileSystemConfig#DEFAULT_FILE}.
+     */
+    static void init() throws IOException {
+        if (conf != null) {
+            log.info("others already init hdfs!");
+            return;
+        }
+        FileSystemConfig config = FileSystemConfig.load(new File(FileSystemConfig.DEFAULT_FILE));
+
+        Configuration configuration = new Configuration();
+        configuration.setBoolean("fs.hdfs.impl.disable.cache", true);
+        configuration.set("fs.hdfs.impl", DistributedFileSystem.class.getName());
+
+        if (config.isKerberosEnabled()) {
+            configuration.set("hadoop.security.authentication", "Kerberos");
+            configuration.set("hadoop.security.authorization", "true");
+            System.setProperty("java.security.krb5.conf", config.getKrb5Conf());
+            UserGroupInformation.setConfiguration(configuration);
+            UserGroupInformation.loginUserFromKeytab(config.getPrincipal(), config.getKeytab());
+        } else {
+            if (config.getDefaultUser() != null) {
+                System.setProperty("HADOOP_USER_NAME", config.getDefaultUser());
+            }
+            UserGroupInformation.setConfiguration(configuration);
+        }
+        // only after the login, a failed one is tried again by the next caller
+        conf = configuration;
 
         log.info("success init hdfs!");
         log.info("current user: "+UserGroupInformation.getCurrentUser());
@@ -67,25 +167,175 @@ public class Hdfs implements Closeable {
         return conf.get("fs.defaultFS");
     }
 
+    /**
+     * {@code hadoop fs -stat}: the status of {@code path} formatted by {@code %a %A %b %F %g %n %o %r
+     * %u %x %X %y %Y}, by default {@code %y}; from one getFileStatus instead of running the shell.
+     */
     public String stat(String path, String time_format) throws IOException {
-        String[] args = {time_format.equals("") ? "%y" : time_format, path};
-        CommandResponse rv = runCommand("stat", args);
-        if (rv.exit_code != 0) {
-            throw new IOException(rv.out);
+        FileStatus status = getFileStatus(path);
+        String format = time_format.equals("") ? "%y" : time_format;
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 == format.length()) {
+                out.append(c);
+                continue;
+            }
+            c = format.charAt(++i);
+            switch (c) {
+                case 'a':
+                    out.append(status.getPermission().toOctal());
+                    break;
+                case 'A':
+                    out.append(status.getPermission());
+                    break;
+                case 'b':
+                    out.append(status.getLen());
+                    break;
+                case 'F':
+                    out.append(status.isDirectory() ? "directory" : status.isFile() ? "regular file" : "symlink");
+                    break;
+                case 'g':
+                    out.append(status.getGroup());
+                    break;
+                case 'n':
+                    out.append(status.getPath().getName());
+                    break;
+                case 'o':
+                    out.append(status.getBlockSize());
+                    break;
+                case 'r':
+                    out.append(status.getReplication());
+                    break;
+                case 'u':
+                    out.append(status.getOwner());
+                    break;
+                case 'x':
+                    out.append(STAT_TIME.format(Instant.ofEpochMilli(status.getAccessTime())));
+                    break;
+                case 'X':
+                    out.append(status.getAccessTime());
+                    break;
+                case 'y':
+                    out.append(STAT_TIME.format(Instant.ofEpochMilli(status.getModificationTime())));
+                    break;
+                case 'Y':
+                    out.append(status.getModificationTime());
+                    break;
+                default:
+                    out.append('%').append(c);
+                    break;
+            }
+        }
+        return out.append('\n').toString();
+    }
+
+    /**
+     * Entries of the directory {@code path} as the NameNode pages them, {@code dfs.ls.limit} at a
+     * time, so a directory of any size takes the memory of one page; uncached.
+     */
+    public RemoteIterator<FileStatus> listIterator(String path) throws IOException {
+        return fs.listStatusIterator(new Path(path));
+    }
+
+    /**
+     * Like {@link #listIterator(String)}, for a listing that gave its handle back and goes on with
+     * another one: the entries after the first {@code skip}, of which {@code after} is the name of
+     * the last. HDFS lists on after that name, as its own iterator does from page to page; other
+     * file systems list the directory again and skip the entries.
+     */
+    public RemoteIterator<FileStatus> listIterator(String path, String after, long skip) throws IOException {
+        final Path _path = fs.makeQualified(new Path(path));
+        if (fs instanceof DistributedFileSystem) {
+            final DFSClient client = ((DistributedFileSystem) fs).getClient();
+            final String src = _path.toUri().getPath();
+            final URI uri = fs.getUri();
+            final byte[] start = after.getBytes(StandardCharsets.UTF_8);
+            final DirectoryListing first = client.listPaths(src, start);
+            if (first == null) {
+                throw new FileNotFoundException("File " + path + " does not exist.");
+            }
+            return new RemoteIterator<FileStatus>() {
+                DirectoryListing listing = first;
+                int i = 0;
+
+                @Override
+                public boolean hasNext() throws IOException {
+                    while (i == listing.getPartialListing().length) {
+                        if (!listing.hasMore()) {
+                            return false;
+                        }
+                        DirectoryListing next = client.listPaths(src, listing.getLastName());
+                        if (next == null) {
+                            throw new FileNotFoundException("File " + path + " does not exist.");
+                        }
+                        listing = next;
+                        i = 0;
+                    }
+                    return true;
+                }
+
+                @Override
+                public FileStatus next() throws IOException {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException("no more entries in " + path);
+                    }
+                    return listing.getPartialListing()[i++].makeQualified(uri, _path);
+                }
+            };
+        }
+        RemoteIterator<FileStatus> entries = fs.listStatusIterator(_path);
+        for (long i = 0; i < skip && entries.hasNext(); i++) {
+            entries.next();
         }
-        return rv.out;
+        return entries;
     }
 
+    /**
+     * Served from the metadata cache; lengths of files in the listing may be up to its TTL old.
+     */
     public FileStatus[] ls(String path) throws IOException {
+        final Path _path = new Path(path);
+        return cache.list(key(_path), () -> fs.listStatus(_path));
+    }
+
+    /**
+     * Like {@link #ls}, but always asked from the NameNode, for callers that act on every entry.
+     */
+    public FileStatus[] list(String path) throws IOException {
         return fs.listStatus(new Path(path));
     }
 
     public boolean isfile(String path) throws IOException {
-        return fs.isFile(new Path(path));
+        return isfile(new Path(path));
+    }
+
+    private boolean isfile(Path path) throws IOException {
+        try {
+            return getFileStatus(path).isFile();
+        } catch (FileNotFoundException e) {
+            return false;
+        }
     }
 
     public boolean exists(String path) throws IOException {
-        return fs.exists(new Path(path));
+        return exists(new Path(path));
+    }
+
+    private boolean exists(Path path) throws IOException {
+        try {
+            getFileStatus(path);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The key of {@code path} in the metadata cache: its absolute path, without scheme and authority.
+     */
+    private String key(Path path) {
+        return fs.makeQualified(path).toUri().getPath();
     }
 
     public long getContentSize(String path) throws IOException {
@@ -93,11 +343,111 @@ public class Hdfs implements Closeable {
     }
 
     public boolean delete(String path) throws IOException {
-        return this.trash.moveToTrash(new Path(path));
+        Path _path = new Path(path);
+        try {
+            return this.trash.moveToTrash(_path);
+        } finally {
+            cache.invalidateTree(key(_path));
+        }
+    }
+
+    /**
+     * Delete without going through the trash, for temporary files.
+     */
+    public boolean purge(String path) throws IOException {
+        Path _path = new Path(path);
+        try {
+            return fs.delete(_path, true);
+        } finally {
+            cache.invalidateTree(key(_path));
+        }
+    }
+
+    /**
+     * @param mtime modification time to set, -1 to leave it
+     * @param atime access time to set, -1 to leave it
+     */
+    public void setTimes(String path, long mtime, long atime) throws IOException {
+        Path _path = new Path(path);
+        try {
+            fs.setTimes(_path, mtime, atime);
+        } finally {
+            cache.invalidate(key(_path));
+        }
+    }
+
+    public void setXAttr(String path, String name, byte[] value) throws IOException {
+        fs.setXAttr(new Path(path), name, value);
+    }
+
+    public byte[] getXAttr(String path, String name) throws IOException {
+        return fs.getXAttr(new Path(path), name);
+    }
+
+    public Map<String, byte[]> getXAttrs(String path) throws IOException {
+        return fs.getXAttrs(new Path(path));
     }
 
     public FSDataOutputStream create(String path, boolean overwrite) throws IOException {
-        return fs.create(new Path(path), overwrite);
+        Path _path = new Path(path);
+        try {
+            return fs.create(_path, overwrite);
+        } finally {
+            // the file and maybe its parents are new
+            cache.invalidate(key(_path));
+        }
+    }
+
+    /**
+     * Reopen a file for appending at exactly {@code length} bytes. A lease left behind by a
+     * dead writer is recovered first, bytes past {@code length} are truncated away.
+     */
+    public FSDataOutputStream resume(String path, long length) throws IOException {
+        Path _path = new Path(path);
+        if (fs instanceof DistributedFileSystem) {
+            DistributedFileSystem dfs = (DistributedFileSystem) fs;
+            if (!dfs.recoverLease(_path)) {
+                waitUntilClosed(dfs, _path);
+            }
+            if (fs.getFileStatus(_path).getLen() > length && !dfs.truncate(_path, length)) {
+                // the last block is being recovered to the new length
+                waitUntilClosed(dfs, _path);
+            }
+        } else if (fs.getFileStatus(_path).getLen() > length) {
+            fs.truncate(_path, length);
+        }
+        cache.invalidate(key(_path));
+        long actual = fs.getFileStatus(_path).getLen();
+        if (actual != length) {
+            throw new IOException(String.format("%s has %d bytes, expected %d", path, actual, length));
+        }
+        return fs.append(_path);
+    }
+
+    private void waitUntilClosed(DistributedFileSystem dfs, Path path) throws IOException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (!dfs.isFileClosed(path)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException(String.format("%s is still open after lease recovery", path));
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + path);
+            }
+        }
+    }
+
+    /**
+     * Directories and missing paths come from the metadata cache, files always from the NameNode.
+     */
+    public FileStatus getFileStatus(String path) throws IOException {
+        return getFileStatus(new Path(path));
+    }
+
+    private FileStatus getFileStatus(final Path path) throws IOException {
+        return cache.getFileStatus(key(path), () -> fs.getFileStatus(path));
     }
 
     public FSDataInputStream open(String path) throws IOException {
@@ -105,7 +455,7 @@ public class Hdfs implements Closeable {
     }
 
     public void rm(String path) throws IOException {
-        this.trash.moveToTrash(new Path(path));
+        delete(path);
     }
 
     public void cp(String src, String dst, boolean overwrite) throws IOException {
@@ -116,91 +466,199 @@ public class Hdfs implements Closeable {
         Path parent_path = new Path(parent);
         Path dst_path = new Path(dst);
         Path src_path = new Path(src);
-        if (!fs.exists(parent_path))
-            fs.mkdirs(parent_path);
+        if (!exists(parent_path))
+            mkdirs(parent_path);
 
-        if (fs.exists(dst_path) && !overwrite)
+        boolean dst_exists = exists(dst_path);
+        if (dst_exists && !overwrite)
             throw new IOException(String.format("file or directory %s exists", dst));
-        if (fs.exists(dst_path) && overwrite)
-            fs.delete(dst_path, true);
-        FileUtil.copy(fs, src_path, fs, dst_path, false, conf);
+        try {
+            if (dst_exists && overwrite)
+                fs.delete(dst_path, true);
+            FileUtil.copy(fs, src_path, fs, dst_path, false, conf);
+        } finally {
+            cache.invalidateTree(key(dst_path));
+        }
     }
 
+    /**
+     * On HDFS an overwriting rename replaces the target in one NameNode call, so readers see either
+     * the old or the new file; a non-empty directory is not replaced.
+     */
     public boolean rename(String from, String to, boolean overwrite) throws IOException {
         Path path = new Path(to);
         Path toParentPath = path.getParent();
-        if (!fs.exists(toParentPath)) {
-            fs.mkdirs(toParentPath);
+        if (!exists(toParentPath)) {
+            mkdirs(toParentPath);
         }
 
         Path fromPath = new Path(from);
         Path toPath = new Path(to);
-        if (fs.exists(toPath)) {
-            if (!overwrite) {
-                throw new IOException(String.format("file or directory %s already exists", toPath));
-            } else {
-                fs.delete(toPath, true);
+        try {
+            if (fs instanceof DistributedFileSystem) {
+                ((DistributedFileSystem) fs).rename(fromPath, toPath,
+                        overwrite ? Options.Rename.OVERWRITE : Options.Rename.NONE);
+                return true;
+            }
+            if (exists(toPath)) {
+                if (!overwrite) {
+                    throw new IOException(String.format("file or directory %s already exists", toPath));
+                } else {
+                    fs.delete(toPath, true);
+                }
+            }
+            return fs.rename(fromPath, toPath);
+        } finally {
+            cache.invalidateTree(key(fromPath));
+            cache.invalidateTree(key(toPath));
+        }
+    }
+
+    /**
+     * Join srcs, in order, into a new file target. All paths must be in the same directory.
+     * On HDFS the blocks are moved by the NameNode with {@link DistributedFileSystem#concat},
+     * other file systems fall back to copying. The sources are gone afterwards.
+     */
+    public void concat(String target, List<String> srcs) throws IOException {
+        if (srcs.isEmpty()) {
+            throw new IOException("nothing to concat into " + target);
+        }
+        Path targetPath = new Path(target);
+        try {
+            concat(targetPath, srcs);
+        } finally {
+            cache.invalidate(key(targetPath));
+            for (String src : srcs) {
+                cache.invalidate(key(new Path(src)));
             }
         }
-        return fs.rename(fromPath, toPath);
     }
 
+    private void concat(Path targetPath, List<String> srcs) throws IOException {
+        if (fs instanceof DistributedFileSystem) {
+            if (!fs.rename(new Path(srcs.get(0)), targetPath)) {
+                throw new IOException(String.format("failed to rename %s to %s", srcs.get(0), targetPath));
+            }
+            if (srcs.size() > 1) {
+                Path[] rest = new Path[srcs.size() - 1];
+                for (int i = 1; i < srcs.size(); i++) {
+                    rest[i - 1] = new Path(srcs.get(i));
+                }
+                ((DistributedFileSystem) fs).concat(targetPath, rest);
+            }
+            return;
+        }
+        try (FSDataOutputStream out = fs.create(targetPath, true)) {
+            for (String src : srcs) {
+                try (FSDataInputStream in = fs.open(new Path(src))) {
+                    IOUtils.copyBytes(in, out, conf, false);
+                }
+            }
+        }
+        for (String src : srcs) {
+            fs.delete(new Path(src), false);
+        }
+    }
+
+    /**
+     * Every upload calls this for its directory, which exists after the first one; the check is
+     * answered by the metadata cache then.
+     */
     public void mkdir(String path) throws IOException {
         Path _path = new Path(path);
-        if (!fs.exists(_path))
-            fs.mkdirs(_path);
+        if (!exists(_path))
+            mkdirs(_path);
+    }
+
+    private void mkdirs(Path path) throws IOException {
+        try {
+            fs.mkdirs(path);
+        } finally {
+            cache.invalidate(key(path));
+        }
     }
 
     public void mkdir(String path, String permission, List<String> acl) throws IOException {
         Path _path = new Path(path);
-        // fs.mkdirs with 777 permission does not work
-        if (!fs.exists(_path))
-            fs.mkdirs(_path, FsPermission.valueOf(permission));
-        fs.setPermission(_path, FsPermission.valueOf(permission));
-        fs.setAcl(_path, AclEntry.parseAclSpec(String.join(",", acl), true));
+        try {
+            // fs.mkdirs with 777 permission does not work
+            if (!exists(_path))
+                fs.mkdirs(_path, FsPermission.valueOf(permission));
+            fs.setPermission(_path, FsPermission.valueOf(permission));
+            fs.setAcl(_path, AclEntry.parseAclSpec(String.join(",", acl), true));
+        } finally {
+            cache.invalidate(key(_path));
+        }
     }
 
     public void addACL(String path, List<String> acl) throws IOException {
         Path _path = new Path(path);
-        if (fs.exists(_path)) {
+        if (exists(_path)) {
             List<AclEntry> aclEntries = fs.getAclStatus(_path).getEntries();
             aclEntries.addAll(AclEntry.parseAclSpec(String.join(",", acl), true));
-            fs.setAcl(_path, aclEntries);
+            try {
+                fs.setAcl(_path, aclEntries);
+            } finally {
+                cache.invalidate(key(_path));
+            }
         }
     }
 
     public void removeACL(String path, List<String> acl) throws IOException {
         Path _path = new Path(path);
-        if (fs.exists(_path)) {
+        if (exists(_path)) {
             List<AclEntry> aclEntries = fs.getAclStatus(_path).getEntries();
             aclEntries.addAll(AclEntry.parseAclSpec(String.join(",", acl), false));
-            fs.removeAclEntries(_path, aclEntries);
+            try {
+                fs.removeAclEntries(_path, aclEntries);
+            } finally {
+                cache.invalidate(key(_path));
+            }
         }
     }
 
+    /**
+     * The first {@code num_of_lines} lines of a file, at most {@link #PREVIEW_MAX_BYTES}.
+     */
     public byte[] head(String path, int num_of_lines) throws IOException {
-        List<Byte> ls = new ArrayList<>();
-        int lines = 0;
-        try (InputStream input = fs.open(new Path(path))) {
-            int k;
-            int cnt = 0;
-            byte[] arr = new byte[1024];
-            while (cnt < 1024 && (k = input.read(arr)) != -1 && lines < num_of_lines) {
-                cnt++;
-                int j = 0;
-                while (j < k && lines < num_of_lines) {
-                    if (arr[j] == '\n') {
-                        lines++;
-                    }
-                    ls.add(arr[j]);
-                    j++;
-                }
-            }
-            byte[] res = new byte[ls.size()];
-            for (int i = 0; i < ls.size(); i++)
-                res[i] = ls.get(i);
-            return res;
+        return preview(path, (preview, sink) -> preview.head(num_of_lines, sink));
+    }
+
+    /**
+     * The last {@code num_of_lines} lines of a file, at most {@link #PREVIEW_MAX_BYTES}.
+     */
+    public byte[] tail(String path, int num_of_lines) throws IOException {
+        return preview(path, (preview, sink) -> preview.tail(num_of_lines, sink));
+    }
+
+    /**
+     * Lines {@code from} to {@code from + count} of a file, counted from 0.
+     */
+    public byte[] lines(String path, long from, long count) throws IOException {
+        return preview(path, (preview, sink) -> preview.lines(from, count, sink));
+    }
+
+    public byte[] range(String path, long offset, int length) throws IOException {
+        return preview(path, (preview, sink) -> preview.range(offset, length, sink));
+    }
+
+    private interface PreviewCall {
+        long run(FilePreview preview, FilePreview.Sink sink) throws IOException;
+    }
+
+    private byte[] preview(String path, PreviewCall call) throws IOException {
+        Path _path = new Path(path);
+        long length = fs.getFileStatus(_path).getLen();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] block = new byte[FilePreview.BLOCK];
+        try (FSDataInputStream input = fs.open(_path)) {
+            call.run(new FilePreview(input, 0, length, PREVIEW_MAX_BYTES), bytes -> {
+                int n = bytes.remaining();
+                bytes.get(block, 0, n);
+                out.write(block, 0, n);
+            });
         }
+        return out.toByteArray();
     }
 
     public void download(String src, String dst, boolean overwrite) throws IOException {
@@ -218,8 +676,7 @@ public class Hdfs implements Closeable {
             FileUtils.forceDelete(f);
         Path src_path = new Path(src);
         Path dst_path = new Path(dst);
-        fs.setVerifyChecksum(false);
-        fs.setWriteChecksum(false);
+        // the raw local file system writes no .crc files; the handle is shared, so leave its flags alone
         fs.copyToLocalFile(false, src_path, dst_path, true);
     }
 
@@ -229,47 +686,29 @@ public class Hdfs implements Closeable {
         Joiner joiner = Joiner.on("/");
         String parent = joiner.join(parent_list);
         Path parent_path = new Path(parent);
-        if (!fs.exists(parent_path))
-            fs.mkdirs(parent_path);
+        if (!exists(parent_path))
+            mkdirs(parent_path);
         Path dst_path = new Path(dst);
         Path src_path = new Path(src);
-        if (fs.exists(dst_path) && !overwrite)
+        boolean dst_exists = exists(dst_path);
+        if (dst_exists && !overwrite)
             throw new IOException(String.format("file or directory %s exists", dst));
-        if (fs.exists(dst_path) && overwrite)
-            fs.delete(dst_path, true);
-        fs.copyFromLocalFile(src_path, dst_path);
-    }
-
-    private CommandResponse runCommand(String cmdName, String[] arguments) {
-        cmdName = "-" + cmdName;
-        final Command command = getCommandInstance(cmdName, conf);
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final PrintStream printStream = new PrintStream(out);
-        command.err = printStream;
-        command.out = printStream;
-        int res = command.run(arguments);
-        CommandResponse rv = new CommandResponse();
-        rv.out = out.toString();
-        rv.exit_code = res;
-        printStream.close();
-        return rv;
-    }
-
-    private Command getCommandInstance(String cmdName, Configuration conf) {
-        final CommandFactory commandFactory = new CommandFactory(conf);
-        FsCommand.registerCommands(commandFactory);
-        return commandFactory.getInstance(cmdName, conf);
-    }
-
-    private static class CommandResponse {
-        int exit_code;
-        String out;
+        try {
+            if (dst_exists && overwrite)
+                fs.delete(dst_path, true);
+            fs.copyFromLocalFile(src_path, dst_path);
+        } finally {
+            cache.invalidateTree(key(dst_path));
+        }
     }
 
     @Override
     public void close() throws IOException {
-        // no need to close fs now.
-         fs.close();
+        // the FileSystem belongs to the pool, only give it back.
+        if (handle != null) {
+            owner.release(handle);
+            handle = null;
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,363 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Trash;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded set of {@link FileSystem} handles shared by all {@link Hdfs} instances.
+ *
+ * The FileSystem cache is disabled in {@link Hdfs#init()}, so every handle owns its own
+ * NameNode RPC client. A DFSClient is thread safe and multiplexes its calls over one connection,
+ * so handles are not lent out exclusively: a borrow gets the handle with the fewest users, and
+ * only opens another one while all of them are in use and fewer than {@code max-size} are open.
+ * Borrowing never waits, however many streams hold a handle for their whole life, and the number
+ * of authenticated connections stays at {@code max-size}.
+ */
+public class HdfsPool implements Closeable {
+    private static final Logger log = Logger.getLogger(HdfsPool.class);
+
+    public static final String MAX_SIZE_KEY = "grpcdemo.hdfs.pool.max-size";
+    public static final String MAX_IDLE_MS_KEY = "grpcdemo.hdfs.pool.max-idle-ms";
+    public static final String VALIDATE_AFTER_IDLE_MS_KEY = "grpcdemo.hdfs.pool.validate-after-idle-ms";
+    public static final String MAX_LIFETIME_MS_KEY = "grpcdemo.hdfs.pool.max-lifetime-ms";
+    public static final String TGT_CHECK_INTERVAL_MS_KEY = "grpcdemo.hdfs.pool.tgt-check-interval-ms";
+    public static final String PRESTART_KEY = "grpcdemo.hdfs.pool.prestart";
+
+    private final Configuration conf;
+    private final int maxSize;
+    private final long maxIdleMs;
+    private final long validateAfterIdleMs;
+    private final long maxLifetimeMs;
+    private final long tgtCheckIntervalMs;
+
+    /** Open handles new borrows may get, guarded by this. */
+    private final List<Handle> handles = new ArrayList<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong sharedBorrows = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+
+    static final class Handle {
+        final FileSystem fs;
+        final Trash trash;
+        final long createdAt;
+        volatile long lastUsed;
+        /** Borrows not released yet, guarded by the pool. */
+        int users = 0;
+        /** Out of the pool, closed once the last user releases it; guarded by the pool. */
+        boolean retired = false;
+
+        Handle(FileSystem fs, Trash trash) {
+            this.fs = fs;
+            this.trash = trash;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = createdAt;
+        }
+    }
+
+    public HdfsPool(Configuration conf) {
+        this.conf = conf;
+        this.maxSize = Math.max(1, conf.getInt(MAX_SIZE_KEY, 16));
+        this.maxIdleMs = conf.getLong(MAX_IDLE_MS_KEY, 60000);
+        this.validateAfterIdleMs = conf.getLong(VALIDATE_AFTER_IDLE_MS_KEY, 5000);
+        this.maxLifetimeMs = conf.getLong(MAX_LIFETIME_MS_KEY, TimeUnit.HOURS.toMillis(4));
+        this.tgtCheckIntervalMs = conf.getLong(TGT_CHECK_INTERVAL_MS_KEY, 60000);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hdfs-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(maxIdleMs, validateAfterIdleMs * 2));
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+        // also off the request path: a relogin talks to the KDC and holds the UGI lock meanwhile
+        evictor.scheduleWithFixedDelay(this::renewTicket, tgtCheckIntervalMs, tgtCheckIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open {@code prestart} handles and check each one reaches the NameNode, so the first requests
+     * find connected handles in the pool.
+     *
+     * @throws IOException if the NameNode can not be reached
+     */
+    void prestart() throws IOException {
+        int n = Math.min(maxSize, conf.getInt(PRESTART_KEY, 4));
+        Handle[] started = new Handle[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                // all of them in use, so each borrow opens another one
+                started[i] = borrow();
+                // FileSystem.get does not connect, the first call does
+                started[i].fs.getFileStatus(new Path("/"));
+            }
+        } finally {
+            for (Handle handle : started) {
+                if (handle != null) {
+                    release(handle);
+                }
+            }
+        }
+    }
+
+    /**
+     * Borrow the least used handle, opening another one while all are in use and the pool is not
+     * full. Never waits for other users.
+     */
+    Handle borrow() throws IOException {
+        if (closed) {
+            throw new IOException("hdfs pool is closed");
+        }
+        long start = System.nanoTime();
+        Handle handle;
+        synchronized (this) {
+            handle = leastUsed();
+            if (handle == null || handle.users > 0 && handles.size() < maxSize) {
+                // no network yet, a DFSClient connects on its first call
+                handle = create();
+                handles.add(handle);
+            } else if (handle.users > 0) {
+                sharedBorrows.incrementAndGet();
+            }
+            handle.users++;
+        }
+        active.incrementAndGet();
+        recordBorrow(System.nanoTime() - start);
+        return handle;
+    }
+
+    /**
+     * Return a handle. Handles past their lifetime, or returned after the pool was closed, are
+     * closed with their last user.
+     */
+    void release(Handle handle) {
+        active.decrementAndGet();
+        long now = System.currentTimeMillis();
+        boolean destroy;
+        synchronized (this) {
+            handle.users--;
+            handle.lastUsed = now;
+            if (closed || now - handle.createdAt > maxLifetimeMs) {
+                retire(handle);
+            }
+            destroy = handle.retired && handle.users == 0;
+        }
+        if (destroy) {
+            destroy(handle);
+        }
+    }
+
+    /**
+     * @return the open handle with the fewest users, retiring those past their lifetime on the way
+     */
+    private Handle leastUsed() {
+        long now = System.currentTimeMillis();
+        Handle best = null;
+        for (Iterator<Handle> it = handles.iterator(); it.hasNext(); ) {
+            Handle handle = it.next();
+            if (now - handle.createdAt <= maxLifetimeMs) {
+                if (best == null || handle.users < best.users) {
+                    best = handle;
+                }
+            } else if (handle.users > 0) {
+                // closed by its last user; idle ones are left to the evictor
+                handle.retired = true;
+                it.remove();
+            }
+        }
+        return best;
+    }
+
+    private void retire(Handle handle) {
+        if (!handle.retired) {
+            handle.retired = true;
+            handles.remove(handle);
+        }
+    }
+
+    private Handle create() throws IOException {
+        FileSystem fs = FileSystem.get(conf);
+        try {
+            Handle handle = new Handle(fs, new Trash(fs, conf));
+            created.incrementAndGet();
+            return handle;
+        } catch (IOException e) {
+            fs.close();
+            throw e;
+        }
+    }
+
+    private void destroy(Handle handle) {
+        destroyed.incrementAndGet();
+        try {
+            handle.fs.close();
+        } catch (IOException e) {
+            log.warn("failed to close hdfs handle: " + e);
+        }
+    }
+
+    /**
+     * Relogin from keytab before the TGT expires, so new handles never authenticate with a stale ticket.
+     */
+    private void renewTicket() {
+        if (!UserGroupInformation.isSecurityEnabled()) {
+            return;
+        }
+        try {
+            UserGroupInformation.getLoginUser().checkTGTAndReloginFromKeytab();
+        } catch (IOException e) {
+            log.warn("failed to relogin from keytab: " + e);
+        }
+    }
+
+    /**
+     * Close handles nobody used for {@code max-idle-ms} or past their lifetime, and check those idle
+     * for {@code validate-after-idle-ms} still reach the NameNode. Checks run outside the lock, a
+     * broken handle is retired and closed once its users are done.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        List<Handle> expired = new ArrayList<>();
+        List<Handle> check = new ArrayList<>();
+        synchronized (this) {
+            for (Handle handle : new ArrayList<>(handles)) {
+                if (handle.users > 0) {
+                    continue;
+                }
+                if (now - handle.lastUsed > maxIdleMs || now - handle.createdAt > maxLifetimeMs) {
+                    retire(handle);
+                    expired.add(handle);
+                } else if (now - handle.lastUsed >= validateAfterIdleMs) {
+                    check.add(handle);
+                }
+            }
+        }
+        for (Handle handle : expired) {
+            destroy(handle);
+        }
+        for (Handle handle : check) {
+            try {
+                handle.fs.getFileStatus(new Path("/"));
+            } catch (IOException e) {
+                validationFailures.incrementAndGet();
+                log.warn("discard broken hdfs handle: " + e);
+                boolean destroy;
+                synchronized (this) {
+                    retire(handle);
+                    destroy = handle.users == 0;
+                }
+                if (destroy) {
+                    destroy(handle);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(getStats());
+        }
+    }
+
+    private void recordBorrow(long nanos) {
+        borrows.incrementAndGet();
+        borrowNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxBorrowNanos.get())) {
+            if (maxBorrowNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.maxSize = maxSize;
+        stats.active = active.get();
+        synchronized (this) {
+            stats.open = handles.size();
+            for (Handle handle : handles) {
+                if (handle.users == 0) {
+                    stats.idle++;
+                }
+            }
+        }
+        stats.borrows = borrows.get();
+        stats.sharedBorrows = sharedBorrows.get();
+        stats.totalBorrowNanos = borrowNanos.get();
+        stats.maxBorrowNanos = maxBorrowNanos.get();
+        stats.created = created.get();
+        stats.destroyed = destroyed.get();
+        stats.validationFailures = validationFailures.get();
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        List<Handle> idle = new ArrayList<>();
+        synchronized (this) {
+            for (Handle handle : new ArrayList<>(handles)) {
+                retire(handle);
+                if (handle.users == 0) {
+                    idle.add(handle);
+                }
+            }
+        }
+        // the others are closed by their last user
+        for (Handle handle : idle) {
+            destroy(handle);
+        }
+    }
+
+    public static class Stats {
+        public int maxSize;
+        /** Borrows not released yet, several of them may share a handle. */
+        public int active;
+        public int open;
+        public int idle;
+        public long borrows;
+        /** Borrows that got a handle in use by others, because the pool was full. */
+        public long sharedBorrows;
+        public long totalBorrowNanos;
+        public long maxBorrowNanos;
+        public long created;
+        public long destroyed;
+        public long validationFailures;
+
+        /** Borrowers per open handle. */
+        public double sharing() {
+            return open == 0 ? 0 : (double) active / open;
+        }
+
+        public double meanBorrowMillis() {
+            return borrows == 0 ? 0 : totalBorrowNanos / 1e6 / borrows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hdfs pool: active=%d open=%d idle=%d max=%d sharing=%.2f borrows=%d shared=%d "
+                            + "borrow(mean=%.3fms max=%.3fms) created=%d destroyed=%d invalid=%d",
+                    active, open, idle, maxSize, sharing(), borrows, sharedBorrows, meanBorrowMillis(),
+                    maxBorrowNanos / 1e6, created, destroyed, validationFailures);
+        }
+    }
+}
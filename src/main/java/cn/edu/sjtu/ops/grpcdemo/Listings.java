@@ -0,0 +1,345 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Server side of {@code List}, {@code Stat} and {@code Mkdirs}.
+ *
+ * A listing comes from {@link Hdfs#listIterator}, which asks the NameNode for one page of the
+ * directory at a time, and is sent on the reader pool only while the call is ready, like a
+ * download. Neither side ever holds more than a few pages, however large the directory is, and the
+ * NameNode never builds the whole listing for one response. A listing holds its pooled handle only
+ * while it sends: when the call stops being ready the handle goes back, and once it is ready again
+ * the listing goes on after the last entry sent, on whatever handle it borrows then.
+ *
+ * Stat and mkdirs split their paths into batches of {@link #STAT_BATCH}, which run in parallel on
+ * the reader pool, each on its own pooled handle.
+ */
+public class Listings {
+    private static final Logger logger = LoggerFactory.getLogger(Listings.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    // about 150 bytes per entry, well within the default message size
+    private static final int MAX_PAGE_SIZE = 10000;
+    /** Pages one reader task sends before yielding the thread to other streams. */
+    private static final int BATCH = 16;
+    private static final int STAT_BATCH = 64;
+
+    private final ExecutorService readers;
+    private final int maxStatPaths;
+
+    private interface PathTask {
+        void run(Hdfs hdfs, int i) throws IOException;
+    }
+
+    /**
+     * @param maxStatPaths most paths one Stat or Mkdirs call may ask for
+     */
+    public Listings(ExecutorService readers, int maxStatPaths) {
+        this.readers = readers;
+        this.maxStatPaths = maxStatPaths;
+    }
+
+    /**
+     * Must be called from the service method, the handlers have to be set before it returns.
+     */
+    public void list(ListRequest request, StreamObserver<ListPage> responseObserver) {
+        ServerCallStreamObserver<ListPage> call = (ServerCallStreamObserver<ListPage>) responseObserver;
+        int pageSize = request.getPageSize() > 0 ? Math.min(MAX_PAGE_SIZE, request.getPageSize()) : DEFAULT_PAGE_SIZE;
+        ListStream stream = new ListStream(request, call, pageSize);
+        call.setOnCancelHandler(stream::cancel);
+        call.setOnReadyHandler(stream::schedule);
+        stream.schedule();
+    }
+
+    public void stat(StatRequest request, StreamObserver<StatResponse> responseObserver) {
+        final ServerCallStreamObserver<StatResponse> call = (ServerCallStreamObserver<StatResponse>) responseObserver;
+        final List<String> paths = request.getPathsList();
+        if (!valid(paths, false, call)) {
+            return;
+        }
+        final FileInfo[] files = new FileInfo[paths.size()];
+        inBatches(paths.size(), "stat", (hdfs, i) -> {
+            String path = paths.get(i);
+            FileInfo.Builder info;
+            try {
+                info = info(hdfs.getFileStatus(path)).setExists(true);
+            } catch (FileNotFoundException e) {
+                info = FileInfo.newBuilder();
+            }
+            files[i] = info.setPath(path).build();
+        }, () -> StatResponse.newBuilder().addAllFiles(Arrays.asList(files)).build(), call);
+    }
+
+    /**
+     * Each directory is created once, with its parents: only those without a descendant in the
+     * request are asked for.
+     */
+    public void mkdirs(MkdirsRequest request, StreamObserver<MkdirsResult> responseObserver) {
+        final ServerCallStreamObserver<MkdirsResult> call = (ServerCallStreamObserver<MkdirsResult>) responseObserver;
+        if (!valid(request.getPathsList(), true, call)) {
+            return;
+        }
+        final List<String> leaves = leaves(request.getPathsList());
+        inBatches(leaves.size(), "mkdirs", (hdfs, i) -> hdfs.mkdir(leaves.get(i)),
+                () -> MkdirsResult.newBuilder().setCreated(leaves.size()).build(), call);
+    }
+
+    private boolean valid(List<String> paths, boolean absolute, StreamObserver<?> call) {
+        if (paths.size() > maxStatPaths) {
+            call.onError(Status.INVALID_ARGUMENT.withDescription(String.format("%d paths, at most %d",
+                    paths.size(), maxStatPaths)).asRuntimeException());
+            return false;
+        }
+        for (String path : paths) {
+            if (path.isEmpty() || absolute && !path.startsWith("/")) {
+                call.onError(Status.INVALID_ARGUMENT.withDescription("not an absolute path: '" + path + "'")
+                        .asRuntimeException());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code paths} without duplicates, trailing slashes and ancestors of other paths
+     */
+    static List<String> leaves(List<String> paths) {
+        TreeSet<String> all = new TreeSet<>();
+        for (String path : paths) {
+            while (path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            all.add(path);
+        }
+        List<String> leaves = new ArrayList<>(all.size());
+        for (String path : all) {
+            String children = path.equals("/") ? "/" : path + "/";
+            // the smallest path after path/ starts with it if any of them does
+            String next = all.higher(children);
+            if (next == null || !next.startsWith(children)) {
+                leaves.add(path);
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Run {@code task} for indexes {@code [0, n)} in parallel batches and answer the call with
+     * {@code result} once all of them are done, or with the first error.
+     */
+    private <T> void inBatches(int n, final String what, final PathTask task, final Supplier<T> result,
+                               final ServerCallStreamObserver<T> call) {
+        CompletableFuture<?>[] batches = new CompletableFuture<?>[(n + STAT_BATCH - 1) / STAT_BATCH];
+        for (int b = 0; b < batches.length; b++) {
+            final int from = b * STAT_BATCH;
+            final int to = Math.min(n, from + STAT_BATCH);
+            batches[b] = CompletableFuture.runAsync(() -> {
+                if (call.isCancelled()) {
+                    throw Status.CANCELLED.withDescription(what + " cancelled").asRuntimeException();
+                }
+                try (Hdfs hdfs = Hdfs.getInstance()) {
+                    for (int i = from; i < to; i++) {
+                        task.run(hdfs, i);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, readers);
+        }
+        CompletableFuture.allOf(batches).whenComplete((done, e) -> {
+            if (e == null) {
+                call.onNext(result.get());
+                call.onCompleted();
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            try {
+                if (cause instanceof StatusRuntimeException) {
+                    call.onError(cause);
+                } else {
+                    logger.error(what + " of " + n + " paths failed: " + cause);
+                    call.onError(Status.fromThrowable(cause).withDescription(String.valueOf(cause)).asRuntimeException());
+                }
+            } catch (RuntimeException cancelled) {
+                // cancelled already
+            }
+        });
+    }
+
+    static FileInfo.Builder info(FileStatus status) {
+        return FileInfo.newBuilder()
+                .setDirectory(status.isDirectory())
+                .setLength(status.getLen())
+                .setModificationTime(status.getModificationTime())
+                .setAccessTime(status.getAccessTime())
+                .setOwner(status.getOwner())
+                .setGroup(status.getGroup())
+                .setPermission(status.getPermission().toShort())
+                .setReplication(status.getReplication())
+                .setBlockSize(status.getBlockSize());
+    }
+
+    private final class ListStream implements Runnable {
+        final ListRequest request;
+        final ServerCallStreamObserver<ListPage> call;
+        final int pageSize;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean pending = false;
+        volatile boolean cancelled = false;
+        boolean done = false;
+        // only while sending
+        Hdfs hdfs;
+        RemoteIterator<FileStatus> entries;
+        long sent = 0;
+        // name of the last entry sent, where a resumed listing goes on
+        String last;
+
+        ListStream(ListRequest request, ServerCallStreamObserver<ListPage> call, int pageSize) {
+            this.request = request;
+            this.call = call;
+            this.pageSize = pageSize;
+        }
+
+        void schedule() {
+            pending = true;
+            if (scheduled.compareAndSet(false, true)) {
+                readers.execute(this);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * Runs on a reader thread; the scheduled flag keeps at most one task per stream alive.
+         */
+        public void run() {
+            while (true) {
+                pending = false;
+                boolean yielded = step();
+                if (yielded) {
+                    readers.execute(this);
+                    return;
+                }
+                scheduled.set(false);
+                if (!pending || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if the stream still has a ready call and gave the thread up for fairness
+         */
+        private boolean step() {
+            if (done) {
+                return false;
+            }
+            if (cancelled) {
+                logger.info("listing of " + request.getPath() + " cancelled after " + sent + " entries");
+                close();
+                return false;
+            }
+            try {
+                if (!call.isReady()) {
+                    return false;
+                }
+                if (hdfs == null) {
+                    if (request.getPath().isEmpty()) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("empty path"));
+                        return false;
+                    }
+                    hdfs = Hdfs.getInstance();
+                    entries = last == null ? hdfs.listIterator(request.getPath())
+                            : hdfs.listIterator(request.getPath(), last, sent);
+                }
+                for (int i = 0; i < BATCH; i++) {
+                    if (!call.isReady()) {
+                        // the client reads slowly or not at all, it need not keep a handle meanwhile
+                        release();
+                        return false;
+                    }
+                    ListPage.Builder page = ListPage.newBuilder();
+                    // may wait for the NameNode's next page
+                    while (page.getEntriesCount() < pageSize && entries.hasNext()) {
+                        FileStatus status = entries.next();
+                        last = status.getPath().getName();
+                        page.addEntries(info(status).setPath(last));
+                    }
+                    if (page.getEntriesCount() > 0) {
+                        call.onNext(page.build());
+                        sent += page.getEntriesCount();
+                    }
+                    if (!entries.hasNext()) {
+                        call.onCompleted();
+                        close();
+                        return false;
+                    }
+                }
+                if (!call.isReady()) {
+                    release();
+                    return false;
+                }
+                return true;
+            } catch (FileNotFoundException e) {
+                fail(Status.NOT_FOUND.withDescription("no such file or directory " + request.getPath()));
+            } catch (IOException | RuntimeException e) {
+                logger.error("listing of " + request.getPath() + " failed after " + sent + " entries: " + e);
+                fail(Status.fromThrowable(e).withDescription(String.valueOf(e)));
+            }
+            return false;
+        }
+
+        private void fail(Status status) {
+            try {
+                call.onError(status.asRuntimeException());
+            } catch (RuntimeException e) {
+                // cancelled already
+            }
+            close();
+        }
+
+        private void close() {
+            done = true;
+            release();
+        }
+
+        private void release() {
+            entries = null;
+            if (hdfs != null) {
+                try {
+                    hdfs.close();
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                }
+                hdfs = null;
+            }
+        }
+    }
+}
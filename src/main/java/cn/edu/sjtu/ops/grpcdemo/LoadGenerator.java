@@ -0,0 +1,387 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against a running server: uploads start at a fixed rate, or at Poisson-distributed
+ * times of the same mean, whether earlier ones have finished or not, as independent clients would.
+ * A closed loop, where each worker waits for its upload before starting the next, slows down with
+ * the server and hides exactly the queueing a slow server causes.
+ *
+ * Latency is taken from when an upload was due to start, not when a thread got to it, so time
+ * spent waiting behind a backlog counts (the correction for coordinated omission); the service
+ * time from the actual start is reported next to it. Files are synthetic, drawn from a size
+ * distribution and filled by {@link FileCreation}, and reused across runs.
+ *
+ * Usage: LoadGenerator [--option=value ...], see {@link #USAGE}. Results go to stdout and, as
+ * JSON including the encoded latency histogram, to {@code --out}.
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final String USAGE = "LoadGenerator [options]"
+            + "\n  --host=127.0.0.1 --port=8980"
+            + "\n  --rate=10              uploads started per second"
+            + "\n  --duration=60          seconds of load"
+            + "\n  --arrivals=uniform     uniform or poisson"
+            + "\n  --sizes=64K:70,4M:25,64M:5 | lognormal:1M:1.5 | 16M   sizes with weights, or median and sigma"
+            + "\n  --content=random       random, compressible or sparse"
+            + "\n  --files=32             distinct files drawn from a lognormal distribution"
+            + "\n  --directory=loadgen    where the files are created"
+            + "\n  --chunk-size=0         KB per chunk, 0 for adaptive"
+            + "\n  --parallelism=1        part streams per upload"
+            + "\n  --codec=none           none, lz4, zstd or zstd-archive"
+            + "\n  --concurrency=256      uploads in progress at most, later ones wait"
+            + "\n  --tenant=              x-tenant header"
+            + "\n  --seed=1"
+            + "\n  --out=loadgen-<time>.json";
+
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024 * 1024;
+    private static final int REPORT_SECONDS = 10;
+
+    private final Map<String, String> options;
+    private final DemoClient client;
+    private final List<File> files = new ArrayList<>();
+    private final double[] cumulativeWeights;
+
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    public LoadGenerator(Map<String, String> options, DemoClient client) throws IOException {
+        this.options = options;
+        this.client = client;
+        List<long[]> sizes = sizes(option("sizes", "64K:70,4M:25,64M:5"), Integer.parseInt(option("files", "32")),
+                new Random(seed()));
+        FileCreation.Content content = FileCreation.Content.valueOf(option("content", "random").toUpperCase());
+        File directory = new File(option("directory", "loadgen"));
+        Files.createDirectories(directory.toPath());
+        client.setSourceDirectory(directory.toPath());
+        cumulativeWeights = new double[sizes.size()];
+        double total = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            long size = sizes.get(i)[0];
+            File file = new File(directory, content.name().toLowerCase() + "-" + size + ".bin");
+            // the same name always holds the same bytes, a complete file is reused
+            if (!file.isFile() || file.length() != size) {
+                logger.info("creating " + file + " (" + size + " bytes)");
+                FileCreation.createFile(file, size, content, new Random(size));
+            }
+            files.add(file);
+            total += sizes.get(i)[1];
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private long seed() {
+        return Long.parseLong(option("seed", "1"));
+    }
+
+    /**
+     * @return {size, weight} pairs
+     */
+    static List<long[]> sizes(String spec, int files, Random random) {
+        List<long[]> sizes = new ArrayList<>();
+        if (spec.startsWith("lognormal:")) {
+            String[] parts = spec.split(":");
+            double median = bytes(parts[1]);
+            double sigma = Double.parseDouble(parts[2]);
+            for (int i = 0; i < files; i++) {
+                long size = (long) (median * Math.exp(sigma * random.nextGaussian()));
+                sizes.add(new long[]{Math.max(1, Math.min(MAX_FILE_SIZE, size)), 1});
+            }
+            return sizes;
+        }
+        for (String bucket : spec.split(",")) {
+            String[] parts = bucket.trim().split(":");
+            long weight = parts.length > 1 ? Long.parseLong(parts[1]) : 1;
+            sizes.add(new long[]{bytes(parts[0]), weight});
+        }
+        return sizes;
+    }
+
+    /**
+     * Parse sizes like 512, 64K, 4M or 1G.
+     */
+    static long bytes(String size) {
+        String s = size.trim().toUpperCase();
+        long unit = 1;
+        switch (s.charAt(s.length() - 1)) {
+            case 'K':
+                unit = 1024;
+                break;
+            case 'M':
+                unit = 1024 * 1024;
+                break;
+            case 'G':
+                unit = 1024 * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(s);
+        }
+        return Long.parseLong(s.substring(0, s.length() - 1)) * unit;
+    }
+
+    private File pick(Random random) {
+        double r = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int i = Arrays.binarySearch(cumulativeWeights, r);
+        return files.get(Math.min(files.size() - 1, i < 0 ? -i - 1 : i + 1));
+    }
+
+    /**
+     * Issue uploads for the configured duration, then wait for the ones still running.
+     */
+    public void run() throws InterruptedException {
+        double rate = Double.parseDouble(option("rate", "10"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "60")));
+        boolean poisson = option("arrivals", "uniform").equals("poisson");
+        final int chunkSize = Integer.parseInt(option("chunk-size", "0")) * 1024;
+        final int parallelism = Integer.parseInt(option("parallelism", "1"));
+        int concurrency = Integer.parseInt(option("concurrency", "256"));
+        final AtomicInteger n = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "load-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-report");
+            t.setDaemon(true);
+            return t;
+        });
+        Random random = new Random(seed());
+        long start = System.nanoTime();
+        reporter.scheduleAtFixedRate(() -> System.out.println(String.format(
+                "%4ds issued %d, succeeded %d, failed %d, in progress %d",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), issued.sum(), succeeded.sum(),
+                failed(), outstanding.get())), REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+        long due = start;
+        while (due - start < durationNanos) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final long dueAt = due;
+            final File file = pick(random);
+            issued.increment();
+            outstanding.incrementAndGet();
+            // behind schedule the loop does not sleep and catches up, the uploads still count from dueAt
+            workers.execute(() -> upload(file, dueAt, chunkSize, parallelism));
+            double gap = poisson ? -Math.log(1 - random.nextDouble()) / rate : 1 / rate;
+            due += (long) (gap * 1e9);
+        }
+        long issuedFor = System.nanoTime() - start;
+        workers.shutdown();
+        if (!workers.awaitTermination(10, TimeUnit.MINUTES)) {
+            logger.warn(outstanding.get() + " uploads still running, not counted");
+        }
+        reporter.shutdownNow();
+        report(rate, issuedFor, System.nanoTime() - start);
+    }
+
+    private void upload(File file, long dueAt, int chunkSize, int parallelism) {
+        long began = System.nanoTime();
+        String failure;
+        try {
+            failure = client.tryUpload(file.getName(), chunkSize, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = "interrupted";
+        } catch (RuntimeException e) {
+            failure = e.getClass().getSimpleName();
+        }
+        long end = System.nanoTime();
+        if (failure == null) {
+            latency.recordValue(micros(end - dueAt));
+            serviceTime.recordValue(micros(end - began));
+            succeeded.increment();
+            bytes.add(file.length());
+        } else {
+            errors.computeIfAbsent(failure, f -> new LongAdder()).increment();
+        }
+        outstanding.decrementAndGet();
+    }
+
+    private static long micros(long nanos) {
+        return Math.max(0, Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    private long failed() {
+        long sum = 0;
+        for (LongAdder count : errors.values()) {
+            sum += count.sum();
+        }
+        return sum;
+    }
+
+    private void report(double rate, long issuedForNanos, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("target_rate", rate);
+        results.put("achieved_rate", issued.sum() / (issuedForNanos / 1e9));
+        results.put("issued", issued.sum());
+        results.put("succeeded", succeeded.sum());
+        results.put("failed", failed());
+        results.put("elapsed_seconds", seconds);
+        results.put("uploads_per_second", succeeded.sum() / seconds);
+        results.put("bytes", bytes.sum());
+        results.put("megabytes_per_second", bytes.sum() / 1e6 / seconds);
+        results.put("latency_ms", percentiles(latency));
+        results.put("service_time_ms", percentiles(serviceTime));
+        Map<String, Long> causes = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            causes.put(error.getKey(), error.getValue().sum());
+        }
+        results.put("errors", causes);
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d uploads in %.1fs (%d issued at %.1f/s), %.1f uploads/s, %.1f MB/s%n",
+                succeeded.sum(), seconds, issued.sum(), rate, succeeded.sum() / seconds, bytes.sum() / 1e6 / seconds));
+        text.append("latency ms      ").append(percentiles(latency)).append('\n');
+        text.append("service time ms ").append(percentiles(serviceTime)).append('\n');
+        text.append("errors          ").append(causes);
+        System.out.println(text);
+
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("options", new TreeMap<>(options));
+        run.put("results", results);
+        try {
+            run.put("server", serverMetrics());
+        } catch (RuntimeException e) {
+            logger.warn("no server metrics: " + e);
+        }
+        run.put("latency_histogram", encode(latency));
+        File out = new File(option("out", "loadgen-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                + ".json"));
+        try (PrintWriter writer = new PrintWriter(out, StandardCharsets.UTF_8.name())) {
+            writer.println(json(run));
+            System.out.println("results written to " + out);
+        } catch (IOException e) {
+            logger.error("can not write " + out + ": " + e);
+        }
+    }
+
+    private Map<String, Double> serverMetrics() {
+        Map<String, Double> metrics = new TreeMap<>();
+        for (Metric metric : client.serverMetrics().getMetricsList()) {
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        return metrics;
+    }
+
+    private static Map<String, Double> percentiles(Histogram histogram) {
+        Map<String, Double> p = new LinkedHashMap<>();
+        p.put("mean", histogram.getMean() / 1000);
+        p.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+        p.put("p90", histogram.getValueAtPercentile(90) / 1000.0);
+        p.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+        p.put("p999", histogram.getValueAtPercentile(99.9) / 1000.0);
+        p.put("max", histogram.getMaxValue() / 1000.0);
+        return p;
+    }
+
+    /**
+     * The histogram in HdrHistogram's compressed form, base64, for merging or plotting runs later.
+     */
+    private static String encode(Histogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int n = histogram.encodeIntoCompressedByteBuffer(buffer);
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), n));
+    }
+
+    private static String json(Object value) {
+        if (value instanceof Map) {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(json(String.valueOf(entry.getKey()))).append(": ").append(json(entry.getValue()));
+            }
+            return sb.append('}').toString();
+        }
+        if (value instanceof Double) {
+            double d = (Double) value;
+            return Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(d);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : String.valueOf(value).toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("usage: " + USAGE);
+                System.exit(2);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "8980"));
+        DemoClient client = new DemoClient(host, port);
+        String codec = options.getOrDefault("codec", "none").toLowerCase();
+        client.setCompression(codec.startsWith("zstd") ? Codec.Zstd : codec.equals("lz4") ? Codec.Lz4 : Codec.None,
+                codec.endsWith("-archive"));
+        if (options.containsKey("tenant")) {
+            client.setTenant(options.get("tenant"));
+        }
+        try {
+            new LoadGenerator(options, client).run();
+        } finally {
+            client.shutdown();
+        }
+    }
+}
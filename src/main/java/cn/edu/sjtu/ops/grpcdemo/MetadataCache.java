@@ -0,0 +1,327 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.hdfs.DFSInotifyEventInputStream;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.inotify.Event;
+import org.apache.hadoop.hdfs.inotify.EventBatch;
+import org.apache.hadoop.hdfs.inotify.MissingEventsException;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded, TTL-limited cache of NameNode metadata shared by all {@link Hdfs} instances, so the
+ * existence checks of every upload ({@code mkdir} of the thread directory, parents of rename and
+ * copy targets) stop costing a NameNode round trip each.
+ *
+ * Cached are the statuses of directories, paths that do not exist, and directory listings.
+ * Statuses of files are not: a file grows through output streams the wrapper does not see, and
+ * its length must be exact for downloads. Listings may therefore show file lengths up to the TTL
+ * old. The wrapper's own mutations invalidate what they touch, including lookups of those paths
+ * still waiting for the NameNode, which then do not store their answer. Changes made by others are
+ * seen after the TTL, or right away when following the NameNode's inotify stream, which needs
+ * HDFS superuser rights and is off by default.
+ */
+public class MetadataCache implements Closeable {
+    private static final Logger log = Logger.getLogger(MetadataCache.class);
+
+    public static final String TTL_MS_KEY = "grpcdemo.hdfs.metadata-cache.ttl-ms";
+    public static final String MAX_ENTRIES_KEY = "grpcdemo.hdfs.metadata-cache.max-entries";
+    public static final String INOTIFY_KEY = "grpcdemo.hdfs.metadata-cache.inotify";
+
+    private static final FileStatus ABSENT = new FileStatus();
+
+    interface Lookup<T> {
+        T load() throws IOException;
+    }
+
+    private static final class Entry<T> {
+        final T value;
+        final long expiresAt;
+
+        Entry(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A lookup waiting for the NameNode; stale if its path changed meanwhile.
+     */
+    private static final class Load {
+        final String path;
+        boolean stale = false;
+
+        Load(String path) {
+            this.path = path;
+        }
+    }
+
+    private final long ttlMs;
+    private final Map<String, Entry<FileStatus>> statuses;
+    private final Map<String, Entry<FileStatus[]>> listings;
+    private final Set<Load> loading = new HashSet<>();
+    private volatile Thread follower;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public MetadataCache(Configuration conf) {
+        this.ttlMs = conf.getLong(TTL_MS_KEY, 30000);
+        int maxEntries = conf.getInt(MAX_ENTRIES_KEY, 100000);
+        this.statuses = lru(maxEntries);
+        this.listings = lru(Math.max(1, maxEntries / 10));
+        if (conf.getBoolean(INOTIFY_KEY, false)) {
+            follow(URI.create(conf.get("fs.defaultFS")), conf);
+        }
+    }
+
+    private static <T> Map<String, Entry<T>> lru(final int maxEntries) {
+        return new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @throws FileNotFoundException also when the path is cached as absent
+     */
+    FileStatus getFileStatus(String path, Lookup<FileStatus> lookup) throws IOException {
+        Load load;
+        synchronized (this) {
+            Entry<FileStatus> entry = fresh(statuses, path);
+            if (entry != null) {
+                hits.incrementAndGet();
+                if (entry.value == ABSENT) {
+                    throw new FileNotFoundException("File does not exist: " + path);
+                }
+                return entry.value;
+            }
+            load = start(path);
+        }
+        misses.incrementAndGet();
+        FileStatus status = null;
+        try {
+            status = lookup.load();
+            return status;
+        } catch (FileNotFoundException e) {
+            status = ABSENT;
+            throw e;
+        } finally {
+            // ABSENT is an empty status, which counts as a file
+            store(statuses, load, status == null || status != ABSENT && status.isFile() ? null : status);
+        }
+    }
+
+    FileStatus[] list(String path, Lookup<FileStatus[]> lookup) throws IOException {
+        Load load;
+        synchronized (this) {
+            Entry<FileStatus[]> entry = fresh(listings, path);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.value.clone();
+            }
+            load = start(path);
+        }
+        misses.incrementAndGet();
+        FileStatus[] listing = null;
+        try {
+            listing = lookup.load();
+            return listing;
+        } finally {
+            store(listings, load, listing == null ? null : listing.clone());
+        }
+    }
+
+    private <T> Entry<T> fresh(Map<String, Entry<T>> map, String path) {
+        Entry<T> entry = map.get(path);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            map.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    private Load start(String path) {
+        Load load = new Load(path);
+        loading.add(load);
+        return load;
+    }
+
+    /**
+     * @param value null to store nothing
+     */
+    private synchronized <T> void store(Map<String, Entry<T>> map, Load load, T value) {
+        loading.remove(load);
+        // unless the path changed while the NameNode answered, the answer may be stale already
+        if (value != null && !load.stale) {
+            map.put(load.path, new Entry<>(value, System.currentTimeMillis() + ttlMs));
+        }
+    }
+
+    /**
+     * After {@code path} was created or changed: forget it and its ancestors, whose listings and
+     * existence may have changed with it.
+     */
+    public synchronized void invalidate(String path) {
+        invalidations.incrementAndGet();
+        for (String p = path; p != null; p = parent(p)) {
+            statuses.remove(p);
+            listings.remove(p);
+            for (Load load : loading) {
+                load.stale |= load.path.equals(p);
+            }
+        }
+    }
+
+    /**
+     * After {@code path} was deleted or moved, with everything below it.
+     */
+    public synchronized void invalidateTree(String path) {
+        invalidate(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        removeBelow(statuses, prefix);
+        removeBelow(listings, prefix);
+        for (Load load : loading) {
+            load.stale |= load.path.startsWith(prefix);
+        }
+    }
+
+    private static void removeBelow(Map<String, ?> map, String prefix) {
+        Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Load load : loading) {
+            load.stale = true;
+        }
+        statuses.clear();
+        listings.clear();
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0 || path.equals("/")) {
+            return null;
+        }
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * Invalidate on the NameNode's inotify events, on a daemon thread. Without superuser rights the
+     * stream can not be opened; the cache then relies on its TTL alone.
+     */
+    private void follow(final URI uri, final Configuration conf) {
+        Thread t = new Thread(() -> {
+            try {
+                DFSInotifyEventInputStream events = new HdfsAdmin(uri, conf).getInotifyEventStream();
+                log.info("metadata cache follows the inotify stream of " + uri);
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        EventBatch batch = events.poll(1, TimeUnit.SECONDS);
+                        if (batch != null) {
+                            for (Event event : batch.getEvents()) {
+                                apply(event);
+                            }
+                        }
+                    } catch (MissingEventsException e) {
+                        log.warn("missed inotify events, clearing the metadata cache");
+                        clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException | RuntimeException e) {
+                log.warn("can not follow inotify events, the metadata cache relies on its ttl: " + e);
+            }
+        }, "hdfs-metadata-inotify");
+        t.setDaemon(true);
+        follower = t;
+        t.start();
+    }
+
+    private void apply(Event event) {
+        switch (event.getEventType()) {
+            case CREATE:
+                invalidate(((Event.CreateEvent) event).getPath());
+                break;
+            case CLOSE:
+                invalidate(((Event.CloseEvent) event).getPath());
+                break;
+            case APPEND:
+                invalidate(((Event.AppendEvent) event).getPath());
+                break;
+            case METADATA:
+                invalidate(((Event.MetadataUpdateEvent) event).getPath());
+                break;
+            case TRUNCATE:
+                invalidate(((Event.TruncateEvent) event).getPath());
+                break;
+            case RENAME:
+                invalidateTree(((Event.RenameEvent) event).getSrcPath());
+                invalidateTree(((Event.RenameEvent) event).getDstPath());
+                break;
+            case UNLINK:
+                invalidateTree(((Event.UnlinkEvent) event).getPath());
+                break;
+            default:
+                break;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = hits.get();
+        stats.misses = misses.get();
+        stats.invalidations = invalidations.get();
+        synchronized (this) {
+            stats.entries = statuses.size() + listings.size();
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        Thread t = follower;
+        if (t != null) {
+            t.interrupt();
+        }
+        clear();
+    }
+
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long invalidations;
+        public int entries;
+
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hdfs metadata cache: entries=%d hits=%d misses=%d hit-rate=%.2f invalidations=%d",
+                    entries, hits, misses, hitRate(), invalidations);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts what every call does on the wire, without the services knowing: calls in progress per
+ * method, payload bytes received in chunks, and failures by cause, i.e. the status a call was
+ * closed with, a client cancel, or an {@link UploadStatus} that reports a failed upload.
+ */
+public class MetricsInterceptor implements ServerInterceptor {
+
+    private final ServerMetrics metrics;
+    private final Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+
+    public MetricsInterceptor(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String fullName = call.getMethodDescriptor().getFullMethodName();
+        final String method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        final AtomicInteger calls = active.computeIfAbsent(method, m -> {
+            AtomicInteger n = new AtomicInteger();
+            metrics.gauge("calls.active." + m, n::get);
+            return n;
+        });
+        calls.incrementAndGet();
+        final AtomicBoolean finished = new AtomicBoolean();
+
+        ServerCall<ReqT, RespT> counted = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                if (message instanceof UploadStatus) {
+                    UploadStatusCode code = ((UploadStatus) message).getCode();
+                    if (code != UploadStatusCode.Ok) {
+                        metrics.error(method + "." + code);
+                    }
+                }
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (!status.isOk()) {
+                    metrics.error(method + "." + status.getCode());
+                }
+                super.close(status, trailers);
+            }
+        };
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(counted, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                if (message instanceof Chunk) {
+                    metrics.addBytesIn(((Chunk) message).getContent().size());
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                metrics.error(method + ".CANCELLED");
+                finish();
+                super.onCancel();
+            }
+
+            @Override
+            public void onComplete() {
+                finish();
+                super.onComplete();
+            }
+
+            private void finish() {
+                if (finished.compareAndSet(false, true)) {
+                    calls.decrementAndGet();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Many small files in one HDFS file: their contents back to back, then an index of name, offset,
+ * length and CRC32C per file, then a fixed-size trailer pointing at the index. A reader finds a
+ * file by name with two reads at the end of the pack and one seek, without listing anything on
+ * the NameNode. Packs are marked with {@link ChunkCodec#XATTR} = {@link #PACK}.
+ *
+ * <pre>
+ * content*  (name:UTF offset:long length:long crc32c:int)*  indexOffset:long count:int magic:int
+ * </pre>
+ */
+public final class PackFile {
+
+    public static final String PACK = "pack";
+    private static final int MAGIC = 0x47445031;
+    private static final int TRAILER = 16;
+    // bytes of UTF-8, like PATH_MAX; the index stores names with writeUTF
+    public static final int MAX_NAME_LENGTH = 4096;
+
+    private PackFile() {
+    }
+
+    public static final class Entry {
+        public final String name;
+        public final long offset;
+        public final long length;
+        public final int crc;
+
+        Entry(String name, long offset, long length, int crc) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Appends files to a pack being written; the index is kept in memory until {@link #finish}.
+     */
+    public static final class Writer {
+        private final FSDataOutputStream out;
+        private final Crc32c crc = new Crc32c();
+        private final List<Entry> entries = new ArrayList<>();
+        private final Set<String> names = new HashSet<>();
+        private String name;
+        private long start;
+        private int entryCrc;
+
+        public Writer(FSDataOutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Ends the current file and starts the next one.
+         *
+         * @return false if the pack has a file of that name already
+         */
+        public boolean startFile(String name) throws IOException {
+            endFile();
+            if (!names.add(name)) {
+                return false;
+            }
+            this.name = name;
+            this.start = out.getPos();
+            this.entryCrc = 0;
+            return true;
+        }
+
+        public boolean inFile() {
+            return name != null;
+        }
+
+        /**
+         * @param contentCrc CRC32C of {@code content}, checked by the caller already
+         */
+        public void write(ByteString content, int contentCrc) throws IOException {
+            content.writeTo(out);
+            entryCrc = crc.append(entryCrc, contentCrc, content.size());
+        }
+
+        private void endFile() throws IOException {
+            if (name != null) {
+                entries.add(new Entry(name, start, out.getPos() - start, entryCrc));
+                name = null;
+            }
+        }
+
+        /**
+         * Writes the index and the trailer; the caller closes the stream.
+         *
+         * @return the number of files in the pack
+         */
+        public int finish() throws IOException {
+            endFile();
+            long indexOffset = out.getPos();
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.offset);
+                out.writeLong(entry.length);
+                out.writeInt(entry.crc);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(entries.size());
+            out.writeInt(MAGIC);
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the file called {@code name} in the pack at {@code path}, or null if there is none
+     */
+    public static Entry find(Hdfs hdfs, String path, String name) throws IOException {
+        for (Entry entry : index(hdfs, path)) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public static List<Entry> index(Hdfs hdfs, String path) throws IOException {
+        long length = hdfs.getFileStatus(path).getLen();
+        if (length < TRAILER) {
+            throw new IOException(path + " is too short for a pack");
+        }
+        try (FSDataInputStream in = hdfs.open(path)) {
+            in.seek(length - TRAILER);
+            long indexOffset = in.readLong();
+            int count = in.readInt();
+            if (in.readInt() != MAGIC || indexOffset < 0 || indexOffset > length - TRAILER || count < 0) {
+                throw new IOException(path + " is not a pack");
+            }
+            in.seek(indexOffset);
+            DataInputStream index = new DataInputStream(in);
+            List<Entry> entries = new ArrayList<>(count);
+            try {
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(index.readUTF(), index.readLong(), index.readLong(), index.readInt()));
+                }
+            } catch (EOFException e) {
+                throw new IOException(path + ": index of " + count + " files is truncated", e);
+            }
+            return entries;
+        }
+    }
+
+    public static void mark(Hdfs hdfs, String path) throws IOException {
+        hdfs.setXAttr(path, ChunkCodec.XATTR, PACK.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,417 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Server side of {@code UploadPart}. Every stream writes one byte range of a file into its own
+ * part file, the stream that settles the last part concatenates them into the final file.
+ * A part that fails may be sent again, up to {@link #MAX_PART_ATTEMPTS} times; only then does the
+ * whole upload fail. Uploads whose parts stopped arriving for longer than {@code ttlMillis} are
+ * dropped together with the part files written so far.
+ */
+public class PartUploads {
+    private static final Logger logger = LoggerFactory.getLogger(PartUploads.class);
+
+    // the id becomes part of file names, so no separators or dots
+    private static final Pattern UPLOAD_ID = Pattern.compile("[A-Za-z0-9-]{1,128}");
+
+    /** Times a part may fail before its upload fails with it. */
+    public static final int MAX_PART_ATTEMPTS = 3;
+
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int maxRawLength;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService collector;
+
+    /**
+     * @param maxRawLength largest chunk inflated, see {@link ChunkVerifier}
+     */
+    public PartUploads(long ttlMillis, int maxRawLength, ServerMetrics metrics) {
+        this.ttlMillis = ttlMillis;
+        this.maxRawLength = maxRawLength;
+        this.metrics = metrics;
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "part-upload-collector");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(ttlMillis / 4, TimeUnit.MINUTES.toMillis(1)));
+        collector.scheduleWithFixedDelay(this::collect, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static class Pending {
+        final String uploadId;
+        final int partCount;
+        final String dir;
+        /** Parts being written or stored, not those that failed and may be sent again. */
+        final boolean[] started;
+        final boolean[] stored;
+        final int[] failures;
+        final long[] offsets;
+        final long[] lengths;
+        final int[] crcs;
+        int settled = 0;
+        /** Why the upload failed, no part may start any more then. */
+        String failed = null;
+        /** Parts started and not settled yet, the collector leaves the upload alone meanwhile. */
+        int writing = 0;
+        long lastActive = System.currentTimeMillis();
+        boolean abandoned = false;
+
+        Pending(String uploadId, int partCount, String dir) {
+            this.uploadId = uploadId;
+            this.partCount = partCount;
+            this.dir = dir;
+            this.started = new boolean[partCount];
+            this.stored = new boolean[partCount];
+            this.failures = new int[partCount];
+            this.offsets = new long[partCount];
+            this.lengths = new long[partCount];
+            this.crcs = new int[partCount];
+        }
+
+        String partPath(int index) {
+            return dir + "/." + uploadId + ".part-" + index;
+        }
+
+        String target() {
+            return dir + "/" + uploadId;
+        }
+
+        synchronized boolean start(int index, long offset) {
+            if (started[index] || abandoned || failed != null) {
+                return false;
+            }
+            started[index] = true;
+            offsets[index] = offset;
+            writing++;
+            lastActive = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Forget a start whose part file could not be created, so the part can be sent again.
+         */
+        synchronized void unstart(int index) {
+            started[index] = false;
+            writing--;
+            lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * A part that failed is started no more, it may be sent again until it failed
+         * {@link #MAX_PART_ATTEMPTS} times; the upload fails then.
+         *
+         * @return true if the upload is over with this call and it has to {@code finish} it: all
+         * parts are stored, or the upload failed and no other part is still being written
+         */
+        synchronized boolean settle(int index, long length, int crc, boolean ok) {
+            writing--;
+            lastActive = System.currentTimeMillis();
+            if (ok) {
+                stored[index] = true;
+                lengths[index] = length;
+                crcs[index] = crc;
+                return ++settled == partCount;
+            }
+            started[index] = false;
+            if (++failures[index] >= MAX_PART_ATTEMPTS && failed == null) {
+                failed = String.format("part %d failed %d times", index, failures[index]);
+            }
+            return failed != null && writing == 0;
+        }
+
+        /**
+         * @return true if the upload is given up, no part may start any more
+         */
+        synchronized boolean abandon(long now, long ttlMillis) {
+            if (writing > 0 || now - lastActive < ttlMillis) {
+                return false;
+            }
+            abandoned = true;
+            return true;
+        }
+
+        /**
+         * Parts have to cover the file without gaps or overlaps, starting at byte 0.
+         */
+        synchronized boolean contiguous() {
+            long next = 0;
+            for (int i = 0; i < partCount; i++) {
+                if (offsets[i] != next) {
+                    return false;
+                }
+                next += lengths[i];
+            }
+            return true;
+        }
+
+        /**
+         * CRC32C of the assembled file, from those of the parts.
+         */
+        synchronized int crc() {
+            int crc = 0;
+            for (int i = 0; i < partCount; i++) {
+                crc = Crc32c.combine(crc, crcs[i], lengths[i]);
+            }
+            return crc;
+        }
+
+        List<String> partPaths() {
+            List<String> paths = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                paths.add(partPath(i));
+            }
+            return paths;
+        }
+    }
+
+    public StreamObserver<Chunk> newObserver(final StreamObserver<UploadStatus> responseObserver) {
+        return new StreamObserver<Chunk>() {
+            Pending upload;
+            int index;
+            long written = 0;
+            long createdAt = 0;
+            FSDataOutputStream output;
+            Hdfs hdfs = null;
+            ChunkVerifier verifier;
+            boolean rejected = false;
+
+            public void onNext(Chunk chunk) {
+                if (rejected) {
+                    return;
+                }
+                try {
+                    if (upload == null && !start(chunk)) {
+                        return;
+                    }
+                    if (chunk.hasDigest()) {
+                        if (!verifier.verify(chunk.getDigest())) {
+                            corrupted();
+                        }
+                        return;
+                    }
+                    ByteString content = verifier.verify(chunk);
+                    if (content == null) {
+                        corrupted();
+                        return;
+                    }
+                    content.writeTo(output);
+                    written += content.size();
+                    if (createdAt != 0) {
+                        metrics.firstByte.recordSince(createdAt);
+                        createdAt = 0;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private boolean start(Chunk chunk) throws IOException {
+                String uploadId = chunk.getUploadId();
+                int partCount = chunk.getPartCount();
+                index = chunk.getPartIndex();
+                if (!UPLOAD_ID.matcher(uploadId).matches() || partCount <= 0 || index < 0 || index >= partCount || chunk.getOffset() < 0) {
+                    return reject(String.format("invalid part header: id=%s part=%d/%d offset=%d",
+                            uploadId, index, partCount, chunk.getOffset()));
+                }
+                final String dir = "/" + Thread.currentThread().getName();
+                Pending p = pending.computeIfAbsent(uploadId, id -> new Pending(id, partCount, dir));
+                if (p.partCount != partCount) {
+                    return reject(String.format("upload %s has %d parts, not %d", uploadId, p.partCount, partCount));
+                }
+                if (!p.start(index, chunk.getOffset())) {
+                    synchronized (p) {
+                        if (p.abandoned || p.failed != null) {
+                            return reject(p.abandoned ? String.format("upload %s expired", uploadId)
+                                    : String.format("upload %s failed: %s", uploadId, p.failed));
+                        }
+                        if (p.stored[index]) {
+                            return reject(String.format("part %d of upload %s sent twice", index, uploadId));
+                        }
+                    }
+                    // the server has yet to notice that the client gave up the stream before
+                    return reject(Status.ABORTED,
+                            String.format("part %d of upload %s is still being written", index, uploadId));
+                }
+                try {
+                    hdfs = Hdfs.getInstance();
+                    hdfs.mkdir(p.dir);
+                    createdAt = System.nanoTime();
+                    output = hdfs.create(p.partPath(index), true);
+                } catch (IOException | RuntimeException e) {
+                    // nothing written, the client may send the part again
+                    p.unstart(index);
+                    throw e;
+                }
+                upload = p;
+                verifier = new ChunkVerifier(chunk.getOffset(), 0, maxRawLength);
+                return true;
+            }
+
+            private boolean reject(String message) {
+                return reject(Status.INVALID_ARGUMENT, message);
+            }
+
+            private boolean reject(Status status, String message) {
+                rejected = true;
+                logger.warn(message);
+                responseObserver.onError(status.withDescription(message).asRuntimeException());
+                return false;
+            }
+
+            /**
+             * The part fails and the client is told where the damage is, so it can send the part
+             * again; or why the upload failed, if the part ran out of attempts.
+             */
+            private void corrupted() {
+                rejected = true;
+                UploadStatus status = verifier.mismatchStatus();
+                logger.warn("upload " + upload.uploadId + " part " + index + ": " + status.getMessage());
+                closeOutput();
+                if (upload.settle(index, written, 0, false)) {
+                    status = finish(upload);
+                }
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            public void onError(Throwable throwable) {
+                logger.warn("part upload error: " + throwable);
+                closeOutput();
+                if (upload != null && !rejected && upload.settle(index, written, 0, false)) {
+                    finish(upload);
+                }
+                release();
+            }
+
+            public void onCompleted() {
+                if (rejected) {
+                    release();
+                    return;
+                }
+                if (upload == null) {
+                    // empty stream, nothing to store
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("empty part stream").asRuntimeException());
+                    return;
+                }
+                boolean ok = closeOutput();
+                UploadStatus status;
+                if (upload.settle(index, written, verifier.streamCrc(), ok)) {
+                    status = finish(upload);
+                } else if (ok) {
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.Ok)
+                            .setMessage(String.format("part %d/%d stored", index + 1, upload.partCount)).build();
+                } else {
+                    release();
+                    // Failed would tell the client the upload is over
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription(
+                            String.format("part %d/%d not stored, send it again", index + 1, upload.partCount))
+                            .asRuntimeException());
+                    return;
+                }
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            /**
+             * Runs once per upload, on the stream that settled the last part.
+             */
+            private UploadStatus finish(Pending p) {
+                pending.remove(p.uploadId);
+                String reason = p.failed;
+                if (reason == null && !p.contiguous()) {
+                    reason = "parts do not cover the file contiguously";
+                }
+                try {
+                    if (hdfs == null) {
+                        hdfs = Hdfs.getInstance();
+                    }
+                    if (reason == null) {
+                        hdfs.concat(p.target(), p.partPaths());
+                        ChunkVerifier.store(hdfs, p.target(), p.crc());
+                        logger.info("upload " + p.uploadId + " assembled from " + p.partCount + " parts");
+                        return UploadStatus.newBuilder().setCode(UploadStatusCode.Ok).setMessage(p.target()).build();
+                    }
+                    for (String part : p.partPaths()) {
+                        hdfs.purge(part);
+                    }
+                } catch (IOException e) {
+                    reason = reason == null ? String.valueOf(e) : reason + ", " + e;
+                }
+                logger.error("upload " + p.uploadId + " failed: " + reason);
+                return UploadStatus.newBuilder().setCode(UploadStatusCode.Failed).setMessage(reason).build();
+            }
+
+            private boolean closeOutput() {
+                if (output == null) {
+                    return false;
+                }
+                try {
+                    long start = System.nanoTime();
+                    output.close();
+                    metrics.closeAck.recordSince(start);
+                    return true;
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                    return false;
+                } finally {
+                    output = null;
+                }
+            }
+
+            private void release() {
+                if (hdfs != null) {
+                    try {
+                        hdfs.close();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    hdfs = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Drop uploads no part started or settled within the ttl, including their part files.
+     */
+    private void collect() {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (!p.abandon(now, ttlMillis)) {
+                continue;
+            }
+            it.remove();
+            logger.info("upload " + p.uploadId + " abandoned after " + p.settled + " of " + p.partCount + " parts");
+            try (Hdfs hdfs = Hdfs.getInstance()) {
+                // parts that failed may have left files as well as those stored
+                for (String part : p.partPaths()) {
+                    hdfs.purge(part);
+                }
+            } catch (IOException e) {
+                logger.error("failed to remove the parts of upload " + p.uploadId + ": " + e);
+            }
+        }
+    }
+}
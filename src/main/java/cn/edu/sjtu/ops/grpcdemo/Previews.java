@@ -0,0 +1,99 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Server side of {@code Preview}: one {@link FilePreview} per call, run on the reader pool and sent
+ * a block per chunk as it is read. A preview is at most {@code maxBytes}, so unlike a download it
+ * is sent without waiting for the call to become ready.
+ */
+public class Previews {
+    private static final Logger logger = LoggerFactory.getLogger(Previews.class);
+
+    private final ExecutorService readers;
+    private final long maxBytes;
+
+    public Previews(ExecutorService readers, long maxBytes) {
+        this.readers = readers;
+        this.maxBytes = maxBytes;
+    }
+
+    public void serve(final PreviewRequest request, StreamObserver<Chunk> responseObserver) {
+        final ServerCallStreamObserver<Chunk> call = (ServerCallStreamObserver<Chunk>) responseObserver;
+        readers.execute(() -> {
+            try {
+                preview(request, call);
+            } catch (StatusRuntimeException e) {
+                call.onError(e);
+            } catch (IOException | RuntimeException e) {
+                logger.error("preview of " + request.getPath() + " failed: " + e);
+                call.onError(Status.fromThrowable(e).withDescription(String.valueOf(e)).asRuntimeException());
+            }
+        });
+    }
+
+    private void preview(PreviewRequest request, final ServerCallStreamObserver<Chunk> call) throws IOException {
+        long limit = request.getMaxBytes() > 0 ? Math.min(maxBytes, request.getMaxBytes()) : maxBytes;
+        if (request.getOffset() < 0 || request.getCount() < 0) {
+            throw Status.INVALID_ARGUMENT.withDescription(String.format("offset %d, count %d",
+                    request.getOffset(), request.getCount())).asRuntimeException();
+        }
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            Downloads.Source source = Downloads.resolve(hdfs, request.getPath(), request.getMember());
+            try {
+                final Crc32c crc = new Crc32c();
+                final long[] sent = new long[1];
+                final int[] streamCrc = new int[1];
+                final Chunk.Builder[] next = {Chunk.newBuilder().setFileSize(source.size)};
+                FilePreview preview = new FilePreview(source.in, source.base, source.size, limit);
+                FilePreview.Sink sink = bytes -> {
+                    if (call.isCancelled()) {
+                        throw Status.CANCELLED.withDescription("preview cancelled").asRuntimeException();
+                    }
+                    int n = bytes.remaining();
+                    int chunkCrc = crc.of(bytes);
+                    streamCrc[0] = crc.append(streamCrc[0], chunkCrc, n);
+                    // serialized before onNext returns, the buffer goes back to the pool afterwards
+                    call.onNext(next[0].setContent(UnsafeByteOperations.unsafeWrap(bytes))
+                            .setCrc32C(chunkCrc).setHasCrc32C(true).build());
+                    next[0] = Chunk.newBuilder();
+                    sent[0] += n;
+                };
+                long start;
+                switch (request.getMode()) {
+                    case Tail:
+                        start = preview.tail(request.getCount(), sink);
+                        break;
+                    case Lines:
+                        start = preview.lines(request.getOffset(), request.getCount(), sink);
+                        break;
+                    case Bytes:
+                        if (request.getOffset() > source.size) {
+                            throw Status.OUT_OF_RANGE.withDescription(String.format("%s: offset %d of a %d byte file",
+                                    request.getPath(), request.getOffset(), source.size)).asRuntimeException();
+                        }
+                        start = preview.range(request.getOffset(), request.getCount(), sink);
+                        break;
+                    default:
+                        start = preview.head(request.getCount(), sink);
+                        break;
+                }
+                // the first chunk says where the preview starts, also when it is empty
+                call.onNext(next[0].setOffset(start).setDigest(StreamDigest.newBuilder()
+                        .setLength(sent[0]).setCrc32C(streamCrc[0])).build());
+                call.onCompleted();
+            } finally {
+                source.in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Numbers of one server, cheap enough to record on every chunk: counters are {@link LongAdder}s and
+ * latencies go into HdrHistograms in microseconds. Gauges are read only when a snapshot is taken.
+ *
+ * Counters and histograms add up from server start; {@code upload.bytes_in_per_sec} is the rate
+ * since the previous snapshot, so it is meaningful with one scraper.
+ */
+public class ServerMetrics {
+
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /** Handling of one chunk on a writer thread: verify, inflate and write to the HDFS stream. */
+    public final Latency chunkWrite = new Latency("hdfs.chunk_write_us");
+    /** From {@code create} of the HDFS file until the first chunk is written into it. */
+    public final Latency firstByte = new Latency("hdfs.first_byte_us");
+    /** {@code close()} of an HDFS file, which waits for the pipeline to ack the last packet. */
+    public final Latency closeAck = new Latency("hdfs.close_us");
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastBytesIn = 0;
+
+    public static final class Latency {
+        private final String name;
+        private final Histogram histogram = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+
+        Latency(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param startNanos {@link System#nanoTime()} when the measured step began
+         */
+        public void recordSince(long startNanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+            histogram.recordValue(Math.max(0, Math.min(HIGHEST_MICROS, micros)));
+        }
+
+        void addTo(Map<String, Double> metrics) {
+            metrics.put(name + ".count", (double) histogram.getTotalCount());
+            metrics.put(name + ".mean", histogram.getMean());
+            for (double p : PERCENTILES) {
+                metrics.put(name + ".p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p)),
+                        (double) histogram.getValueAtPercentile(p));
+            }
+            metrics.put(name + ".max", (double) histogram.getMaxValue());
+        }
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Count one failure, e.g. {@code Upload.CANCELLED} or {@code write.IOException}.
+     */
+    public void error(String cause) {
+        errors.computeIfAbsent(cause, c -> new LongAdder()).increment();
+    }
+
+    /**
+     * Report {@code value} under {@code name} in every snapshot, e.g. a queue depth.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * A latency histogram reported under {@code name}, for ones not known up front, e.g. per tenant.
+     */
+    public Latency latency(String name) {
+        return latencies.computeIfAbsent(name, Latency::new);
+    }
+
+    /**
+     * Stop reporting the gauges and latencies whose names start with {@code prefix}, e.g. those of a
+     * tenant that went away.
+     */
+    public void remove(String prefix) {
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+        latencies.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public synchronized MetricsSnapshot snapshot() {
+        Map<String, Double> metrics = new TreeMap<>();
+        long now = System.nanoTime();
+        long bytes = bytesIn.sum();
+        metrics.put("upload.bytes_in", (double) bytes);
+        metrics.put("upload.bytes_in_per_sec", (bytes - lastBytesIn) * 1e9 / Math.max(1, now - lastSnapshotNanos));
+        lastSnapshotNanos = now;
+        lastBytesIn = bytes;
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            metrics.put(gauge.getKey(), (double) gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            metrics.put("errors." + error.getKey(), (double) error.getValue().sum());
+        }
+        chunkWrite.addTo(metrics);
+        firstByte.addTo(metrics);
+        closeAck.addTo(metrics);
+        for (Latency latency : latencies.values()) {
+            latency.addTo(metrics);
+        }
+
+        MetricsSnapshot.Builder snapshot = MetricsSnapshot.newBuilder();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            snapshot.addMetrics(Metric.newBuilder().setName(metric.getKey()).setValue(metric.getValue()));
+        }
+        return snapshot.build();
+    }
+
+    /**
+     * One {@code name value} line per metric, for logs.
+     */
+    public static String format(MetricsSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder();
+        for (Metric metric : snapshot.getMetricsList()) {
+            sb.append(metric.getName()).append(' ');
+            double value = metric.getValue();
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                sb.append((long) value);
+            } else {
+                sb.append(String.format("%.3f", value));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,325 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local staging tier for plain uploads, so a slow HDFS pipeline does not stall the clients.
+ *
+ * An upload is written into a segment file in {@code dir} through memory-mapped extents that are
+ * mapped, and so reserved, {@link #EXTENT} bytes at a time. Once the segment is forced to disk a
+ * small {@code .meta} file with the HDFS target is written next to it and the client gets its Ok.
+ * Flush threads then copy every committed segment into {@code <target>.staging} in HDFS, rename it
+ * into place and delete the local files, retrying with backoff while HDFS fails.
+ *
+ * On restart committed segments are flushed again, segments without meta were never acknowledged
+ * and are deleted. Disk use is bounded by {@code quota}: new uploads bypass the stage while it is
+ * full, and a staged upload that outgrows the space left fails with RESOURCE_EXHAUSTED.
+ */
+public class SpillStage implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpillStage.class);
+
+    static final long EXTENT = 16L * 1024 * 1024;
+    private static final long MIN_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60000;
+    private static final int COPY_BUFFER = 1024 * 1024;
+
+    private final File dir;
+    private final long quota;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService flushers;
+    private final AtomicInteger pending = new AtomicInteger();
+    /** Bytes reserved by open segments plus the length of committed ones, guarded by this. */
+    private long used = 0;
+
+    private static final class Committed {
+        final String id;
+        final String path;
+        final long length;
+        final int crc;
+        final boolean framed;
+        int attempts = 0;
+
+        Committed(String id, String path, long length, int crc, boolean framed) {
+            this.id = id;
+            this.path = path;
+            this.length = length;
+            this.crc = crc;
+            this.framed = framed;
+        }
+    }
+
+    public SpillStage(File dir, long quota, int flushThreads, ServerMetrics metrics) {
+        this.dir = dir;
+        this.quota = quota;
+        this.metrics = metrics;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.error("can not create staging directory " + dir);
+        }
+        final AtomicInteger n = new AtomicInteger();
+        this.flushers = Executors.newScheduledThreadPool(flushThreads, r -> {
+            Thread t = new Thread(r, "spill-flush-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("spill.used_bytes", this::used);
+        metrics.gauge("spill.pending_segments", pending::get);
+        recover();
+    }
+
+    /**
+     * @return false while the stage is full, the upload should then go to HDFS directly
+     */
+    public synchronized boolean admits() {
+        return used + EXTENT <= quota;
+    }
+
+    public synchronized long used() {
+        return used;
+    }
+
+    /**
+     * Start staging an upload bound for {@code path} in HDFS.
+     */
+    public Segment open(String path) throws IOException {
+        return new Segment(UUID.randomUUID().toString(), path);
+    }
+
+    /**
+     * Where one upload is written. Not thread safe, like the HDFS stream it stands in for.
+     */
+    public final class Segment extends OutputStream {
+        private final String id;
+        private final String path;
+        private final FileChannel channel;
+        private MappedByteBuffer extent;
+        private long length = 0;
+        private long reserved = 0;
+
+        private Segment(String id, String path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureSpace();
+            extent.put((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureSpace();
+                int n = Math.min(len, extent.remaining());
+                extent.put(b, off, n);
+                off += n;
+                len -= n;
+                length += n;
+            }
+        }
+
+        private void ensureSpace() throws IOException {
+            if (extent != null && extent.hasRemaining()) {
+                return;
+            }
+            if (extent != null) {
+                // sync full extents as they fill, so commit only waits for the last one
+                extent.force();
+            }
+            reserve(EXTENT);
+            reserved += EXTENT;
+            extent = channel.map(FileChannel.MapMode.READ_WRITE, length, EXTENT);
+        }
+
+        /**
+         * Make the upload durable on local disk and queue it for HDFS. Returns once it is safe
+         * to acknowledge the upload.
+         */
+        public void commit(int crc, boolean framed) throws IOException {
+            if (extent != null) {
+                extent.force();
+                extent = null;
+            }
+            // not truncated to the length: the extents stay mapped until they are collected, and
+            // cutting a mapped region away may crash the process. The meta says where the upload
+            // ends, the unwritten rest of the last extent was never allocated
+            channel.force(true);
+            channel.close();
+            Properties props = new Properties();
+            props.setProperty("path", path);
+            props.setProperty("length", String.valueOf(length));
+            props.setProperty("crc32c", Crc32c.hex(crc));
+            props.setProperty("framed", String.valueOf(framed));
+            File tmp = new File(dir, id + ".meta.tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                props.store(fos, null);
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), metaFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            release(reserved - length);
+            reserved = length;
+            schedule(new Committed(id, path, length, crc, framed), 0);
+        }
+
+        /**
+         * Drop a failed or rejected upload.
+         */
+        public void discard() {
+            extent = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error(String.valueOf(e));
+            }
+            segmentFile(id).delete();
+            release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Fails right away when the quota is used up: the caller is a writer thread, which other
+     * streams wait for, and the flushes that free space take as long as HDFS is slow.
+     */
+    private synchronized void reserve(long bytes) throws IOException {
+        if (used + bytes > quota) {
+            metrics.error("spill.full");
+            // the cause carries the status the client sees, see WritePipeline
+            throw new IOException("staging area full", Status.RESOURCE_EXHAUSTED
+                    .withDescription("staging area full, retry later").asRuntimeException());
+        }
+        used += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        used -= bytes;
+    }
+
+    private void schedule(Committed segment, long delayMs) {
+        if (delayMs == 0) {
+            pending.incrementAndGet();
+        }
+        flushers.schedule(() -> flush(segment), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(Committed segment) {
+        String staging = segment.path + ".staging";
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            hdfs.mkdir(segment.path.substring(0, segment.path.lastIndexOf('/')));
+            try (FSDataOutputStream out = hdfs.create(staging, true);
+                 FileChannel in = FileChannel.open(segmentFile(segment.id).toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+                long copied = 0;
+                while (copied < segment.length) {
+                    buffer.clear();
+                    // the segment goes on past the upload, to the end of its last extent
+                    buffer.limit((int) Math.min(COPY_BUFFER, segment.length - copied));
+                    int n = in.read(buffer);
+                    if (n < 0) {
+                        throw new EOFException("segment " + segment.id + " ends at " + copied + " of " + segment.length);
+                    }
+                    out.write(buffer.array(), 0, n);
+                    copied += n;
+                }
+            }
+            if (!hdfs.rename(staging, segment.path, true)) {
+                throw new IOException("can not rename " + staging + " to " + segment.path);
+            }
+            ChunkVerifier.store(hdfs, segment.path, segment.crc);
+            if (segment.framed) {
+                try {
+                    ChunkCodec.mark(hdfs, segment.path);
+                } catch (IOException | UnsupportedOperationException e) {
+                    logger.error("can not mark " + segment.path + " as framed: " + e);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            long delay = Math.min(MAX_RETRY_MS, MIN_RETRY_MS << Math.min(++segment.attempts, 6));
+            logger.warn("flush of " + segment.path + " failed, retry in " + delay + "ms: " + e);
+            metrics.error("spill.flush." + e.getClass().getSimpleName());
+            schedule(segment, delay);
+            return;
+        }
+        // meta first: a segment without meta is deleted on recovery, a flush that ran twice is harmless
+        metaFile(segment.id).delete();
+        segmentFile(segment.id).delete();
+        release(segment.length);
+        pending.decrementAndGet();
+        logger.info("flushed " + segment.length + " staged bytes to " + segment.path);
+    }
+
+    private File segmentFile(String id) {
+        return new File(dir, id + ".seg");
+    }
+
+    private File metaFile(String id) {
+        return new File(dir, id + ".meta");
+    }
+
+    private void recover() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        int recovered = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".meta")) {
+                String id = name.substring(0, name.length() - ".meta".length());
+                Properties props = new Properties();
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    props.load(fis);
+                    long length = Long.parseLong(props.getProperty("length"));
+                    if (!segmentFile(id).isFile() || segmentFile(id).length() < length) {
+                        throw new IOException("segment missing or short");
+                    }
+                    synchronized (this) {
+                        used += length;
+                    }
+                    schedule(new Committed(id, props.getProperty("path"), length,
+                            (int) Long.parseLong(props.getProperty("crc32c", "0"), 16),
+                            Boolean.parseBoolean(props.getProperty("framed"))), 0);
+                    recovered++;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("skip broken staged upload " + file + ": " + e);
+                }
+            } else if (name.endsWith(".seg")) {
+                if (!metaFile(name.substring(0, name.length() - ".seg".length())).isFile()) {
+                    // never acknowledged, the client sends it again
+                    file.delete();
+                }
+            } else if (name.endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        logger.info("recovered " + recovered + " staged uploads");
+    }
+
+    /**
+     * Stop flushing; committed segments are picked up again on the next start.
+     */
+    @Override
+    public void close() {
+        flushers.shutdownNow();
+    }
+}
@@ -0,0 +1,377 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Shares the upload server between tenants, named by the {@code x-tenant} header of a call.
+ *
+ * Each tenant may hold at most {@link Policy#maxStreams} upload streams; one more is refused at
+ * once with {@code RESOURCE_EXHAUSTED} and a {@code retry-after-ms} trailer, instead of queueing
+ * until the client times out. Within that, the {@link WritePipeline} asks the scheduler before it
+ * grants a stream an inbound credit: a tenant over its byte rate (a token bucket, charged as chunks
+ * arrive) waits until the bucket refills, and when the pipeline runs out of credits the waiting
+ * streams get them back in weighted fair order, the tenant with the least bytes per weight first.
+ * A tenant with 200 streams then gets no more of the HDFS bandwidth than its weight says, however
+ * many streams it opens.
+ *
+ * Granting a credit to a tenant within its rate while credits are left, the common case, costs a
+ * few atomic operations and takes no lock. Tenants without streams for {@link #IDLE_MINUTES} are
+ * dropped together with their metrics, a name that comes back starts afresh.
+ */
+public class TenantScheduler implements ServerInterceptor, Closeable {
+
+    public static final Metadata.Key<String> TENANT_HEADER =
+            Metadata.Key.of("x-tenant", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> RETRY_AFTER_HEADER =
+            Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+    public static final String DEFAULT_TENANT = "default";
+
+    private static final Context.Key<String> TENANT = Context.key("tenant");
+    // tenant names end up in metric names
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+    // more distinct names than this share the default tenant, clients choose them freely
+    static final int MAX_TENANTS = 1024;
+    static final long IDLE_MINUTES = 10;
+    // streams of a tenant being dropped, admit() looks it up again
+    private static final int EVICTED = Integer.MIN_VALUE;
+    // virtual time per byte of a tenant of weight 1
+    private static final long WEIGHT_UNIT = 1024;
+
+    /**
+     * What a tenant may use.
+     */
+    public static final class Policy {
+        final int weight;
+        final long bytesPerSecond;
+        final long burstBytes;
+        final int maxStreams;
+
+        /**
+         * @param weight         share of the bandwidth relative to other tenants while it is contended
+         * @param bytesPerSecond upload rate limit, 0 for none; bursts of one second's worth pass
+         * @param maxStreams     upload streams open at the same time
+         */
+        public Policy(int weight, long bytesPerSecond, int maxStreams) {
+            if (weight < 1 || bytesPerSecond < 0 || maxStreams < 1) {
+                throw new IllegalArgumentException(String.format("weight %d, rate %d, streams %d",
+                        weight, bytesPerSecond, maxStreams));
+            }
+            this.weight = weight;
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstBytes = bytesPerSecond;
+            this.maxStreams = maxStreams;
+        }
+    }
+
+    /**
+     * A stream waiting for a credit.
+     */
+    interface Waiter {
+        void resume();
+    }
+
+    private final Policy defaults;
+    private final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    /** Tenants in the map but for the default one, changed in its compute calls only. */
+    private final AtomicInteger named = new AtomicInteger();
+    // for the fair pick, which scans
+    private final List<Tenant> all = new CopyOnWriteArrayList<>();
+    private final AtomicInteger starved = new AtomicInteger();
+    // finish time of the last tenant served, idle tenants restart from it
+    private final AtomicLong virtualTime = new AtomicLong();
+    private final long retryAfterMs;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param defaults     policy of tenants without one of their own
+     * @param retryAfterMs how long a refused client is told to wait
+     */
+    public TenantScheduler(Policy defaults, long retryAfterMs, ServerMetrics metrics) {
+        this.defaults = defaults;
+        this.retryAfterMs = retryAfterMs;
+        this.metrics = metrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tenant-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> evictIdle(System.nanoTime()), 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Give {@code tenant} its own policy, also while it has streams open.
+     */
+    public void setPolicy(String tenant, Policy policy) {
+        policies.put(tenant, policy);
+        Tenant t = tenants.get(tenant);
+        if (t != null) {
+            t.policy = policy;
+            // a smaller burst applies at once, not after the tokens saved under the old one are spent
+            t.tokens.accumulateAndGet(policy.burstBytes, Math::min);
+        }
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String name = headers.get(TENANT_HEADER);
+        if (name == null || !VALID_NAME.matcher(name).matches()) {
+            name = DEFAULT_TENANT;
+        }
+        return Contexts.interceptCall(Context.current().withValue(TENANT, name), call, headers, next);
+    }
+
+    /**
+     * Open a stream for the tenant of the current call.
+     *
+     * @return null if the tenant has all the streams it may have, see {@link #refusal}
+     */
+    Tenant admit() {
+        String name = TENANT.get();
+        return admit(name == null ? DEFAULT_TENANT : name);
+    }
+
+    Tenant admit(String name) {
+        Tenant tenant = tenant(name);
+        while (true) {
+            int streams = tenant.streams.get();
+            if (streams == EVICTED) {
+                // dropped as idle just now, its successor is in the map once the removal is done
+                tenant = tenant(name);
+                continue;
+            }
+            if (streams >= tenant.policy.maxStreams) {
+                tenant.rejected.increment();
+                return null;
+            }
+            if (tenant.streams.compareAndSet(streams, streams + 1)) {
+                return tenant;
+            }
+        }
+    }
+
+    StatusRuntimeException refusal() {
+        String name = TENANT.get();
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_HEADER, String.valueOf(retryAfterMs));
+        return Status.RESOURCE_EXHAUSTED.withDescription("too many uploads of tenant "
+                + (name == null ? DEFAULT_TENANT : name) + ", retry later").asRuntimeException(trailers);
+    }
+
+    private Tenant tenant(String name) {
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = tenants.computeIfAbsent(name, this::create);
+        }
+        if (tenant == null) {
+            tenant = tenants.computeIfAbsent(DEFAULT_TENANT, this::create);
+        }
+        return tenant;
+    }
+
+    /**
+     * @return null if there are {@link #MAX_TENANTS} already, checked while the new name is locked
+     *         in the map so that names arriving together can not pass the limit
+     */
+    private Tenant create(String name) {
+        if (!name.equals(DEFAULT_TENANT) && named.getAndUpdate(n -> n < MAX_TENANTS ? n + 1 : n) >= MAX_TENANTS) {
+            return null;
+        }
+        Tenant t = new Tenant(name, policies.getOrDefault(name, defaults));
+        all.add(t);
+        return t;
+    }
+
+    /**
+     * Drop the tenants without streams that have been idle for {@link #IDLE_MINUTES} at {@code now},
+     * a {@link System#nanoTime()}.
+     */
+    void evictIdle(long now) {
+        long idle = TimeUnit.MINUTES.toNanos(IDLE_MINUTES);
+        for (Tenant tenant : all) {
+            if (now - tenant.lastUsed < idle || !tenant.starved.isEmpty() || !tenant.throttled.isEmpty()) {
+                continue;
+            }
+            tenants.computeIfPresent(tenant.name, (name, t) -> {
+                // a stream opened meanwhile keeps it
+                if (t != tenant || now - t.lastUsed < idle || !t.streams.compareAndSet(0, EVICTED)) {
+                    return t;
+                }
+                all.remove(t);
+                metrics.remove("tenant." + name + ".");
+                if (!name.equals(DEFAULT_TENANT)) {
+                    named.decrementAndGet();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Park {@code waiter} until the pipeline has credits again; they go to the fairest tenant.
+     */
+    void starve(Tenant tenant, Waiter waiter) {
+        // a tenant that was idle does not get to catch up on the time it did not use
+        tenant.finish.accumulateAndGet(virtualTime.get(), Math::max);
+        tenant.starved.add(waiter);
+        starved.incrementAndGet();
+    }
+
+    /**
+     * @return the next stream to get a credit, null if none waits
+     */
+    Waiter nextStarved() {
+        while (starved.get() > 0) {
+            Tenant best = null;
+            long min = Long.MAX_VALUE;
+            for (Tenant tenant : all) {
+                long finish = tenant.finish.get();
+                if (finish < min && !tenant.starved.isEmpty()) {
+                    best = tenant;
+                    min = finish;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            Waiter waiter = best.starved.poll();
+            if (waiter != null) {
+                starved.decrementAndGet();
+                virtualTime.accumulateAndGet(min, Math::max);
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Park {@code waiter} until its tenant's bucket has refilled.
+     */
+    void throttle(final Tenant tenant, Waiter waiter) {
+        tenant.throttled.add(waiter);
+        if (tenant.wakeScheduled.compareAndSet(false, true)) {
+            Policy policy = tenant.policy;
+            long deficit = 1 - tenant.tokens.get();
+            long nanos = policy.bytesPerSecond == 0 ? 0 : (long) (deficit * 1e9 / policy.bytesPerSecond);
+            timer.schedule(() -> {
+                tenant.wakeScheduled.set(false);
+                Waiter next;
+                while ((next = tenant.throttled.poll()) != null) {
+                    next.resume();
+                }
+            }, Math.max(TimeUnit.MILLISECONDS.toNanos(1), nanos), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Upload state of one tenant.
+     */
+    final class Tenant {
+        final String name;
+        volatile Policy policy;
+        final AtomicInteger streams = new AtomicInteger();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLong tokens;
+        final AtomicLong refilledAt = new AtomicLong(System.nanoTime());
+        /** Bytes received divided by weight, in {@link #WEIGHT_UNIT}s. */
+        final AtomicLong finish = new AtomicLong();
+        final ConcurrentLinkedQueue<Waiter> starved = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<Waiter> throttled = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean wakeScheduled = new AtomicBoolean();
+        final ServerMetrics.Latency queueDelay;
+        /** When the last stream ended, or the tenant was created. */
+        volatile long lastUsed = System.nanoTime();
+        private long lastRateNanos = System.nanoTime();
+        private long lastRateBytes = 0;
+
+        Tenant(String name, Policy policy) {
+            this.name = name;
+            this.policy = policy;
+            this.tokens = new AtomicLong(policy.burstBytes);
+            String prefix = "tenant." + name + ".";
+            this.queueDelay = metrics.latency(prefix + "queue_delay_us");
+            metrics.gauge(prefix + "streams", () -> Math.max(0, streams.get()));
+            metrics.gauge(prefix + "rejected", rejected::sum);
+            metrics.gauge(prefix + "bytes_in", bytes::sum);
+            metrics.gauge(prefix + "bytes_in_per_sec", this::bytesPerSecond);
+            metrics.gauge(prefix + "waiting", () -> starved.size() + throttled.size());
+        }
+
+        /**
+         * @return whether the tenant is within its rate and may be sent another credit
+         */
+        boolean mayReceive() {
+            Policy p = policy;
+            if (p.bytesPerSecond == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            long last = refilledAt.get();
+            long refill = (long) ((now - last) * (p.bytesPerSecond / 1e9));
+            // whoever moves the refill time on adds the tokens for it
+            if (refill > 0 && refilledAt.compareAndSet(last, now)) {
+                tokens.accumulateAndGet(refill, (t, r) -> Math.min(p.burstBytes, t + r));
+            }
+            return tokens.get() > 0;
+        }
+
+        /**
+         * A chunk of {@code n} bytes arrived; the bucket may go negative, the credit was granted before.
+         */
+        void charge(long n) {
+            Policy p = policy;
+            bytes.add(n);
+            finish.addAndGet(n * WEIGHT_UNIT / p.weight);
+            if (p.bytesPerSecond != 0) {
+                tokens.addAndGet(-n);
+            }
+        }
+
+        void release() {
+            lastUsed = System.nanoTime();
+            streams.decrementAndGet();
+        }
+
+        /**
+         * Rate since the previous call, meaningful with one scraper like {@code upload.bytes_in_per_sec}.
+         */
+        private synchronized long bytesPerSecond() {
+            long now = System.nanoTime();
+            long sum = bytes.sum();
+            long rate = (long) ((sum - lastRateBytes) * 1e9 / Math.max(1, now - lastRateNanos));
+            lastRateNanos = now;
+            lastRateBytes = sum;
+            return rate;
+        }
+    }
+}
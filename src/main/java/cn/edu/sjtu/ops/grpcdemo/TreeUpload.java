@@ -0,0 +1,313 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a local directory tree into an HDFS directory and keeps the relative paths.
+ *
+ * Walker tasks on a fork-join pool read one directory each with {@code Files.walkFileTree} at
+ * depth 1, which passes the sizes along with the names. Each subdirectory gets a task of its own,
+ * so wide and deep trees are read in parallel. Directories go to the server in batched
+ * {@code Mkdirs} calls, so each one is created once, and a directory's files are queued once it
+ * exists.
+ *
+ * The queue is bounded: the walk runs at most {@code window} files ahead of the uploads. It is
+ * ordered by size, so uploaders take the largest file walked so far and the long transfers start
+ * early instead of trailing at the end of the run. {@code concurrency} uploads run at a time, each
+ * one a stream on the client's shared channels.
+ */
+public class TreeUpload {
+    private static final Logger logger = LoggerFactory.getLogger(TreeUpload.class);
+
+    public static final int DEFAULT_WINDOW = 10000;
+    // directories per Mkdirs call, and how long a partial batch waits for more
+    private static final int MKDIRS_BATCH = 1000;
+    private static final long MKDIRS_LINGER_MS = 20;
+    // after the last file, sorts behind all of them
+    private static final Entry END = new Entry(null, null, -1);
+
+    /**
+     * What an upload of a tree did.
+     */
+    public static final class Result {
+        public final long files;
+        public final long bytes;
+        public final long directories;
+        /**
+         * Remote path of each file or directory that failed, with why, see
+         * {@link DemoClient#tryUpload(String, int, int)}.
+         */
+        public final Map<String, String> failures;
+
+        Result(long files, long bytes, long directories, Map<String, String> failures) {
+            this.files = files;
+            this.bytes = bytes;
+            this.directories = directories;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %d bytes, %d directories, %d failed", files, bytes, directories,
+                    failures.size());
+        }
+    }
+
+    private static final class Entry {
+        final Path file;
+        final String remotePath;
+        final long size;
+
+        Entry(Path file, String remotePath, long size) {
+            this.file = file;
+            this.remotePath = remotePath;
+            this.size = size;
+        }
+    }
+
+    private final DemoClient client;
+    private final Path root;
+    private final String remoteRoot;
+    private final int concurrency;
+    private final int chunkSize;
+    private final boolean overwrite;
+    private final Semaphore window;
+    private final PriorityBlockingQueue<Entry> queue =
+            new PriorityBlockingQueue<>(64, Comparator.comparingLong((Entry e) -> e.size).reversed());
+    private final ForkJoinPool walkers = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final ScheduledExecutorService mkdirsTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tree-mkdirs");
+        t.setDaemon(true);
+        return t;
+    });
+    // directory tasks started and not finished
+    private final AtomicInteger walking = new AtomicInteger();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private List<String> pendingDirectories = new ArrayList<>();
+    private CompletableFuture<Void> pendingBatch = new CompletableFuture<>();
+
+    /**
+     * @param remoteRoot absolute HDFS directory that {@code root} is uploaded as
+     * @param window     files walked ahead of the uploads at most
+     * @param chunkSize  bytes per chunk, or 0 to let the client find the best size
+     * @param overwrite  replace remote files of the same path, otherwise those uploads fail
+     */
+    public TreeUpload(DemoClient client, Path root, String remoteRoot, int concurrency, int window, int chunkSize,
+                      boolean overwrite) {
+        if (!remoteRoot.startsWith("/")) {
+            throw new IllegalArgumentException("not an absolute path: " + remoteRoot);
+        }
+        this.client = client;
+        this.root = root;
+        this.remoteRoot = remoteRoot.length() > 1 && remoteRoot.endsWith("/")
+                ? remoteRoot.substring(0, remoteRoot.length() - 1) : remoteRoot;
+        this.concurrency = concurrency;
+        this.chunkSize = chunkSize;
+        this.overwrite = overwrite;
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Walk and upload the whole tree; files that fail are in {@link Result#failures}, the others
+     * are uploaded regardless. Runs once per instance.
+     *
+     * @throws IOException if the root is not a directory
+     */
+    public Result run() throws IOException, InterruptedException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException(root + " is not a directory");
+        }
+        long start = System.nanoTime();
+        final AtomicInteger n = new AtomicInteger();
+        ExecutorService uploaders = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "tree-upload-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            submit(root);
+            List<CompletableFuture<Void>> running = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                running.add(CompletableFuture.runAsync(this::upload, uploaders));
+            }
+            try {
+                CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    throw (InterruptedException) e.getCause();
+                }
+                throw e;
+            }
+        } finally {
+            uploaders.shutdownNow();
+            walkers.shutdownNow();
+            mkdirsTimer.shutdownNow();
+        }
+        Result result = new Result(files.get(), bytes.get(), directories.get(), failures);
+        logger.info("uploaded " + root + " to " + remoteRoot + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: " + result);
+        return result;
+    }
+
+    private void submit(final Path directory) {
+        walking.incrementAndGet();
+        walkers.execute(() -> walk(directory));
+    }
+
+    /**
+     * Runs on a walker: read the entries of {@code directory}, start the walk of its subdirectories
+     * and queue its files once the directory exists remotely.
+     */
+    private void walk(final Path directory) {
+        String remoteDirectory = remotePath(directory);
+        try {
+            final List<Entry> entries = new ArrayList<>();
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    // at the depth limit directories are visited like files; links are not followed
+                    if (attributes.isDirectory()) {
+                        submit(file);
+                    } else if (attributes.isRegularFile()) {
+                        entries.add(new Entry(file, remotePath(file), attributes.size()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failures.put(remotePath(file), e.getClass().getSimpleName());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            directories.incrementAndGet();
+            try {
+                mkdir(remoteDirectory).join();
+            } catch (CompletionException e) {
+                String cause = "mkdirs " + Status.fromThrowable(e.getCause()).getCode().name();
+                for (Entry entry : entries) {
+                    failures.put(entry.remotePath, cause);
+                }
+                return;
+            }
+            for (Entry entry : entries) {
+                window.acquire();
+                queue.add(entry);
+            }
+        } catch (IOException e) {
+            failures.put(remoteDirectory, e.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // every file of the tree is queued once the last task gets here
+            if (walking.decrementAndGet() == 0) {
+                queue.add(END);
+            }
+        }
+    }
+
+    /**
+     * Runs on an uploader until the tree is walked and the queue empty.
+     */
+    private void upload() {
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                if (entry == END) {
+                    // for the other uploaders
+                    queue.add(END);
+                    return;
+                }
+                window.release();
+                String failure = client.tryUpload(entry.file, entry.remotePath, overwrite, chunkSize);
+                if (failure == null) {
+                    files.incrementAndGet();
+                    bytes.addAndGet(entry.size);
+                } else {
+                    failures.put(entry.remotePath, failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @return completes once {@code remoteDirectory} exists, together with the others of its batch
+     */
+    private synchronized CompletableFuture<Void> mkdir(String remoteDirectory) {
+        CompletableFuture<Void> batch = pendingBatch;
+        pendingDirectories.add(remoteDirectory);
+        if (pendingDirectories.size() >= MKDIRS_BATCH) {
+            mkdirsTimer.execute(this::flushDirectories);
+        } else if (pendingDirectories.size() == 1) {
+            mkdirsTimer.schedule(this::flushDirectories, MKDIRS_LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+        return batch;
+    }
+
+    private void flushDirectories() {
+        List<String> paths;
+        CompletableFuture<Void> batch;
+        synchronized (this) {
+            if (pendingDirectories.isEmpty()) {
+                return;
+            }
+            paths = pendingDirectories;
+            batch = pendingBatch;
+            pendingDirectories = new ArrayList<>();
+            pendingBatch = new CompletableFuture<>();
+        }
+        try {
+            client.mkdirs(paths);
+            batch.complete(null);
+        } catch (RuntimeException e) {
+            logger.error("mkdirs of " + paths.size() + " directories failed: " + e);
+            batch.completeExceptionally(e);
+        }
+    }
+
+    private String remotePath(Path local) {
+        if (local.equals(root)) {
+            return remoteRoot;
+        }
+        StringBuilder path = new StringBuilder(remoteRoot);
+        for (Path name : root.relativize(local)) {
+            if (path.length() > 1) {
+                path.append('/');
+            }
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+}
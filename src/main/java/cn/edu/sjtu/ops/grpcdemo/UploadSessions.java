@@ -0,0 +1,375 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumable upload sessions. Every session has a journal file in {@code journalDir} holding the
+ * number of bytes known to be durable in HDFS; it is rewritten after each hsync checkpoint and
+ * reloaded when the server restarts. Sessions idle for longer than {@code ttlMillis} are dropped
+ * together with their partial file.
+ */
+public class UploadSessions {
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessions.class);
+
+    private static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+    private final File journalDir;
+    private final long ttlMillis;
+    private final int maxRawLength;
+    private final ServerMetrics metrics;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService collector;
+
+    static class Session {
+        final String id;
+        final String fileName;
+        final String path;
+        volatile long durable;
+        /** CRC32C of the durable bytes, written together with durable */
+        volatile int crc;
+        volatile long lastActive;
+        boolean writing = false;
+
+        Session(String id, String fileName, String path, long durable, int crc, long lastActive) {
+            this.id = id;
+            this.fileName = fileName;
+            this.path = path;
+            this.durable = durable;
+            this.crc = crc;
+            this.lastActive = lastActive;
+        }
+
+        synchronized boolean claim() {
+            if (writing) {
+                return false;
+            }
+            writing = true;
+            lastActive = System.currentTimeMillis();
+            return true;
+        }
+
+        synchronized void unclaim() {
+            writing = false;
+            lastActive = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param maxRawLength largest chunk inflated, see {@link ChunkVerifier}
+     */
+    public UploadSessions(File journalDir, long ttlMillis, int maxRawLength, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.maxRawLength = maxRawLength;
+        this.journalDir = journalDir;
+        this.ttlMillis = ttlMillis;
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            logger.error("can not create session journal " + journalDir);
+        }
+        recover();
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-session-collector");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(ttlMillis / 4, TimeUnit.MINUTES.toMillis(1)));
+        collector.scheduleWithFixedDelay(this::collect, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public UploadSession start(UploadRequest request) throws IOException {
+        String id = UUID.randomUUID().toString();
+        String path = "/" + Thread.currentThread().getName() + "/" + id;
+        Session session = new Session(id, request.getFileName(), path, 0, 0, System.currentTimeMillis());
+        persist(session);
+        sessions.put(id, session);
+        logger.info("session " + id + " for " + request.getFileName() + " -> " + path);
+        return UploadSession.newBuilder().setSessionId(id).build();
+    }
+
+    /**
+     * @return the durable offset, or -1 for an unknown session
+     */
+    public long offset(String sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? -1 : session.durable;
+    }
+
+    public StreamObserver<Chunk> newObserver(final StreamObserver<UploadStatus> responseObserver) {
+        return new StreamObserver<Chunk>() {
+            Session session;
+            long written;
+            long checkpointed;
+            long createdAt = 0;
+            FSDataOutputStream output;
+            Hdfs hdfs = null;
+            ChunkVerifier verifier;
+            boolean rejected = false;
+
+            public void onNext(Chunk chunk) {
+                if (rejected) {
+                    return;
+                }
+                try {
+                    if (session == null && !start(chunk)) {
+                        return;
+                    }
+                    if (chunk.hasDigest()) {
+                        if (!verifier.verify(chunk.getDigest())) {
+                            discard();
+                        }
+                        return;
+                    }
+                    ByteString content = verifier.verify(chunk);
+                    if (content == null) {
+                        corrupted();
+                        return;
+                    }
+                    content.writeTo(output);
+                    written += content.size();
+                    if (createdAt != 0) {
+                        metrics.firstByte.recordSince(createdAt);
+                        createdAt = 0;
+                    }
+                    if (written - checkpointed >= CHECKPOINT_BYTES) {
+                        checkpoint();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private boolean start(Chunk chunk) throws IOException {
+                Session s = sessions.get(chunk.getSessionId());
+                if (s == null) {
+                    return reject(Status.NOT_FOUND, "unknown session " + chunk.getSessionId());
+                }
+                if (!s.claim()) {
+                    return reject(Status.ABORTED, "session " + s.id + " is being written by another stream");
+                }
+                if (chunk.getOffset() != s.durable) {
+                    s.unclaim();
+                    return reject(Status.FAILED_PRECONDITION,
+                            String.format("session %s must resume at offset %d, not %d", s.id, s.durable, chunk.getOffset()));
+                }
+                session = s;
+                written = checkpointed = s.durable;
+                verifier = new ChunkVerifier(s.durable, s.crc, maxRawLength);
+                hdfs = Hdfs.getInstance();
+                if (s.durable == 0) {
+                    hdfs.mkdir(s.path.substring(0, s.path.lastIndexOf('/')));
+                    createdAt = System.nanoTime();
+                    output = hdfs.create(s.path, true);
+                } else {
+                    output = hdfs.resume(s.path, s.durable);
+                    logger.info("session " + s.id + " resumed at " + s.durable);
+                }
+                return true;
+            }
+
+            private boolean reject(Status status, String message) {
+                rejected = true;
+                logger.warn(message);
+                responseObserver.onError(status.withDescription(message).asRuntimeException());
+                return false;
+            }
+
+            /**
+             * Keep everything before the bad chunk; the client resumes at the offset in the status.
+             */
+            private void corrupted() throws IOException {
+                rejected = true;
+                UploadStatus status = verifier.mismatchStatus();
+                logger.warn("session " + session.id + ": " + status.getMessage());
+                checkpoint();
+                close();
+                session.unclaim();
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            /**
+             * Every chunk matched but the stream as a whole did not, so no offset can be trusted.
+             */
+            private void discard() throws IOException {
+                rejected = true;
+                UploadStatus status = verifier.mismatchStatus();
+                logger.warn("session " + session.id + " dropped: " + status.getMessage());
+                close();
+                hdfs.purge(session.path);
+                finish(session);
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            private void checkpoint() throws IOException {
+                output.hsync();
+                checkpointed = written;
+                session.crc = verifier.fileCrc();
+                session.durable = written;
+                session.lastActive = System.currentTimeMillis();
+                persist(session);
+            }
+
+            public void onError(Throwable throwable) {
+                logger.info("session upload error: " + throwable);
+                if (session != null && !rejected) {
+                    // keep whatever arrived, the client resumes from here
+                    try {
+                        if (output != null) {
+                            checkpoint();
+                        }
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    close();
+                    session.unclaim();
+                }
+                release();
+            }
+
+            public void onCompleted() {
+                if (rejected) {
+                    release();
+                    return;
+                }
+                if (session == null) {
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("empty stream").asRuntimeException());
+                    return;
+                }
+                UploadStatus status;
+                if (close()) {
+                    session.durable = written;
+                    ChunkVerifier.store(hdfs, session.path, verifier.fileCrc());
+                    finish(session);
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.Ok).setMessage(session.path).build();
+                } else {
+                    session.unclaim();
+                    status = UploadStatus.newBuilder().setCode(UploadStatusCode.Failed)
+                            .setMessage("close failed, resume at " + session.durable).build();
+                }
+                release();
+                responseObserver.onNext(status);
+                responseObserver.onCompleted();
+            }
+
+            private boolean close() {
+                if (output == null) {
+                    return false;
+                }
+                try {
+                    long start = System.nanoTime();
+                    output.close();
+                    metrics.closeAck.recordSince(start);
+                    return true;
+                } catch (IOException e) {
+                    logger.error(String.valueOf(e));
+                    return false;
+                } finally {
+                    output = null;
+                }
+            }
+
+            private void release() {
+                if (hdfs != null) {
+                    try {
+                        hdfs.close();
+                    } catch (IOException e) {
+                        logger.error(String.valueOf(e));
+                    }
+                    hdfs = null;
+                }
+            }
+        };
+    }
+
+    private void finish(Session session) {
+        sessions.remove(session.id);
+        journalFile(session.id).delete();
+        logger.info("session " + session.id + " completed, " + session.durable + " bytes");
+    }
+
+    /**
+     * Drop sessions nobody wrote to within the ttl, including the partial HDFS file.
+     */
+    private void collect() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            synchronized (session) {
+                if (session.writing || now - session.lastActive < ttlMillis) {
+                    continue;
+                }
+                it.remove();
+            }
+            logger.info("session " + session.id + " abandoned at " + session.durable + " bytes");
+            try (Hdfs hdfs = Hdfs.getInstance()) {
+                hdfs.purge(session.path);
+            } catch (IOException e) {
+                logger.error("failed to remove " + session.path + ": " + e);
+            }
+            journalFile(session.id).delete();
+        }
+    }
+
+    private File journalFile(String id) {
+        return new File(journalDir, id + ".session");
+    }
+
+    /**
+     * Write the journal entry to a temp file, fsync it and move it over the old one.
+     */
+    private void persist(Session session) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("fileName", session.fileName);
+        props.setProperty("path", session.path);
+        props.setProperty("offset", String.valueOf(session.durable));
+        props.setProperty("crc32c", Crc32c.hex(session.crc));
+        props.setProperty("lastActive", String.valueOf(session.lastActive));
+        File tmp = new File(journalDir, session.id + ".session.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            props.store(fos, null);
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), journalFile(session.id).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void recover() {
+        File[] files = journalDir.listFiles((dir, name) -> name.endsWith(".session"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String id = file.getName().substring(0, file.getName().length() - ".session".length());
+            Properties props = new Properties();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                props.load(fis);
+                sessions.put(id, new Session(id, props.getProperty("fileName", ""), props.getProperty("path"),
+                        Long.parseLong(props.getProperty("offset", "0")),
+                        (int) Long.parseLong(props.getProperty("crc32c", "0"), 16),
+                        Long.parseLong(props.getProperty("lastActive", "0"))));
+            } catch (IOException | RuntimeException e) {
+                logger.error("skip broken session journal " + file + ": " + e);
+            }
+        }
+        logger.info("recovered " + sessions.size() + " upload sessions");
+    }
+}
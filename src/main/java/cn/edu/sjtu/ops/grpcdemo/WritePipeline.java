@@ -0,0 +1,361 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Moves blocking HDFS writes off the gRPC threads.
+ *
+ * Upload observers are wrapped so that their callbacks run, in order, on a fixed pool of
+ * writer threads. Inbound flow control is manual: a stream only gets {@code request(1)} while it
+ * has fewer than {@code window} chunks in flight and a credit is left in the global budget of
+ * {@code maxBufferedChunks}, so buffered chunks stay bounded however many clients connect and a
+ * slow HDFS pipeline pushes back on the senders through HTTP/2 flow control.
+ *
+ * Credits are also where tenants are kept apart: a stream of a tenant over its rate is not granted
+ * any, and streams left without because the budget ran out get them back in the fair order of the
+ * {@link TenantScheduler}, not in the order they ran out.
+ */
+public class WritePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(WritePipeline.class);
+
+    /** Name of the writer threads but for their number; uploads name their files after them. */
+    static final String WRITER_THREAD = "hdfs-writer-";
+
+    /** Chunks one writer task handles before yielding the thread to other streams. */
+    private static final int BATCH = 16;
+
+    private final ExecutorService writers;
+    private final ServerMetrics metrics;
+    private final int window;
+    private final Semaphore credits;
+    private final TenantScheduler tenants;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger queuedChunks = new AtomicInteger();
+
+    public WritePipeline(int writerThreads, int window, int maxBufferedChunks, TenantScheduler tenants,
+                         ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.tenants = tenants;
+        final AtomicInteger n = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, r -> {
+            Thread t = new Thread(r, WRITER_THREAD + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.window = window;
+        this.credits = new Semaphore(maxBufferedChunks);
+    }
+
+    /**
+     * Must be called from the service method, before gRPC starts delivering messages.
+     *
+     * @param delegates makes the observer the chunks go to, from the one it has to answer on. A
+     *                  delegate may close the call before the client is done; the stream ends then
+     *                  and gives back its credits and its tenant's slot, gRPC calls nothing after.
+     */
+    public StreamObserver<Chunk> wrap(StreamObserver<UploadStatus> responseObserver,
+                                      Function<StreamObserver<UploadStatus>, StreamObserver<Chunk>> delegates) {
+        ServerCallStreamObserver<UploadStatus> call = (ServerCallStreamObserver<UploadStatus>) responseObserver;
+        call.disableAutoInboundFlowControl();
+        TenantScheduler.Tenant tenant = tenants.admit();
+        if (tenant == null) {
+            metrics.error("upload.tenant_limit");
+            call.onError(tenants.refusal());
+            // the call is closed and no message was requested, nothing will arrive
+            return new StreamObserver<Chunk>() {
+                public void onNext(Chunk chunk) {
+                }
+
+                public void onError(Throwable throwable) {
+                }
+
+                public void onCompleted() {
+                }
+            };
+        }
+        PipelinedStream stream = new PipelinedStream(call, delegates, tenant);
+        activeStreams.incrementAndGet();
+        grant(stream);
+        return stream;
+    }
+
+    public int activeStreams() {
+        return activeStreams.get();
+    }
+
+    public int queuedChunks() {
+        return queuedChunks.get();
+    }
+
+    public int availableCredits() {
+        return credits.availablePermits();
+    }
+
+    public void shutdown() {
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(30, TimeUnit.SECONDS)) {
+                writers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand out inbound credits to a stream up to its window, as far as its tenant's rate and the
+     * global budget allow.
+     */
+    private void grant(PipelinedStream stream) {
+        boolean starving = false;
+        synchronized (stream) {
+            while (!stream.done && stream.outstanding < window) {
+                if (!stream.tenant.mayReceive()) {
+                    if (stream.park()) {
+                        tenants.throttle(stream.tenant, stream);
+                    }
+                    return;
+                }
+                if (!credits.tryAcquire()) {
+                    if (stream.park()) {
+                        tenants.starve(stream.tenant, stream);
+                        starving = true;
+                    }
+                    break;
+                }
+                stream.outstanding++;
+                stream.call.request(1);
+            }
+        }
+        if (starving) {
+            // credits returned while the stream parked would find nobody to go to; outside the lock,
+            // another stream may be granted here
+            returnCredits(0);
+        }
+    }
+
+    private void returnCredits(int n) {
+        if (n > 0) {
+            credits.release(n);
+        }
+        TenantScheduler.Waiter next;
+        while (credits.availablePermits() > 0 && (next = tenants.nextStarved()) != null) {
+            next.resume();
+        }
+    }
+
+    private static final Object COMPLETED = new Object();
+
+    private static final class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final class PipelinedStream implements StreamObserver<Chunk>, Runnable, TenantScheduler.Waiter {
+        final ServerCallStreamObserver<UploadStatus> call;
+        final StreamObserver<Chunk> delegate;
+        final TenantScheduler.Tenant tenant;
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean parked = new AtomicBoolean();
+        /** When the stream last parked, for the tenant's queueing delay. */
+        volatile long parkedAt;
+        /** Chunks requested from the client and not written yet, guarded by this. */
+        int outstanding = 0;
+        volatile boolean done = false;
+
+        PipelinedStream(ServerCallStreamObserver<UploadStatus> call,
+                        Function<StreamObserver<UploadStatus>, StreamObserver<Chunk>> delegates,
+                        TenantScheduler.Tenant tenant) {
+            this.call = call;
+            this.tenant = tenant;
+            this.delegate = delegates.apply(new Responses());
+        }
+
+        /**
+         * @return false if the stream waits in a queue already
+         */
+        boolean park() {
+            if (!parked.compareAndSet(false, true)) {
+                return false;
+            }
+            parkedAt = System.nanoTime();
+            return true;
+        }
+
+        public void resume() {
+            parked.set(false);
+            tenant.queueDelay.recordSince(parkedAt);
+            grant(this);
+        }
+
+        public void onNext(Chunk chunk) {
+            queuedChunks.incrementAndGet();
+            tenant.charge(chunk.getContent().size());
+            enqueue(chunk);
+        }
+
+        public void onError(Throwable throwable) {
+            enqueue(new Failure(throwable));
+        }
+
+        public void onCompleted() {
+            enqueue(COMPLETED);
+        }
+
+        private void enqueue(Object item) {
+            queue.add(item);
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        /**
+         * Runs on a writer thread; the scheduled flag keeps at most one task per stream alive.
+         */
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Object item = queue.poll();
+                if (item == null) {
+                    scheduled.set(false);
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                process(item);
+            }
+            writers.execute(this);
+        }
+
+        private void process(Object item) {
+            if (item instanceof Chunk) {
+                queuedChunks.decrementAndGet();
+            }
+            if (done) {
+                // left over after a failure
+                return;
+            }
+            if (item instanceof Chunk) {
+                long start = System.nanoTime();
+                try {
+                    delegate.onNext((Chunk) item);
+                    metrics.chunkWrite.recordSince(start);
+                } catch (Throwable e) {
+                    fail(e, true);
+                    return;
+                }
+                synchronized (this) {
+                    if (done) {
+                        // the delegate closed the call, terminate() returned the chunk's credit
+                        return;
+                    }
+                    outstanding--;
+                }
+                returnCredits(1);
+                grant(this);
+            } else {
+                boolean completed = item == COMPLETED;
+                try {
+                    if (completed) {
+                        delegate.onCompleted();
+                    } else {
+                        delegate.onError(((Failure) item).cause);
+                    }
+                } catch (Throwable e) {
+                    // the delegate may not have answered nor released what it holds; it has seen an
+                    // error already if it was onError that failed
+                    fail(e, completed);
+                    return;
+                }
+                terminate();
+            }
+        }
+
+        /**
+         * End the stream after the delegate threw: whatever it did, the call is closed and the
+         * stream's credits and tenant slot go back.
+         *
+         * @param notify tell the delegate, so it can release what it holds
+         */
+        private void fail(Throwable e, boolean notify) {
+            try {
+                logger.error("upload failed: " + e);
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                metrics.error("write." + cause.getClass().getSimpleName());
+                try {
+                    call.onError(Status.fromThrowable(e).asRuntimeException());
+                } catch (RuntimeException closed) {
+                    // the delegate already closed the call
+                }
+                if (notify) {
+                    try {
+                        delegate.onError(e);
+                    } catch (Throwable t) {
+                        logger.error("upload cleanup failed: " + t);
+                    }
+                }
+            } finally {
+                terminate();
+            }
+        }
+
+        private void terminate() {
+            int unused;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                unused = outstanding;
+                outstanding = 0;
+            }
+            activeStreams.decrementAndGet();
+            tenant.release();
+            // credits granted to the stream that will never be used
+            returnCredits(unused);
+        }
+
+        /**
+         * What the delegate answers on: once it closes the call, the stream is over.
+         */
+        private final class Responses implements StreamObserver<UploadStatus> {
+            public void onNext(UploadStatus status) {
+                call.onNext(status);
+            }
+
+            public void onError(Throwable throwable) {
+                try {
+                    call.onError(throwable);
+                } finally {
+                    terminate();
+                }
+            }
+
+            public void onCompleted() {
+                try {
+                    call.onCompleted();
+                } finally {
+                    terminate();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] hash(int i) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(Integer.toString(i).getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void addsEachHashOnce() throws Exception {
+        try (ChunkIndex index = new ChunkIndex(new File(folder.getRoot(), "chunks.idx"))) {
+            assertFalse(index.contains(hash(1)));
+            assertTrue(index.add(hash(1)));
+            assertFalse(index.add(hash(1)));
+            assertTrue(index.contains(hash(1)));
+            assertFalse(index.contains(hash(2)));
+            assertEquals(1, index.size());
+        }
+    }
+
+    @Test
+    public void hashesWithTheSameSlotAreProbed() throws Exception {
+        byte[] a = hash(1);
+        byte[] b = a.clone();
+        b[31] ^= 1;
+        byte[] c = a.clone();
+        c[8] ^= 1;
+        try (ChunkIndex index = new ChunkIndex(new File(folder.getRoot(), "chunks.idx"))) {
+            assertTrue(index.add(a));
+            assertFalse(index.contains(b));
+            assertTrue(index.add(b));
+            assertTrue(index.add(c));
+            assertTrue(index.contains(a));
+            assertTrue(index.contains(b));
+            assertTrue(index.contains(c));
+            assertEquals(3, index.size());
+        }
+    }
+
+    /**
+     * Hashes probed past a removed one stay reachable, also across the end of the table.
+     */
+    @Test
+    public void removingKeepsCollidingHashesReachable() throws Exception {
+        byte[] last = hash(1);
+        // the last slot of the smallest table
+        for (int i = 0; i < 8; i++) {
+            last[i] = (byte) 0xff;
+        }
+        byte[][] hashes = new byte[4][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = last.clone();
+            hashes[i][31] = (byte) i;
+        }
+        byte[] wrapped = hash(2);
+        Arrays.fill(wrapped, 0, 8, (byte) 0);
+        try (ChunkIndex index = new ChunkIndex(new File(folder.getRoot(), "chunks.idx"))) {
+            for (byte[] hash : hashes) {
+                assertTrue(index.add(hash));
+            }
+            // its own slot 0 is taken by a hash that wrapped around
+            assertTrue(index.add(wrapped));
+            assertTrue(index.remove(hashes[0]));
+            assertFalse(index.remove(hashes[0]));
+            assertFalse(index.contains(hashes[0]));
+            for (int i = 1; i < hashes.length; i++) {
+                assertTrue("hash " + i, index.contains(hashes[i]));
+            }
+            assertTrue(index.contains(wrapped));
+            assertTrue(index.remove(hashes[2]));
+            assertTrue(index.contains(hashes[1]));
+            assertTrue(index.contains(hashes[3]));
+            assertTrue(index.contains(wrapped));
+            assertEquals(3, index.size());
+        }
+    }
+
+    @Test
+    public void growsAndKeepsEverythingAcrossRestarts() throws Exception {
+        File file = new File(folder.getRoot(), "dedup/chunks.idx");
+        // past the load limit of the smallest table, twice
+        int n = 100000;
+        try (ChunkIndex index = new ChunkIndex(file)) {
+            long initial = file.length();
+            for (int i = 0; i < n; i++) {
+                assertTrue(index.add(hash(i)));
+            }
+            assertEquals(n, index.size());
+            assertEquals(4 * (initial - 32) + 32, file.length());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        }
+        try (ChunkIndex index = new ChunkIndex(file)) {
+            assertEquals(n, index.size());
+            for (int i = 0; i < n; i++) {
+                assertTrue("hash " + i, index.contains(hash(i)));
+            }
+            assertFalse(index.contains(hash(n)));
+        }
+    }
+
+    @Test
+    public void brokenFileStartsEmpty() throws Exception {
+        File file = new File(folder.getRoot(), "chunks.idx");
+        byte[] garbage = new byte[4096];
+        Arrays.fill(garbage, (byte) 7);
+        Files.write(file.toPath(), garbage);
+        try (ChunkIndex index = new ChunkIndex(file)) {
+            assertEquals(0, index.size());
+            assertFalse(index.contains(hash(1)));
+            assertTrue(index.add(hash(1)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherHashLengths() throws Exception {
+        try (ChunkIndex index = new ChunkIndex(new File(folder.getRoot(), "chunks.idx"))) {
+            index.add(new byte[20]);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.junit.Test;
+
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkSizeControllerTest {
+    private static final int KB = 1024;
+    private static final int MIN = 16 * KB;
+    private static final int MAX = 4 * KB * KB;
+    private static final long MAX_STALL_NANOS = 20000000L;
+
+    /**
+     * A link that is best at 256 KiB: the controller climbs there, steps back from 512 KiB and
+     * comes back after every probe.
+     */
+    @Test
+    public void settlesAtTheFastestSize() {
+        ChunkSizeController controller = new ChunkSizeController(MIN, MAX, MAX_STALL_NANOS);
+        // MB/s as many as KiB up to 128 KiB, 200 MB/s at 256 KiB and 100 MB/s above
+        IntToDoubleFunction link = size -> 1e6 * (size <= 128 * KB ? size / KB : size == 256 * KB ? 200 : 100);
+        run(controller, link, size -> 0, 100);
+        assertEquals(256 * KB, controller.chunkSize());
+
+        int atBest = 0;
+        for (int i = 0; i < 2000; i++) {
+            run(controller, link, size -> 0, 1);
+            if (controller.chunkSize() == 256 * KB) {
+                atBest++;
+            }
+            assertTrue(controller.chunkSize() >= 128 * KB && controller.chunkSize() <= 512 * KB);
+        }
+        assertTrue("at 256 KiB in " + atBest + " of 2000 rounds", atBest > 1800);
+    }
+
+    @Test
+    public void climbsNoFurtherThanTheMaximum() {
+        ChunkSizeController controller = new ChunkSizeController(MIN, MAX, MAX_STALL_NANOS);
+        for (int i = 0; i < 1000; i++) {
+            run(controller, size -> size, size -> 0, 1);
+            assertTrue(controller.chunkSize() <= MAX);
+        }
+        // probing below the maximum now and then
+        assertTrue(controller.chunkSize() >= MAX / 2);
+    }
+
+    /**
+     * However fast a size is, it is halved when the transport stalls on it for too long.
+     */
+    @Test
+    public void stallsHalveTheSize() {
+        ChunkSizeController controller = new ChunkSizeController(MIN, MAX, MAX_STALL_NANOS);
+        IntToLongFunction stalls = size -> size >= 1024 * KB ? 2 * MAX_STALL_NANOS : 0;
+        int largest = 0;
+        for (int i = 0; i < 2000; i++) {
+            run(controller, s -> s, stalls, 1);
+            largest = Math.max(largest, controller.chunkSize());
+        }
+        // 1 MiB is tried, found to stall and never doubled
+        assertEquals(1024 * KB, largest);
+        assertTrue(controller.chunkSize() <= 1024 * KB);
+    }
+
+    @Test
+    public void shortRoundsAddUpToAWindow() {
+        ChunkSizeController controller = new ChunkSizeController(MIN, MAX, MAX_STALL_NANOS);
+        // plenty of bytes, but not for long enough to tell
+        for (int i = 0; i < 100; i++) {
+            controller.record(MIN, 100000, 0);
+        }
+        assertEquals(MIN, controller.chunkSize());
+        controller.record(MIN, 50000000L, 0);
+        assertEquals(2 * MIN, controller.chunkSize());
+    }
+
+    @Test
+    public void fixedSizeNeverMoves() {
+        ChunkSizeController controller = ChunkSizeController.fixed(64 * KB);
+        run(controller, size -> size, size -> 0, 500);
+        run(controller, size -> 1, size -> 2 * MAX_STALL_NANOS, 500);
+        assertEquals(64 * KB, controller.chunkSize());
+    }
+
+    /**
+     * Send {@code rounds} rounds of eight chunks over a link of {@code throughput} bytes per
+     * second, stalling {@code stall} nanoseconds per round, both by the chunk size.
+     */
+    private static void run(ChunkSizeController controller, IntToDoubleFunction throughput, IntToLongFunction stall,
+                            int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            int size = controller.chunkSize();
+            long bytes = 8L * size;
+            // a window is 7 rounds at least
+            long nanos = Math.max(8000000L, (long) (bytes * 1e9 / throughput.applyAsDouble(size)));
+            controller.record(bytes, nanos, stall.applyAsLong(size));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+public class ChunkVerifierTest {
+    private static final int MAX_RAW_LENGTH = 64 * 1024;
+
+    @Test
+    public void compressedChunksInflate() {
+        byte[] raw = text(MAX_RAW_LENGTH);
+        ChunkEncoder encoder = new ChunkEncoder(Codec.Lz4, Runnable::run);
+        Chunk chunk = encoder.encode(ByteBuffer.wrap(raw)).fill(Chunk.newBuilder()).build();
+        assertEquals(Codec.Lz4, chunk.getCodec());
+
+        ChunkVerifier verifier = new ChunkVerifier(MAX_RAW_LENGTH);
+        assertArrayEquals(raw, verifier.verify(chunk).toByteArray());
+        assertEquals(raw.length, verifier.offset());
+        assertEquals(new Crc32c().of(ByteString.copyFrom(raw)), verifier.fileCrc());
+    }
+
+    @Test
+    public void incompressibleChunksGoAsTheyAre() {
+        byte[] raw = new byte[4096];
+        new java.util.Random(1).nextBytes(raw);
+        ChunkEncoder encoder = new ChunkEncoder(Codec.Lz4, Runnable::run);
+        Chunk chunk = encoder.encode(ByteBuffer.wrap(raw)).fill(Chunk.newBuilder()).build();
+        assertEquals(Codec.None, chunk.getCodec());
+        assertEquals(encoder.rawBytes(), encoder.wireBytes());
+        assertArrayEquals(raw, new ChunkVerifier(MAX_RAW_LENGTH).verify(chunk).toByteArray());
+    }
+
+    /**
+     * The raw length is the client's word; inflating more than a message is refused before any
+     * buffer is grown for it.
+     */
+    @Test
+    public void rawLengthOverTheLimitIsRefused() {
+        byte[] raw = text(2 * MAX_RAW_LENGTH);
+        Chunk chunk = new ChunkEncoder(Codec.Lz4, Runnable::run).encode(ByteBuffer.wrap(raw))
+                .fill(Chunk.newBuilder()).build();
+
+        ChunkVerifier verifier = new ChunkVerifier(MAX_RAW_LENGTH);
+        assertNull(verifier.verify(chunk));
+        assertEquals(UploadStatusCode.ChecksumMismatch, verifier.mismatchStatus().getCode());
+        assertEquals(0, verifier.offset());
+    }
+
+    @Test
+    public void corruptedChunksAreRefused() {
+        Chunk chunk = Chunk.newBuilder().setContent(ByteString.copyFromUtf8("content"))
+                .setHasCrc32C(true).setCrc32C(1).build();
+        ChunkVerifier verifier = new ChunkVerifier(MAX_RAW_LENGTH);
+        assertNull(verifier.verify(chunk));
+        assertEquals(UploadStatusCode.ChecksumMismatch, verifier.mismatchStatus().getCode());
+    }
+
+    @Test
+    public void unavailableCodecIsUnimplemented() {
+        assumeFalse(ChunkCodec.available(Codec.Zstd));
+        Chunk chunk = Chunk.newBuilder().setContent(ByteString.copyFromUtf8("not really zstd"))
+                .setCodec(Codec.Zstd).setRawLength(100).build();
+        try {
+            new ChunkVerifier(MAX_RAW_LENGTH).verify(chunk);
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.UNIMPLEMENTED, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void framesRoundTrip() throws Exception {
+        byte[] first = text(10000);
+        byte[] second = "short".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(framed);
+        ByteString compressed = ChunkCodec.compress(Codec.Lz4, ByteBuffer.wrap(first), new byte[1][]);
+        ChunkCodec.writeFrame(out, Codec.Lz4, first.length, compressed);
+        ChunkCodec.writeFrame(out, Codec.None, second.length, ByteString.copyFrom(second));
+        out.flush();
+        assertNotEquals(first.length + second.length, framed.size());
+
+        ByteArrayOutputStream unframed = new ByteArrayOutputStream();
+        ChunkCodec.unframe(new ByteArrayInputStream(framed.toByteArray()), unframed);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), unframed.toByteArray());
+    }
+
+    @Test
+    public void entropyOfUniformBytes() {
+        assertEquals(0, ChunkEncoder.entropy(ByteBuffer.wrap(new byte[4096])), 0);
+        byte[] all = new byte[256 * 16];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        assertEquals(8, ChunkEncoder.entropy(ByteBuffer.wrap(all)), 0.01);
+    }
+
+    private static byte[] text(int length) {
+        byte[] bytes = new byte[length];
+        byte[] line = "the quick brown fox jumps over the lazy dog\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = line[i % line.length];
+        }
+        return bytes;
+    }
+}
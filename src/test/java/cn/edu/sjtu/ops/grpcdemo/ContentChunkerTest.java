@@ -0,0 +1,101 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentChunkerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(7);
+
+    private byte[] bytes(int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private List<long[]> split(ContentChunker chunker, byte[] content) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return chunker.split(channel);
+        }
+    }
+
+    private static Set<ByteBuffer> contents(byte[] content, List<long[]> chunks) {
+        Set<ByteBuffer> set = new HashSet<>();
+        for (long[] chunk : chunks) {
+            set.add(ByteBuffer.wrap(content, (int) chunk[0], (int) chunk[1]));
+        }
+        return set;
+    }
+
+    @Test
+    public void chunksCoverTheFileWithinTheSizeLimits() throws Exception {
+        byte[] content = bytes(24 * 1024 * 1024 + 12345);
+        List<long[]> chunks = split(new ContentChunker(ContentChunker.MAX_SIZE), content);
+        long next = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            long[] chunk = chunks.get(i);
+            assertEquals(next, chunk[0]);
+            assertTrue(chunk[1] <= ContentChunker.MAX_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk[1] > ContentChunker.MIN_SIZE);
+            }
+            next += chunk[1];
+        }
+        assertEquals(content.length, next);
+        // normalized chunking stays near the average on random data
+        double mean = (double) content.length / chunks.size();
+        assertTrue("mean " + mean, mean > ContentChunker.AVG_SIZE / 2 && mean < ContentChunker.AVG_SIZE * 2);
+    }
+
+    @Test
+    public void smallerLimitCutsSmallerChunks() throws Exception {
+        int limit = ContentChunker.MIN_SIZE + 1000;
+        for (long[] chunk : split(new ContentChunker(limit), bytes(8 * 1024 * 1024))) {
+            assertTrue(chunk[1] <= limit);
+        }
+    }
+
+    @Test
+    public void smallAndEmptyFiles() throws Exception {
+        assertEquals(0, split(new ContentChunker(ContentChunker.MAX_SIZE), new byte[0]).size());
+        List<long[]> one = split(new ContentChunker(ContentChunker.MAX_SIZE), bytes(1000));
+        assertEquals(1, one.size());
+        assertEquals(1000, one.get(0)[1]);
+    }
+
+    @Test
+    public void anInsertOnlyMovesTheBoundariesAroundIt() throws Exception {
+        ContentChunker chunker = new ContentChunker(ContentChunker.MAX_SIZE);
+        byte[] original = bytes(32 * 1024 * 1024);
+        byte[] edited = new byte[original.length + 100];
+        System.arraycopy(original, 0, edited, 0, 5000000);
+        System.arraycopy(bytes(100), 0, edited, 5000000, 100);
+        System.arraycopy(original, 5000000, edited, 5000100, original.length - 5000000);
+
+        List<long[]> before = split(chunker, original);
+        List<long[]> after = split(chunker, edited);
+        Set<ByteBuffer> shared = contents(original, before);
+        shared.retainAll(contents(edited, after));
+        // only the chunk with the insert, and maybe its neighbour, differ
+        assertTrue(shared.size() + " of " + before.size() + " chunks kept", shared.size() >= before.size() - 2);
+        assertEquals("the same bytes cut the same way", before.size(), split(chunker, original).size());
+    }
+}
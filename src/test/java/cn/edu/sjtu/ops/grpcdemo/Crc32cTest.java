@@ -0,0 +1,86 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+    private final Random random = new Random(42);
+
+    private static int reference(byte[] bytes, int from, int length) {
+        PureJavaCrc32C crc = new PureJavaCrc32C();
+        crc.update(bytes, from, length);
+        return (int) crc.getValue();
+    }
+
+    private byte[] bytes(int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void knownValue() {
+        // check value of CRC-32C, RFC 3720
+        assertEquals(0xe3069283, new Crc32c().of(ByteString.copyFromUtf8("123456789")));
+        assertEquals(0, new Crc32c().of(ByteString.EMPTY));
+    }
+
+    @Test
+    public void ofMatchesReferenceForAllKindsOfBuffers() {
+        Crc32c crc = new Crc32c();
+        byte[] bytes = bytes(100000);
+        int expected = reference(bytes, 0, bytes.length);
+        assertEquals(expected, crc.of(ByteString.copyFrom(bytes)));
+        // a rope, written piece by piece
+        ByteString rope = ByteString.copyFrom(bytes, 0, 3).concat(ByteString.copyFrom(bytes, 3, 50000))
+                .concat(ByteString.copyFrom(bytes, 50003, bytes.length - 50003));
+        assertEquals(expected, crc.of(rope));
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        assertEquals(expected, crc.of(direct));
+        assertEquals("the buffer is not consumed", bytes.length, direct.remaining());
+        assertEquals(expected, crc.of(ByteString.copyFrom(direct)));
+    }
+
+    @Test
+    public void combineJoinsConsecutiveRanges() {
+        byte[] bytes = bytes(1 << 20);
+        int whole = reference(bytes, 0, bytes.length);
+        for (int split : new int[]{0, 1, 7, 4096, 65537, bytes.length - 1, bytes.length}) {
+            int a = reference(bytes, 0, split);
+            int b = reference(bytes, split, bytes.length - split);
+            assertEquals("split at " + split, whole, Crc32c.combine(a, b, bytes.length - split));
+        }
+    }
+
+    @Test
+    public void appendAgreesWithCombineWhenLengthsChange() {
+        Crc32c crc = new Crc32c();
+        byte[] bytes = bytes(300000);
+        int stream = 0;
+        int offset = 0;
+        // repeated lengths reuse the kept operator, the others replace it
+        int[] lengths = {1000, 1000, 1000, 17, 17, 65536, 1000, 0, 100000, 130430};
+        for (int length : lengths) {
+            int chunk = reference(bytes, offset, length);
+            int appended = crc.append(stream, chunk, length);
+            assertEquals(Crc32c.combine(stream, chunk, length), appended);
+            stream = appended;
+            offset += length;
+            assertEquals("after " + offset + " bytes", reference(bytes, 0, offset), stream);
+        }
+        assertEquals(bytes.length, offset);
+    }
+
+    @Test
+    public void hexIsEightDigits() {
+        assertEquals("0000000f", Crc32c.hex(15));
+        assertEquals("ffffffff", Crc32c.hex(-1));
+    }
+}
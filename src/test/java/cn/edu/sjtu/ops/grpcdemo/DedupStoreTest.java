@@ -0,0 +1,159 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DedupStoreTest {
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int CHUNK = 1000;
+    // new chunks in every run, the server's chunk index outlives the file system of a run
+    private static final Random random = new Random();
+
+    @Test
+    public void uploadsBecomeFiles() throws Exception {
+        byte[] content = content(3 * CHUNK + 10);
+        ChunkManifest manifest = manifest(content);
+        ChunkPresence presence = server.blockingStub().probeChunks(manifest);
+        assertEquals(4, presence.getMissingCount());
+        UploadStatus status = upload(server.stub()::uploadDeduplicated, presence, content, crc(content));
+        assertEquals(UploadStatusCode.Ok, status.getCode());
+        assertFile(status.getMessage(), content);
+
+        // the second time, nothing but the digest
+        presence = server.blockingStub().probeChunks(manifest);
+        assertEquals(0, presence.getMissingCount());
+        status = upload(server.stub()::uploadDeduplicated, presence, content, crc(content));
+        assertEquals(UploadStatusCode.Ok, status.getCode());
+        assertFile(status.getMessage(), content);
+    }
+
+    /**
+     * The digest is checked against what the server assembled, not against the manifest.
+     */
+    @Test
+    public void digestIsOfTheAssembledFile() throws Exception {
+        byte[] content = content(2 * CHUNK);
+        ChunkManifest manifest = manifest(content);
+        upload(server.stub()::uploadDeduplicated, server.blockingStub().probeChunks(manifest), content, crc(content));
+        UploadStatus status = upload(server.stub()::uploadDeduplicated, server.blockingStub().probeChunks(manifest),
+                content, crc(content) + 1);
+        assertEquals(UploadStatusCode.ChecksumMismatch, status.getCode());
+    }
+
+    @Test
+    public void damagedChunksAreAskedForAgain() throws Exception {
+        byte[] content = content(2 * CHUNK);
+        ChunkManifest manifest = manifest(content);
+        upload(server.stub()::uploadDeduplicated, server.blockingStub().probeChunks(manifest), content, crc(content));
+        File stored = server.file(DedupStore.chunkPath(manifest.getChunks(1).getSha256().toByteArray()));
+        try (RandomAccessFile file = new RandomAccessFile(stored, "rw")) {
+            file.seek(10);
+            file.write(file.read() ^ 1);
+        }
+
+        UploadStatus status = upload(server.stub()::uploadDeduplicated, server.blockingStub().probeChunks(manifest),
+                content, crc(content));
+        assertEquals(UploadStatusCode.Failed, status.getCode());
+        ChunkPresence presence = server.blockingStub().probeChunks(manifest);
+        assertEquals(1, presence.getMissingCount());
+        assertEquals(1, presence.getMissing(0));
+        status = upload(server.stub()::uploadDeduplicated, presence, content, crc(content));
+        assertEquals(UploadStatusCode.Ok, status.getCode());
+        assertFile(status.getMessage(), content);
+    }
+
+    /**
+     * Old chunks go, unless a probed upload counts on them.
+     */
+    @Test
+    public void unusedChunksAreCollected() throws Exception {
+        long ttl = TimeUnit.HOURS.toMillis(1);
+        try (ChunkIndex index = new ChunkIndex(new File(folder.getRoot(), "chunks.idx"));
+             DedupStore store = new DedupStore(index, ttl)) {
+            byte[] kept = content(CHUNK);
+            byte[] dropped = content(CHUNK);
+            for (byte[] content : new byte[][]{kept, dropped}) {
+                UploadStatus status = upload(store::newObserver, store.probe(manifest(content)), content, crc(content));
+                assertEquals(UploadStatusCode.Ok, status.getCode());
+            }
+            byte[] keptHash = manifest(kept).getChunks(0).getSha256().toByteArray();
+            byte[] droppedHash = manifest(dropped).getChunks(0).getSha256().toByteArray();
+            // pins the chunk until the upload is over
+            ChunkPresence presence = store.probe(manifest(kept));
+            assertEquals(0, presence.getMissingCount());
+
+            store.collect(System.currentTimeMillis() + 2 * ttl);
+            assertTrue(index.contains(keptHash));
+            assertTrue(server.file(DedupStore.chunkPath(keptHash)).exists());
+            assertFalse(index.contains(droppedHash));
+            assertFalse(server.file(DedupStore.chunkPath(droppedHash)).exists());
+
+            assertEquals(UploadStatusCode.Ok, upload(store::newObserver, presence, kept, crc(kept)).getCode());
+            store.collect(System.currentTimeMillis() + 2 * ttl);
+            assertFalse(index.contains(keptHash));
+        }
+    }
+
+    private interface Rpc {
+        StreamObserver<Chunk> call(StreamObserver<UploadStatus> response);
+    }
+
+    private static UploadStatus upload(Rpc rpc, ChunkPresence presence, byte[] content, int crc) throws Exception {
+        InProcessServer.Response<UploadStatus> status = new InProcessServer.Response<>();
+        StreamObserver<Chunk> upload = rpc.call(status);
+        for (int i : presence.getMissingList()) {
+            int from = i * CHUNK;
+            upload.onNext(Chunk.newBuilder().setUploadId(presence.getUploadId()).setPartIndex(i)
+                    .setContent(ByteString.copyFrom(content, from, Math.min(CHUNK, content.length - from))).build());
+        }
+        upload.onNext(Chunk.newBuilder().setUploadId(presence.getUploadId())
+                .setDigest(StreamDigest.newBuilder().setLength(content.length).setCrc32C(crc)).build());
+        upload.onCompleted();
+        return status.get();
+    }
+
+    private static ChunkManifest manifest(byte[] content) {
+        ChunkManifest.Builder manifest = ChunkManifest.newBuilder().setFileName("f");
+        for (int from = 0; from < content.length; from += CHUNK) {
+            ByteString chunk = ByteString.copyFrom(content, from, Math.min(CHUNK, content.length - from));
+            manifest.addChunks(ChunkRef.newBuilder()
+                    .setSha256(ByteString.copyFrom(DedupStore.sha256().digest(chunk.toByteArray())))
+                    .setLength(chunk.size()).setCrc32C(new Crc32c().of(chunk)));
+        }
+        return manifest.build();
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private static int crc(byte[] content) {
+        return new Crc32c().of(ByteString.copyFrom(content));
+    }
+
+    private static void assertFile(String path, byte[] content) throws Exception {
+        assertArrayEquals(content, Files.readAllBytes(server.file(path).toPath()));
+    }
+}
@@ -0,0 +1,78 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DemoServerTest {
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    @Test
+    public void internalDirectoriesAreRefused() {
+        assertNotNull(DemoServer.refusal("/dedup/chunks/ab/abcd"));
+        assertNotNull(DemoServer.refusal("/dedup"));
+        assertNotNull(DemoServer.refusal("//dedup/x"));
+        assertNotNull(DemoServer.refusal("/hdfs-writer-3/f"));
+        assertNotNull(DemoServer.refusal("/grpc-worker-1/session"));
+        assertNotNull(DemoServer.refusal("/a/../dedup/x"));
+        assertNotNull(DemoServer.refusal("/"));
+        assertNotNull(DemoServer.refusal("relative/path"));
+        assertNull(DemoServer.refusal("/dedupe/f"));
+        assertNull(DemoServer.refusal("/data/dedup/f"));
+    }
+
+    @Test
+    public void pathsAreNormalized() {
+        assertEquals("/a/b", DemoServer.normalize("//a///b/"));
+        assertEquals("/", DemoServer.normalize("///"));
+    }
+
+    @Test
+    public void existingFilesStayWithoutOverwrite() throws Exception {
+        assertEquals(UploadStatusCode.Ok, upload("/named/kept", "first", false, false).getCode());
+        assertEquals(UploadStatusCode.Failed, upload("/named/kept", "second", false, false).getCode());
+        assertContent("/named/kept", "first");
+        assertEquals(UploadStatusCode.Ok, upload("/named/kept", "third", true, false).getCode());
+        assertContent("/named/kept", "third");
+    }
+
+    @Test
+    public void corruptedUploadLeavesTheTargetAlone() throws Exception {
+        assertEquals(UploadStatusCode.Ok, upload("/named/intact", "original", false, false).getCode());
+        assertEquals(UploadStatusCode.ChecksumMismatch, upload("/named/intact", "corrupted", true, true).getCode());
+        assertContent("/named/intact", "original");
+        // and the hidden file it was written to is gone
+        assertArrayEquals(new String[0], server.file("/named").list((dir, name) -> name.contains("uploading")));
+    }
+
+    @Test
+    public void chunkStoreIsRefused() throws Exception {
+        assertEquals(UploadStatusCode.Failed, upload(DedupStore.CHUNK_DIR + "/00/00", "x", true, false).getCode());
+    }
+
+    private static void assertContent(String path, String content) throws Exception {
+        assertEquals(content, new String(Files.readAllBytes(server.file(path).toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static UploadStatus upload(String path, String content, boolean overwrite, boolean corrupt)
+            throws Exception {
+        ByteString bytes = ByteString.copyFromUtf8(content);
+        int crc = new Crc32c().of(bytes);
+        InProcessServer.Response<UploadStatus> status = new InProcessServer.Response<>();
+        StreamObserver<Chunk> upload = server.stub().upload(status);
+        upload.onNext(Chunk.newBuilder().setPath(path).setOverwrite(overwrite).setContent(bytes)
+                .setHasCrc32C(true).setCrc32C(corrupt ? crc + 1 : crc).build());
+        upload.onCompleted();
+        return status.get();
+    }
+}
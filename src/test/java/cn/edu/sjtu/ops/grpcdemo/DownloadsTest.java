@@ -0,0 +1,107 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadsTest {
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    private static final String ARCHIVE = "/archives/log.txt";
+    private static byte[] content;
+
+    /**
+     * A compressible chunk and an incompressible one, kept compressed: two frames of different codecs.
+     */
+    @BeforeClass
+    public static void uploadArchive() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; bytes.size() < 64 * 1024; i++) {
+            bytes.write(String.format("line %d of the archive\n", i).getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] noise = new byte[8 * 1024];
+        new java.util.Random(7).nextBytes(noise);
+        ChunkEncoder encoder = new ChunkEncoder(Codec.Lz4, Runnable::run);
+        Chunk first = encoder.encode(ByteBuffer.wrap(bytes.toByteArray())).fill(Chunk.newBuilder())
+                .setPath(ARCHIVE).setArchive(true).build();
+        Chunk second = encoder.encode(ByteBuffer.wrap(noise)).fill(Chunk.newBuilder()).build();
+        assertEquals(Codec.Lz4, first.getCodec());
+        assertEquals(Codec.None, second.getCodec());
+        bytes.write(noise);
+        content = bytes.toByteArray();
+
+        InProcessServer.Response<UploadStatus> status = new InProcessServer.Response<>();
+        StreamObserver<Chunk> upload = server.stub().upload(status);
+        upload.onNext(first);
+        upload.onNext(second);
+        upload.onCompleted();
+        assertEquals(UploadStatusCode.Ok, status.get().getCode());
+        // stored as frames
+        assertTrue(server.file(ARCHIVE).length() < content.length);
+    }
+
+    @Test
+    public void archivesDownloadAsUploaded() throws Exception {
+        Iterator<Chunk> chunks = server.blockingStub().download(DownloadRequest.newBuilder().setPath(ARCHIVE)
+                .setChunkSize(10000).build());
+        assertArrayEquals(content, receive(chunks, content.length));
+    }
+
+    @Test
+    public void rangesAreOfTheUploadedBytes() throws Exception {
+        int offset = 60000;
+        int length = 10000;
+        Iterator<Chunk> chunks = server.blockingStub().download(DownloadRequest.newBuilder().setPath(ARCHIVE)
+                .setOffset(offset).setLength(length).build());
+        byte[] expected = new byte[length];
+        System.arraycopy(content, offset, expected, 0, length);
+        assertArrayEquals(expected, receive(chunks, content.length));
+    }
+
+    @Test
+    public void archivesPreviewAsUploaded() throws Exception {
+        Iterator<Chunk> chunks = server.blockingStub().preview(PreviewRequest.newBuilder().setPath(ARCHIVE)
+                .setMode(PreviewMode.Head).setCount(2).build());
+        assertEquals("line 0 of the archive\nline 1 of the archive\n",
+                new String(receive(chunks, content.length), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the content of the chunks, checked against their CRCs and the stream's digest
+     */
+    private static byte[] receive(Iterator<Chunk> chunks, long fileSize) throws Exception {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Crc32c crc = new Crc32c();
+        int streamCrc = 0;
+        boolean first = true;
+        while (chunks.hasNext()) {
+            Chunk chunk = chunks.next();
+            if (first) {
+                assertEquals(fileSize, chunk.getFileSize());
+                first = false;
+            }
+            if (chunk.hasDigest()) {
+                assertEquals(received.size(), chunk.getDigest().getLength());
+                assertEquals(streamCrc, chunk.getDigest().getCrc32C());
+                continue;
+            }
+            ByteString bytes = chunk.getContent();
+            assertEquals(crc.of(bytes), chunk.getCrc32C());
+            streamCrc = crc.append(streamCrc, chunk.getCrc32C(), bytes.size());
+            bytes.writeTo(received);
+        }
+        return received.toByteArray();
+    }
+}
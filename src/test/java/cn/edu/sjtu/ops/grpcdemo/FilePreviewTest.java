@@ -0,0 +1,235 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FilePreviewTest {
+    private static final int BLOCK = FilePreview.BLOCK;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(11);
+
+    @Test
+    public void newlinesMarksExactlyTheNewlineBytes() {
+        // bytes that differ from '\n' in one bit, or only in the high bit, must not count
+        byte[] others = {0, 0x0B, 0x08, 0x0E, 0x1A, (byte) 0x8A, (byte) 0xFF, 'a'};
+        for (int mask = 0; mask < 256; mask++) {
+            byte[] word = new byte[8];
+            long expected = 0;
+            for (int i = 0; i < 8; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    word[i] = '\n';
+                    expected |= 0x80L << (8 * i);
+                } else {
+                    word[i] = others[random.nextInt(others.length)];
+                }
+            }
+            long value = ByteBuffer.wrap(word).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            assertEquals("mask " + mask, expected, FilePreview.newlines(value));
+        }
+    }
+
+    @Test
+    public void linesSpanningBlocks() throws IOException {
+        StringBuilder text = new StringBuilder();
+        // short lines, then one that covers two whole blocks, then a newline on each side of a block edge
+        for (int i = 0; i < 1000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        text.append(line(2 * BLOCK + 17)).append('\n');
+        text.append(line(4 * BLOCK - text.length() - 1)).append('\n');
+        text.append('\n');
+        for (int i = 0; i < 500; i++) {
+            text.append(line(random.nextInt(300))).append('\n');
+        }
+        byte[] content = text.toString().getBytes("US-ASCII");
+        assertEquals('\n', content[4 * BLOCK - 1]);
+        assertEquals('\n', content[4 * BLOCK]);
+        checkAll(content);
+    }
+
+    @Test
+    public void tailWithAndWithoutTrailingNewline() throws IOException {
+        byte[] with = "a\nbb\n\nccc\n".getBytes("US-ASCII");
+        assertEquals("ccc\n", tail(with, 1, Long.MAX_VALUE));
+        assertEquals("\nccc\n", tail(with, 2, Long.MAX_VALUE));
+        assertEquals("a\nbb\n\nccc\n", tail(with, 9, Long.MAX_VALUE));
+        byte[] without = "a\nbb\n\nccc".getBytes("US-ASCII");
+        assertEquals("ccc", tail(without, 1, Long.MAX_VALUE));
+        assertEquals("\nccc", tail(without, 2, Long.MAX_VALUE));
+        assertEquals("", tail(without, 0, Long.MAX_VALUE));
+        assertEquals("cc", tail(without, 1, 2));
+        checkAll(with);
+        checkAll(without);
+    }
+
+    @Test
+    public void longTailsWithAndWithoutTrailingNewline() throws IOException {
+        byte[] content = randomLines(5 * BLOCK + 123);
+        content[content.length - 1] = '\n';
+        checkAll(content);
+        content[content.length - 1] = 'x';
+        checkAll(content);
+    }
+
+    @Test
+    public void degenerateFiles() throws IOException {
+        checkAll(new byte[0]);
+        checkAll("no newline at all".getBytes("US-ASCII"));
+        checkAll(line(3 * BLOCK + 5).getBytes("US-ASCII"));
+        byte[] newlines = new byte[2 * BLOCK + 3];
+        Arrays.fill(newlines, (byte) '\n');
+        checkAll(newlines);
+    }
+
+    @Test
+    public void fileInsideAPack() throws IOException {
+        byte[] file = randomLines(2 * BLOCK);
+        byte[] pack = new byte[file.length + 3000];
+        random.nextBytes(pack);
+        System.arraycopy(file, 0, pack, 1000, file.length);
+        try (FSDataInputStream in = open(pack)) {
+            FilePreview preview = new FilePreview(in, 1000, file.length, Long.MAX_VALUE);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            preview.tail(3, sink(out));
+            assertArrayEquals(Arrays.copyOfRange(file, tailStart(file, 3), file.length), out.toByteArray());
+            out.reset();
+            preview.head(3, sink(out));
+            assertArrayEquals(Arrays.copyOf(file, lineEnd(file, 0, 3)), out.toByteArray());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rangeOutsideTheFile() throws IOException {
+        try (FSDataInputStream in = open(new byte[10])) {
+            new FilePreview(in, 0, 10, Long.MAX_VALUE).range(11, 1, sink(new ByteArrayOutputStream()));
+        }
+    }
+
+    private String line(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private byte[] randomLines(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = random.nextInt(40) == 0 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return content;
+    }
+
+    /**
+     * Every way to preview {@code content} against a plain byte by byte reading.
+     */
+    private void checkAll(byte[] content) throws IOException {
+        long newlines = 0;
+        for (byte b : content) {
+            newlines += b == '\n' ? 1 : 0;
+        }
+        long[] counts = {0, 1, 2, 3, 7, 100, newlines - 1, newlines, newlines + 1, 10 * newlines + 5};
+        try (FSDataInputStream in = open(content)) {
+            for (long maxBytes : new long[]{Long.MAX_VALUE, BLOCK + 1, 10}) {
+                FilePreview preview = new FilePreview(in, 0, content.length, maxBytes);
+                for (long n : counts) {
+                    if (n < 0) {
+                        continue;
+                    }
+                    String what = n + " lines, at most " + maxBytes + " bytes";
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    preview.head(n, sink(out));
+                    assertArrayEquals("head " + what, cut(content, 0, lineEnd(content, 0, n), maxBytes),
+                            out.toByteArray());
+
+                    out.reset();
+                    long start = preview.tail(n, sink(out));
+                    long expected = Math.max(tailStart(content, n), content.length - maxBytes);
+                    assertEquals("tail start " + what, expected, start);
+                    assertArrayEquals("tail " + what, Arrays.copyOfRange(content, (int) expected, content.length),
+                            out.toByteArray());
+
+                    out.reset();
+                    int from = lineEnd(content, 0, 3);
+                    assertEquals(from, preview.lines(3, n, sink(out)));
+                    assertArrayEquals("lines 3+" + what, cut(content, from, lineEnd(content, from, n), maxBytes),
+                            out.toByteArray());
+                }
+            }
+        }
+    }
+
+    private static byte[] cut(byte[] content, int from, int to, long maxBytes) {
+        return Arrays.copyOfRange(content, from, (int) Math.min(to, from + Math.min(maxBytes, content.length)));
+    }
+
+    /**
+     * @return the index after the {@code lines}-th newline from {@code from}, or the length
+     */
+    private static int lineEnd(byte[] content, int from, long lines) {
+        int i = from;
+        for (long left = lines; left > 0 && i < content.length; i++) {
+            if (content[i] == '\n') {
+                left--;
+            }
+        }
+        return i;
+    }
+
+    private static int tailStart(byte[] content, long lines) {
+        if (lines == 0) {
+            return content.length;
+        }
+        // the last byte ends the last line, a newline there does not count
+        for (int i = content.length - 2; i >= 0; i--) {
+            if (content[i] == '\n' && --lines == 0) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private String tail(byte[] content, long lines, long maxBytes) throws IOException {
+        try (FSDataInputStream in = open(content)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new FilePreview(in, 0, content.length, maxBytes).tail(lines, sink(out));
+            return out.toString("US-ASCII");
+        }
+    }
+
+    private FSDataInputStream open(byte[] content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content);
+        return FileSystem.getLocal(new Configuration()).open(new Path(file.getPath()));
+    }
+
+    private static FilePreview.Sink sink(ByteArrayOutputStream out) {
+        return bytes -> {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            out.write(copy, 0, copy.length);
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.rules.ExternalResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DemoServer} on an in-process transport over {@link LocalHdfs}, for a test class:
+ * {@code @ClassRule public static final InProcessServer server = new InProcessServer();}
+ *
+ * Responses are serialized as they are sent, like on a real transport; in process they would be
+ * read only when the client takes them, after the server reused buffers they wrap.
+ */
+final class InProcessServer extends ExternalResource {
+    private File root;
+    private DemoServer server;
+    private ManagedChannel channel;
+
+    @Override
+    protected void before() throws Throwable {
+        root = LocalHdfs.root();
+        String name = InProcessServerBuilder.generateName();
+        server = new DemoServer(InProcessServerBuilder.forName(name).intercept(new Serializing()),
+                DemoServer.DEFAULT_MAX_MESSAGE_SIZE);
+        server.start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @Override
+    protected void after() {
+        channel.shutdownNow();
+        server.stop();
+    }
+
+    /**
+     * @return the local directory the server's {@code /} is
+     */
+    File root() {
+        return root;
+    }
+
+    /**
+     * @return the local file of the server's absolute {@code path}
+     */
+    File file(String path) {
+        return new File(root, path.substring(1));
+    }
+
+    ManagedChannel channel() {
+        return channel;
+    }
+
+    DemoServiceGrpc.DemoServiceStub stub() {
+        return DemoServiceGrpc.newStub(channel);
+    }
+
+    DemoServiceGrpc.DemoServiceBlockingStub blockingStub() {
+        return DemoServiceGrpc.newBlockingStub(channel);
+    }
+
+    /**
+     * The server's metric {@code name}, e.g. a gauge.
+     */
+    double metric(String name) throws Exception {
+        Response<MetricsSnapshot> snapshot = new Response<>();
+        stub().getMetrics(MetricsRequest.getDefaultInstance(), snapshot);
+        for (Metric metric : snapshot.get().getMetricsList()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        throw new AssertionError("no metric " + name);
+    }
+
+    /**
+     * Poll {@link #metric} until it is {@code value}, for at most 10 seconds.
+     *
+     * @return the last value seen
+     */
+    double awaitMetric(String name, double value) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        double current;
+        while ((current = metric(name)) != value && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return current;
+    }
+
+    private static final class Serializing implements ServerInterceptor {
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void sendMessage(RespT message) {
+                    MethodDescriptor<ReqT, RespT> method = getMethodDescriptor();
+                    // through bytes: the marshaller hands a message it streamed back as it is
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (InputStream in = method.streamResponse(message)) {
+                        byte[] buffer = new byte[8192];
+                        for (int n; (n = in.read(buffer)) >= 0; ) {
+                            bytes.write(buffer, 0, n);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    super.sendMessage(method.parseResponse(new ByteArrayInputStream(bytes.toByteArray())));
+                }
+            }, headers);
+        }
+    }
+
+    /**
+     * The first message of a call, or its error.
+     */
+    static final class Response<T> implements StreamObserver<T> {
+        final CompletableFuture<T> value = new CompletableFuture<>();
+
+        public void onNext(T value) {
+            this.value.complete(value);
+        }
+
+        public void onError(Throwable t) {
+            value.completeExceptionally(t);
+        }
+
+        public void onCompleted() {
+        }
+
+        T get() throws Exception {
+            return value.get(10, TimeUnit.SECONDS);
+        }
+    }
+}
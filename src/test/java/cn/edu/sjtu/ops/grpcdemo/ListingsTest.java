@@ -0,0 +1,137 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListingsTest {
+    private static final int FILES = 40;
+
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    @BeforeClass
+    public static void createFiles() throws Exception {
+        File directory = server.file("/listings");
+        assertTrue(directory.mkdirs() || directory.isDirectory());
+        for (int i = 0; i < FILES; i++) {
+            assertTrue(new File(directory, String.format("f%02d", i)).createNewFile());
+        }
+    }
+
+    @Test
+    public void leavesDropAncestorsAndDuplicates() {
+        assertEquals(Arrays.asList("/a-c", "/a/b", "/x/y"),
+                Listings.leaves(Arrays.asList("/a", "/a/b", "/a-c", "/a/b/", "/", "/x/y", "/x")));
+    }
+
+    @Test
+    public void leavesKeepSiblings() {
+        assertEquals(Arrays.asList("/a/b", "/a/bc", "/ab"),
+                Listings.leaves(Arrays.asList("/ab", "/a/bc", "/a/b", "/a")));
+    }
+
+    @Test
+    public void rootAloneIsALeaf() {
+        assertEquals(Collections.singletonList("/"), Listings.leaves(Arrays.asList("/", "//")));
+    }
+
+    @Test
+    public void leavesOfNothing() {
+        assertEquals(Collections.emptyList(), Listings.leaves(Collections.<String>emptyList()));
+    }
+
+    /**
+     * Read one page at a time: the server stops at every page, gives its handle back and lists on
+     * after the last entry once the client asks for more.
+     */
+    @Test
+    public void pausedListingHoldsNoHandle() throws Exception {
+        Pages pages = new Pages();
+        server.stub().list(ListRequest.newBuilder().setPath("/listings").setPageSize(3).build(), pages);
+        List<String> names = new ArrayList<>();
+        pages.request();
+        ListPage page = pages.take();
+        while (page != null) {
+            for (FileInfo entry : page.getEntriesList()) {
+                names.add(entry.getPath());
+            }
+            if (names.size() == 3) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (Hdfs.poolStats().active != 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, Hdfs.poolStats().active);
+            }
+            pages.request();
+            page = pages.take();
+        }
+        pages.done.get(10, TimeUnit.SECONDS);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            expected.add(String.format("f%02d", i));
+        }
+        Collections.sort(names);
+        assertEquals(expected, names);
+    }
+
+    /**
+     * Takes pages only when asked for, so the server's call is ready for one page at a time.
+     */
+    private static final class Pages implements ClientResponseObserver<ListRequest, ListPage> {
+        private static final ListPage END = ListPage.getDefaultInstance();
+
+        final LinkedBlockingQueue<ListPage> pages = new LinkedBlockingQueue<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        ClientCallStreamObserver<ListRequest> call;
+
+        public void beforeStart(ClientCallStreamObserver<ListRequest> call) {
+            this.call = call;
+            call.disableAutoInboundFlowControl();
+        }
+
+        void request() {
+            call.request(1);
+        }
+
+        /**
+         * @return null after the last page
+         */
+        ListPage take() throws Exception {
+            ListPage page = pages.poll(10, TimeUnit.SECONDS);
+            if (page == null) {
+                throw new AssertionError("no page within 10 seconds");
+            }
+            return page == END ? null : page;
+        }
+
+        public void onNext(ListPage page) {
+            pages.add(page);
+        }
+
+        public void onError(Throwable t) {
+            done.completeExceptionally(t);
+            pages.add(END);
+        }
+
+        public void onCompleted() {
+            done.complete(null);
+            pages.add(END);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Points {@link Hdfs} at a temporary local directory, so absolute paths like the server's
+ * {@code /hdfs-writer-1/...} land below it instead of in the root of the machine. Xattrs work as
+ * on HDFS, see {@link XAttrLocalFileSystem}.
+ */
+final class LocalHdfs {
+    private static File root;
+
+    private LocalHdfs() {
+    }
+
+    /**
+     * @return the directory {@code /} is mapped to, the same one for all tests of a run
+     */
+    static synchronized File root() throws IOException {
+        if (root == null) {
+            root = Files.createTempDirectory("hdfs").toFile();
+            root.deleteOnExit();
+            Configuration conf = new Configuration();
+            conf.set("fs.viewfs.mounttable.local.linkFallback", root.toURI().toString());
+            conf.set("fs.defaultFS", "viewfs://local/");
+            conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, org.apache.hadoop.fs.FileSystem.class);
+            conf.setBoolean("fs.file.impl.disable.cache", true);
+            Hdfs.init(conf);
+        }
+        return root;
+    }
+}
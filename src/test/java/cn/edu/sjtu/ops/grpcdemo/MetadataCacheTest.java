@@ -0,0 +1,186 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MetadataCacheTest {
+    private MetadataCache cache = cache(30000, 1000);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private static MetadataCache cache(long ttlMs, int maxEntries) {
+        Configuration conf = new Configuration(false);
+        conf.setLong(MetadataCache.TTL_MS_KEY, ttlMs);
+        conf.setInt(MetadataCache.MAX_ENTRIES_KEY, maxEntries);
+        return new MetadataCache(conf);
+    }
+
+    @After
+    public void close() {
+        cache.close();
+    }
+
+    private static FileStatus directory(String path) {
+        return new FileStatus(0, true, 1, 0, 0, new Path(path));
+    }
+
+    private static FileStatus file(String path) {
+        return new FileStatus(10, false, 1, 128, 0, new Path(path));
+    }
+
+    private FileStatus status(String path, FileStatus answer) throws IOException {
+        return cache.getFileStatus(path, () -> {
+            loads.incrementAndGet();
+            return answer;
+        });
+    }
+
+    @Test
+    public void directoriesAreCachedFilesAreNot() throws IOException {
+        FileStatus dir = directory("/a");
+        assertSame(dir, status("/a", dir));
+        assertSame(dir, status("/a", directory("/a")));
+        assertEquals(1, loads.get());
+
+        status("/a/f", file("/a/f"));
+        status("/a/f", file("/a/f"));
+        assertEquals(3, loads.get());
+        assertEquals(1, cache.getStats().hits);
+    }
+
+    @Test
+    public void absentPathsAreCached() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getFileStatus("/missing", () -> {
+                    loads.incrementAndGet();
+                    throw new FileNotFoundException("/missing");
+                });
+                fail("found");
+            } catch (FileNotFoundException expected) {
+            }
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void invalidateForgetsThePathAndItsAncestors() throws IOException {
+        status("/a", directory("/a"));
+        status("/a/b", directory("/a/b"));
+        status("/x", directory("/x"));
+        cache.invalidate("/a/b/new");
+        status("/a", directory("/a"));
+        status("/a/b", directory("/a/b"));
+        status("/x", directory("/x"));
+        assertEquals(5, loads.get());
+    }
+
+    @Test
+    public void invalidateTreeForgetsEverythingBelow() throws IOException {
+        status("/a", directory("/a"));
+        status("/a/b", directory("/a/b"));
+        status("/a/b/c", directory("/a/b/c"));
+        status("/a/bc", directory("/a/bc"));
+        cache.invalidateTree("/a/b");
+        status("/a/b/c", directory("/a/b/c"));
+        status("/a/b", directory("/a/b"));
+        status("/a", directory("/a"));
+        // a sibling that only shares the prefix of the name stays
+        status("/a/bc", directory("/a/bc"));
+        assertEquals(7, loads.get());
+    }
+
+    @Test
+    public void invalidationDuringALoadKeepsItsAnswerOut() throws IOException {
+        // the path changes while the NameNode answers: the answer is returned, not cached
+        FileStatus old = directory("/a/b");
+        assertSame(old, cache.getFileStatus("/a/b", () -> {
+            loads.incrementAndGet();
+            cache.invalidate("/a/b");
+            return old;
+        }));
+        status("/a/b", directory("/a/b"));
+        assertEquals(2, loads.get());
+
+        // the same for a listing whose directory is deleted meanwhile
+        cache.list("/d", () -> {
+            loads.incrementAndGet();
+            cache.invalidateTree("/");
+            return new FileStatus[]{file("/d/f")};
+        });
+        cache.list("/d", () -> {
+            loads.incrementAndGet();
+            return new FileStatus[0];
+        });
+        assertEquals(4, loads.get());
+
+        // changes elsewhere do not matter
+        cache.getFileStatus("/x", () -> {
+            loads.incrementAndGet();
+            cache.invalidate("/y/z");
+            cache.invalidateTree("/xy");
+            return directory("/x");
+        });
+        status("/x", directory("/x"));
+        assertEquals(5, loads.get());
+    }
+
+    @Test
+    public void clearDuringALoadKeepsItsAnswerOut() throws IOException {
+        cache.getFileStatus("/a", () -> {
+            loads.incrementAndGet();
+            cache.clear();
+            return directory("/a");
+        });
+        status("/a", directory("/a"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void listingsAreCopies() throws IOException {
+        FileStatus a = file("/d/a");
+        FileStatus b = file("/d/b");
+        FileStatus[] loaded = {a, b};
+        cache.list("/d", () -> loaded);
+        loaded[0] = null;
+        FileStatus[] cached = cache.list("/d", () -> {
+            throw new AssertionError("not cached");
+        });
+        assertSame(a, cached[0]);
+        cached[1] = null;
+        assertSame(b, cache.list("/d", () -> null)[1]);
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        cache = cache(50, 1000);
+        status("/a", directory("/a"));
+        status("/a", directory("/a"));
+        Thread.sleep(100);
+        status("/a", directory("/a"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDropped() throws IOException {
+        cache = cache(30000, 2);
+        status("/a", directory("/a"));
+        status("/b", directory("/b"));
+        status("/a", directory("/a"));
+        status("/c", directory("/c"));
+        assertEquals(3, loads.get());
+        status("/a", directory("/a"));
+        status("/b", directory("/b"));
+        assertEquals(4, loads.get());
+    }
+}
@@ -0,0 +1,139 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackFileTest {
+    private final Random random = new Random(3);
+    private final Crc32c crc = new Crc32c();
+    private Hdfs hdfs;
+    private String path;
+
+    @Before
+    public void open() throws IOException {
+        LocalHdfs.root();
+        hdfs = Hdfs.getInstance();
+        path = "/packs/" + UUID.randomUUID() + ".pack";
+    }
+
+    @After
+    public void close() throws IOException {
+        hdfs.close();
+    }
+
+    private ByteString bytes(int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    @Test
+    public void indexFindsEveryFileWritten() throws IOException {
+        Map<String, ByteString> files = new LinkedHashMap<>();
+        files.put("a.txt", bytes(10));
+        files.put("empty", ByteString.EMPTY);
+        files.put("dir/gr\u00f6\u00dfer.bin", bytes(300000));
+        files.put("last", bytes(1));
+        int count;
+        try (FSDataOutputStream out = hdfs.create(path, false)) {
+            PackFile.Writer writer = new PackFile.Writer(out);
+            assertFalse(writer.inFile());
+            for (Map.Entry<String, ByteString> file : files.entrySet()) {
+                assertTrue(writer.startFile(file.getKey()));
+                // in uneven pieces, as chunks arrive
+                ByteString content = file.getValue();
+                for (int at = 0; at < content.size(); at += 65537) {
+                    ByteString piece = content.substring(at, Math.min(content.size(), at + 65537));
+                    writer.write(piece, crc.of(piece));
+                }
+            }
+            assertTrue(writer.inFile());
+            assertFalse("names are unique", writer.startFile("a.txt"));
+            count = writer.finish();
+        }
+        assertEquals(files.size(), count);
+
+        List<PackFile.Entry> index = PackFile.index(hdfs, path);
+        assertEquals(files.size(), index.size());
+        int i = 0;
+        for (Map.Entry<String, ByteString> file : files.entrySet()) {
+            PackFile.Entry entry = index.get(i++);
+            assertEquals(file.getKey(), entry.name);
+            assertEquals(file.getValue().size(), entry.length);
+            assertEquals(crc.of(file.getValue()), entry.crc);
+            byte[] stored = new byte[(int) entry.length];
+            try (FSDataInputStream in = hdfs.open(path)) {
+                in.readFully(entry.offset, stored);
+            }
+            assertArrayEquals(file.getValue().toByteArray(), stored);
+        }
+        assertEquals(index.get(2).offset, PackFile.find(hdfs, path, "dir/gr\u00f6\u00dfer.bin").offset);
+        assertNull(PackFile.find(hdfs, path, "missing"));
+    }
+
+    @Test
+    public void emptyPack() throws IOException {
+        try (FSDataOutputStream out = hdfs.create(path, false)) {
+            assertEquals(0, new PackFile.Writer(out).finish());
+        }
+        assertTrue(PackFile.index(hdfs, path).isEmpty());
+    }
+
+    @Test
+    public void otherFilesAreNotPacks() throws IOException {
+        try (FSDataOutputStream out = hdfs.create(path, false)) {
+            bytes(100).writeTo(out);
+        }
+        expectFailure();
+        try (FSDataOutputStream out = hdfs.create(path, true)) {
+            bytes(5).writeTo(out);
+        }
+        expectFailure();
+    }
+
+    @Test
+    public void truncatedIndexIsReported() throws IOException {
+        try (FSDataOutputStream out = hdfs.create(path, false)) {
+            PackFile.Writer writer = new PackFile.Writer(out);
+            writer.startFile("a");
+            writer.write(ByteString.copyFromUtf8("a"), crc.of(ByteString.copyFromUtf8("a")));
+            writer.finish();
+        }
+        // the same trailer, but claiming more files than the index holds
+        byte[] pack = new byte[(int) hdfs.getFileStatus(path).getLen()];
+        try (FSDataInputStream in = hdfs.open(path)) {
+            in.readFully(0, pack);
+        }
+        pack[pack.length - 5] = 9;
+        try (FSDataOutputStream out = hdfs.create(path, true)) {
+            out.write(pack);
+        }
+        expectFailure();
+    }
+
+    private void expectFailure() {
+        try {
+            PackFile.index(hdfs, path);
+            fail("read as a pack");
+        } catch (IOException expected) {
+        }
+    }
+}
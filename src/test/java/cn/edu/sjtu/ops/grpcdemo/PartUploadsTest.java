@@ -0,0 +1,80 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PartUploadsTest {
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    private static final String FIRST = "the first part, ";
+    private static final String SECOND = "the second part";
+
+    @Test
+    public void corruptedPartIsSentAgain() throws Exception {
+        assertEquals(UploadStatusCode.ChecksumMismatch, part("retried", 0, FIRST, true).getCode());
+        assertEquals(UploadStatusCode.Ok, part("retried", 0, FIRST, false).getCode());
+        UploadStatus status = part("retried", 1, SECOND, false);
+        assertEquals(UploadStatusCode.Ok, status.getCode());
+
+        File file = server.file(status.getMessage());
+        assertEquals(FIRST + SECOND, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertArrayEquals(new String[0], file.getParentFile().list((dir, name) -> name.startsWith(".retried.part")));
+    }
+
+    @Test
+    public void storedPartIsNotSentTwice() throws Exception {
+        assertEquals(UploadStatusCode.Ok, part("twice", 0, FIRST, false).getCode());
+        try {
+            part("twice", 0, FIRST, false);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, Status.fromThrowable(e.getCause()).getCode());
+        }
+    }
+
+    /**
+     * Out of attempts, the part fails the upload; its last stream is told so, not just about the
+     * chunk, and the parts stored are removed.
+     */
+    @Test
+    public void uploadFailsOnceAPartRunsOutOfAttempts() throws Exception {
+        assertEquals(UploadStatusCode.Ok, part("exhausted", 1, SECOND, false).getCode());
+        for (int i = 1; i < PartUploads.MAX_PART_ATTEMPTS; i++) {
+            assertEquals(UploadStatusCode.ChecksumMismatch, part("exhausted", 0, FIRST, true).getCode());
+        }
+        UploadStatus status = part("exhausted", 0, FIRST, true);
+        assertEquals(UploadStatusCode.Failed, status.getCode());
+        assertEquals("part 0 failed " + PartUploads.MAX_PART_ATTEMPTS + " times", status.getMessage());
+
+        for (File dir : server.root().listFiles((dir, name) -> name.startsWith(WritePipeline.WRITER_THREAD))) {
+            assertFalse(new File(dir, "exhausted").exists());
+            assertArrayEquals(new String[0], dir.list((d, name) -> name.startsWith(".exhausted.part")));
+        }
+    }
+
+    private static UploadStatus part(String uploadId, int index, String content, boolean corrupt) throws Exception {
+        ByteString bytes = ByteString.copyFromUtf8(content);
+        int crc = new Crc32c().of(bytes);
+        InProcessServer.Response<UploadStatus> status = new InProcessServer.Response<>();
+        StreamObserver<Chunk> part = server.stub().uploadPart(status);
+        part.onNext(Chunk.newBuilder().setUploadId(uploadId).setPartIndex(index).setPartCount(2)
+                .setOffset(index == 0 ? 0 : FIRST.length()).setContent(bytes)
+                .setHasCrc32C(true).setCrc32C(corrupt ? crc + 1 : crc).build());
+        part.onCompleted();
+        return status.get();
+    }
+}
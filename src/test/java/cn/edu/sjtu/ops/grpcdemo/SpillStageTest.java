@@ -0,0 +1,128 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import io.grpc.Status;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpillStageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private File root;
+
+    @Before
+    public void hdfs() throws IOException {
+        root = LocalHdfs.root();
+    }
+
+    @Test
+    public void committedUploadsAreFlushed() throws Exception {
+        File dir = folder.newFolder();
+        byte[] content = content(100000);
+        try (SpillStage stage = new SpillStage(dir, 4 * SpillStage.EXTENT, 1, metrics)) {
+            SpillStage.Segment segment = stage.open("/spill/flushed");
+            segment.write(content);
+            segment.commit(crc(content), false);
+
+            File target = new File(root, "spill/flushed");
+            await(() -> stage.used() == 0);
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            // the extent past the upload is not copied, nor left behind
+            assertArrayEquals(new String[0], dir.list());
+        }
+    }
+
+    /**
+     * A committed upload survives a restart that comes before its flush, one that was never
+     * acknowledged is dropped.
+     */
+    @Test
+    public void restartFlushesCommittedUploadsOnly() throws Exception {
+        File dir = folder.newFolder();
+        // a file where the target's directory should be, so the first flush fails and is retried later
+        File blocker = new File(root, "spill-blocked");
+        assertTrue(blocker.createNewFile());
+        byte[] committed = content(SpillStage.EXTENT + 10);
+        try (SpillStage stage = new SpillStage(dir, 4 * SpillStage.EXTENT, 1, metrics)) {
+            SpillStage.Segment segment = stage.open("/spill-blocked/committed");
+            segment.write(committed);
+            segment.commit(crc(committed), false);
+            stage.open("/spill-blocked/unacknowledged").write(content(10));
+            await(() -> metrics.snapshot().toString().contains("errors.spill.flush"));
+        }
+        assertEquals(2, dir.list((d, name) -> name.endsWith(".seg")).length);
+        assertTrue(blocker.delete());
+
+        try (SpillStage stage = new SpillStage(dir, 4 * SpillStage.EXTENT, 1, metrics)) {
+            await(() -> stage.used() == 0);
+            assertEquals(0, stage.used());
+            assertArrayEquals(committed, Files.readAllBytes(new File(root, "spill-blocked/committed").toPath()));
+            assertFalse(new File(root, "spill-blocked/unacknowledged").exists());
+            assertArrayEquals(new String[0], dir.list());
+        }
+    }
+
+    @Test
+    public void quotaBoundsStagedUploads() throws Exception {
+        File dir = folder.newFolder();
+        try (SpillStage stage = new SpillStage(dir, 2 * SpillStage.EXTENT, 1, metrics)) {
+            SpillStage.Segment first = stage.open("/spill/first");
+            first.write(1);
+            assertTrue(stage.admits());
+            SpillStage.Segment second = stage.open("/spill/second");
+            second.write(2);
+            // both extents reserved, new uploads go to HDFS directly
+            assertFalse(stage.admits());
+            assertEquals(2 * SpillStage.EXTENT, stage.used());
+
+            try {
+                second.write(new byte[(int) SpillStage.EXTENT]);
+                fail("wrote past the quota");
+            } catch (IOException e) {
+                assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(e.getCause()).getCode());
+            }
+            second.discard();
+            assertTrue(stage.admits());
+
+            // a committed upload holds its length only, until it is flushed
+            first.commit(crc(new byte[]{1}), false);
+            await(() -> stage.used() == 0);
+            assertEquals(0, stage.used());
+            assertArrayEquals(new byte[]{1}, Files.readAllBytes(new File(root, "spill/first").toPath()));
+        }
+    }
+
+    private static byte[] content(long length) {
+        byte[] content = new byte[(int) length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static int crc(byte[] content) {
+        return new Crc32c().of(ByteBuffer.wrap(content));
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TenantSchedulerTest {
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final TenantScheduler tenants = new TenantScheduler(new TenantScheduler.Policy(1, 0, 2), 1000, metrics);
+
+    @After
+    public void close() {
+        tenants.close();
+    }
+
+    @Test
+    public void streamsAreLimitedPerTenant() {
+        assertNotNull(tenants.admit("a"));
+        TenantScheduler.Tenant a = tenants.admit("a");
+        assertNull(tenants.admit("a"));
+        // others are not affected
+        assertNotNull(tenants.admit("b"));
+        a.release();
+        assertSame(a, tenants.admit("a"));
+    }
+
+    @Test
+    public void bucketEmptiesAndRefills() throws Exception {
+        tenants.setPolicy("a", new TenantScheduler.Policy(1, 1000, 2));
+        TenantScheduler.Tenant a = tenants.admit("a");
+        assertTrue(a.mayReceive());
+        // the credit was granted before the chunk arrived, the bucket goes into debt
+        a.charge(1500);
+        assertFalse(a.mayReceive());
+
+        long start = System.nanoTime();
+        CountDownLatch resumed = new CountDownLatch(1);
+        tenants.throttle(a, resumed::countDown);
+        assertTrue(resumed.await(10, TimeUnit.SECONDS));
+        // 500 bytes of debt at 1000 bytes per second
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+        assertTrue(a.mayReceive());
+    }
+
+    @Test
+    public void newPolicyClampsTheBucket() {
+        tenants.setPolicy("a", new TenantScheduler.Policy(1, 1000000, 2));
+        TenantScheduler.Tenant a = tenants.admit("a");
+        assertTrue(a.mayReceive());
+        tenants.setPolicy("a", new TenantScheduler.Policy(1, 1000, 2));
+        // a million bytes saved under the old policy do not count
+        a.charge(1200);
+        assertFalse(a.mayReceive());
+    }
+
+    /**
+     * Credits go to tenants by weight, not by how many streams wait.
+     */
+    @Test
+    public void starvedStreamsAreServedByWeight() {
+        tenants.setPolicy("light", new TenantScheduler.Policy(1, 0, 10));
+        tenants.setPolicy("heavy", new TenantScheduler.Policy(3, 0, 10));
+        TenantScheduler.Tenant light = tenants.admit("light");
+        TenantScheduler.Tenant heavy = tenants.admit("heavy");
+        Map<TenantScheduler.Waiter, TenantScheduler.Tenant> owners = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            TenantScheduler.Waiter waiter = () -> {
+            };
+            owners.put(waiter, light);
+            tenants.starve(light, waiter);
+        }
+        TenantScheduler.Waiter single = () -> {
+        };
+        owners.put(single, heavy);
+        tenants.starve(heavy, single);
+
+        Map<TenantScheduler.Tenant, Integer> served = new HashMap<>();
+        for (int i = 0; i < 400; i++) {
+            TenantScheduler.Waiter next = tenants.nextStarved();
+            TenantScheduler.Tenant tenant = owners.get(next);
+            served.merge(tenant, 1, Integer::sum);
+            // a chunk arrives on the credit and the stream waits for the next one
+            tenant.charge(1000);
+            tenants.starve(tenant, next);
+        }
+        assertEquals(100, served.get(light), 1);
+        assertEquals(300, served.get(heavy), 1);
+    }
+
+    @Test
+    public void idleTenantsAreDropped() throws Exception {
+        TenantScheduler.Tenant busy = tenants.admit("busy");
+        TenantScheduler.Tenant idle = tenants.admit("idle");
+        idle.release();
+        assertTrue(gauges().contains("tenant.idle.streams"));
+
+        tenants.evictIdle(System.nanoTime() + TimeUnit.MINUTES.toNanos(TenantScheduler.IDLE_MINUTES + 1));
+        List<String> gauges = gauges();
+        assertFalse(gauges.contains("tenant.idle.streams"));
+        assertFalse(gauges.contains("tenant.idle.queue_delay_us.count"));
+        assertTrue(gauges.contains("tenant.busy.streams"));
+
+        // a name that comes back starts afresh
+        TenantScheduler.Tenant again = tenants.admit("idle");
+        assertTrue(again != idle);
+        assertTrue(gauges().contains("tenant.idle.streams"));
+        assertSame(busy, tenants.admit("busy"));
+    }
+
+    /**
+     * Names arriving together do not get past the limit, the ones over it share the default tenant.
+     */
+    @Test
+    public void tenantCountIsCapped() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> admitted = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                admitted.add(threads.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < TenantScheduler.MAX_TENANTS / 4; i++) {
+                        TenantScheduler.Tenant tenant = tenants.admit("t" + thread + "-" + i);
+                        if (tenant != null) {
+                            tenant.release();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : admitted) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        long count = gauges().stream().filter(name -> name.endsWith(".streams")).count();
+        // the named ones and the default tenant
+        assertEquals(TenantScheduler.MAX_TENANTS + 1, count);
+        assertTrue(gauges().contains("tenant." + TenantScheduler.DEFAULT_TENANT + ".streams"));
+    }
+
+    private List<String> gauges() {
+        List<String> names = new ArrayList<>();
+        for (Metric metric : metrics.snapshot().getMetricsList()) {
+            names.add(metric.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,211 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSessionsTest {
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+    private static final int CHUNK = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private File root;
+    private File journal;
+
+    @Before
+    public void hdfs() throws Exception {
+        root = LocalHdfs.root();
+        journal = folder.newFolder();
+    }
+
+    /**
+     * What arrived before a stream broke is kept, the client goes on at the offset it is told.
+     */
+    @Test
+    public void brokenStreamResumesAtTheDurableOffset() throws Exception {
+        UploadSessions sessions = sessions(TTL);
+        String id = start(sessions);
+        byte[] content = content(5 * CHUNK + 100);
+
+        send(sessions, id, content, 0, 2 * CHUNK, false);
+        assertEquals(2 * CHUNK, sessions.offset(id));
+
+        // not where it ended
+        Result wrong = send(sessions, id, content, 0, content.length, true);
+        assertEquals(Status.Code.FAILED_PRECONDITION, Status.fromThrowable(wrong.error.get(10, TimeUnit.SECONDS)).getCode());
+
+        UploadStatus done = send(sessions, id, content, 2 * CHUNK, content.length, true).status();
+        assertStored(done, content);
+        assertEquals(-1, sessions.offset(id));
+        assertArrayEquals(new String[0], journal.list());
+    }
+
+    /**
+     * The journal is written at every checkpoint, before the stream ends: a server that dies
+     * while the stream is open comes back with the session at its last checkpoint.
+     */
+    @Test
+    public void restartResumesAtTheLastCheckpoint() throws Exception {
+        UploadSessions sessions = sessions(TTL);
+        String id = start(sessions);
+        byte[] content = content(9 * 1024 * 1024);
+        int checkpoint = 8 * 1024 * 1024;
+
+        // no end of stream at all, as if the server died
+        StreamObserver<Chunk> stream = sessions.newObserver(new Result());
+        write(stream, id, content, 0, checkpoint + CHUNK);
+
+        UploadSessions restarted = sessions(TTL);
+        assertEquals(checkpoint, restarted.offset(id));
+        UploadStatus done = send(restarted, id, content, checkpoint, content.length, true).status();
+        assertStored(done, content);
+    }
+
+    /**
+     * Everything before a corrupted chunk is kept and the client is told where it was.
+     */
+    @Test
+    public void corruptedChunkKeepsTheBytesBefore() throws Exception {
+        UploadSessions sessions = sessions(TTL);
+        String id = start(sessions);
+        byte[] content = content(3 * CHUNK);
+
+        Result result = new Result();
+        StreamObserver<Chunk> stream = sessions.newObserver(result);
+        write(stream, id, content, 0, CHUNK);
+        stream.onNext(chunk(id, content, CHUNK, CHUNK).toBuilder().setCrc32C(0).build());
+        UploadStatus status = result.status();
+        assertEquals(UploadStatusCode.ChecksumMismatch, status.getCode());
+        assertEquals(CHUNK, status.getBadOffset());
+        assertEquals(CHUNK, sessions.offset(id));
+
+        UploadStatus done = send(sessions, id, content, CHUNK, content.length, true).status();
+        assertStored(done, content);
+    }
+
+    @Test
+    public void abandonedSessionsAreCollected() throws Exception {
+        UploadSessions sessions = sessions(1);
+        String id = start(sessions);
+        byte[] content = content(CHUNK);
+        send(sessions, id, content, 0, CHUNK, false);
+        // the partial file, named after the session
+        File partial = file("/" + Thread.currentThread().getName() + "/" + id);
+        assertTrue(partial.isFile());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (sessions.offset(id) != -1 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(-1, sessions.offset(id));
+        assertFalse(partial.exists());
+        assertArrayEquals(new String[0], journal.list());
+    }
+
+    private UploadSessions sessions(long ttl) {
+        return new UploadSessions(journal, ttl, DemoServer.DEFAULT_MAX_MESSAGE_SIZE, metrics);
+    }
+
+    private static String start(UploadSessions sessions) throws Exception {
+        return sessions.start(UploadRequest.newBuilder().setFileName("session").build()).getSessionId();
+    }
+
+    private File file(String path) {
+        return new File(root, path.substring(1));
+    }
+
+    /**
+     * Send {@code content[from, to)} on a new stream, then end it with the stream's digest if
+     * {@code complete}, or break it off.
+     */
+    private static Result send(UploadSessions sessions, String id, byte[] content, int from, int to,
+                               boolean complete) {
+        Result result = new Result();
+        StreamObserver<Chunk> stream = sessions.newObserver(result);
+        write(stream, id, content, from, to);
+        if (complete) {
+            stream.onNext(Chunk.newBuilder().setSessionId(id).setDigest(StreamDigest.newBuilder()
+                    .setLength(to - from).setCrc32C(crc(content, from, to))).build());
+            stream.onCompleted();
+        } else {
+            stream.onError(Status.CANCELLED.asRuntimeException());
+        }
+        return result;
+    }
+
+    private static void write(StreamObserver<Chunk> stream, String id, byte[] content, int from, int to) {
+        for (int offset = from; offset < to; offset += CHUNK) {
+            stream.onNext(chunk(id, content, offset, Math.min(CHUNK, to - offset)));
+        }
+    }
+
+    private static Chunk chunk(String id, byte[] content, int offset, int length) {
+        ByteString bytes = ByteString.copyFrom(content, offset, length);
+        return Chunk.newBuilder().setSessionId(id).setOffset(offset).setContent(bytes)
+                .setHasCrc32C(true).setCrc32C(crc(content, offset, offset + length)).build();
+    }
+
+    /**
+     * The file is complete and its CRC32C, which spans the streams, was stored.
+     */
+    private void assertStored(UploadStatus status, byte[] content) throws Exception {
+        assertEquals(UploadStatusCode.Ok, status.getCode());
+        assertArrayEquals(content, Files.readAllBytes(file(status.getMessage()).toPath()));
+        try (Hdfs hdfs = Hdfs.getInstance()) {
+            assertEquals(Crc32c.hex(crc(content, 0, content.length)),
+                    new String(hdfs.getXAttr(status.getMessage(), ChunkVerifier.XATTR), StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static int crc(byte[] content, int from, int to) {
+        return new Crc32c().of(ByteString.copyFrom(content, from, to - from));
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * What the server answered on one stream.
+     */
+    private static final class Result implements StreamObserver<UploadStatus> {
+        final CompletableFuture<UploadStatus> status = new CompletableFuture<>();
+        final CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        public void onNext(UploadStatus value) {
+            status.complete(value);
+        }
+
+        public void onError(Throwable t) {
+            error.complete(t);
+        }
+
+        public void onCompleted() {
+        }
+
+        UploadStatus status() throws Exception {
+            return status.get(10, TimeUnit.SECONDS);
+        }
+    }
+}
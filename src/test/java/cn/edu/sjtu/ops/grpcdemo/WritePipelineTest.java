@@ -0,0 +1,189 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class WritePipelineTest {
+    @ClassRule
+    public static final InProcessServer server = new InProcessServer();
+
+    private static final int WINDOW = 4;
+    private static final int CREDITS = 16;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final TenantScheduler tenants = new TenantScheduler(new TenantScheduler.Policy(1, 0, 1), 1000, metrics);
+    private final WritePipeline pipeline = new WritePipeline(2, WINDOW, CREDITS, tenants, metrics);
+
+    @After
+    public void shutdown() {
+        pipeline.shutdown();
+        tenants.close();
+    }
+
+    /**
+     * The server answers a corrupted chunk and closes the call while the client still sends; the
+     * stream has to give back its credits and its tenant's slot all the same.
+     */
+    @Test
+    public void rejectedUploadsReleaseTheirStreams() throws Exception {
+        ByteString content = ByteString.copyFromUtf8("rejected");
+        int crc = new Crc32c().of(content);
+        for (int i = 0; i < 2 * DemoServer.TENANT_MAX_STREAMS; i++) {
+            InProcessServer.Response<UploadStatus> response = new InProcessServer.Response<>();
+            StreamObserver<Chunk> upload = server.stub().upload(response);
+            upload.onNext(Chunk.newBuilder().setContent(content).setHasCrc32C(true).setCrc32C(crc + 1).build());
+            // not half-closed: the client would go on sending if it did not listen
+            assertEquals(UploadStatusCode.ChecksumMismatch, response.get().getCode());
+        }
+
+        InProcessServer.Response<UploadStatus> response = new InProcessServer.Response<>();
+        StreamObserver<Chunk> upload = server.stub().upload(response);
+        upload.onNext(Chunk.newBuilder().setContent(content).setHasCrc32C(true).setCrc32C(crc).build());
+        upload.onCompleted();
+        assertEquals(UploadStatusCode.Ok, response.get().getCode());
+
+        assertEquals(0, server.awaitMetric("upload.active", 0), 0);
+    }
+
+    @Test
+    public void throwingOnCompletedReleasesTheStream() throws Exception {
+        Call call = new Call();
+        StreamObserver<Chunk> stream = pipeline.wrap(call, responses -> new Delegate() {
+            @Override
+            public void onCompleted() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        stream.onNext(chunk());
+        stream.onCompleted();
+
+        assertNotNull(call.error.get(10, TimeUnit.SECONDS));
+        awaitReleased();
+        // the tenant may open its one stream again
+        Call next = new Call();
+        pipeline.wrap(next, responses -> new Delegate());
+        assertFalse(next.error.isDone());
+        assertEquals(WINDOW, next.requested.get());
+    }
+
+    @Test
+    public void errorsInOnNextReleaseTheStream() throws Exception {
+        Call call = new Call();
+        Delegate delegate = new Delegate() {
+            @Override
+            public void onNext(Chunk chunk) {
+                throw new LinkageError("no native library");
+            }
+        };
+        StreamObserver<Chunk> stream = pipeline.wrap(call, responses -> delegate);
+        stream.onNext(chunk());
+
+        assertEquals(Status.Code.UNKNOWN, Status.fromThrowable(call.error.get(10, TimeUnit.SECONDS)).getCode());
+        awaitReleased();
+        // told, so it can release what it holds
+        assertNotNull(delegate.error.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void throwingOnErrorReleasesTheStream() throws Exception {
+        Call call = new Call();
+        StreamObserver<Chunk> stream = pipeline.wrap(call, responses -> new Delegate() {
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        stream.onError(Status.CANCELLED.asRuntimeException());
+        awaitReleased();
+    }
+
+    private void awaitReleased() throws InterruptedException {
+        await(() -> pipeline.activeStreams() == 0 && pipeline.availableCredits() == CREDITS);
+        assertEquals(0, pipeline.activeStreams());
+        assertEquals(CREDITS, pipeline.availableCredits());
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Chunk chunk() {
+        return Chunk.newBuilder().setContent(ByteString.copyFromUtf8("chunk")).build();
+    }
+
+    private static class Delegate implements StreamObserver<Chunk> {
+        final CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        public void onNext(Chunk chunk) {
+        }
+
+        public void onError(Throwable t) {
+            error.complete(t);
+        }
+
+        public void onCompleted() {
+        }
+    }
+
+    /**
+     * The server side of a call, without a transport.
+     */
+    private static final class Call extends ServerCallStreamObserver<UploadStatus> {
+        final AtomicInteger requested = new AtomicInteger();
+        final CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+        }
+
+        public void setCompression(String compression) {
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+        }
+
+        public void disableAutoInboundFlowControl() {
+        }
+
+        public void request(int count) {
+            requested.addAndGet(count);
+        }
+
+        public void setMessageCompression(boolean enable) {
+        }
+
+        public void onNext(UploadStatus value) {
+        }
+
+        public void onError(Throwable t) {
+            error.complete(t);
+        }
+
+        public void onCompleted() {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package cn.edu.sjtu.ops.grpcdemo;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The local file system with xattrs kept in memory, so archives and packs are marked in
+ * tests like they are on HDFS. Renames and deletes take the xattrs of the paths along.
+ *
+ * Appends and truncates, which resumed sessions need, go to the raw file system like on HDFS;
+ * the checksum file of the path no longer matches then and is dropped.
+ */
+public class XAttrLocalFileSystem extends LocalFileSystem {
+    private static final Map<String, Map<String, byte[]>> XATTRS = new ConcurrentHashMap<>();
+
+    private String key(Path path) {
+        return ((RawLocalFileSystem) getRawFileSystem()).pathToFile(path).getAbsolutePath();
+    }
+
+    @Override
+    public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+        if (!exists(path)) {
+            throw new IOException("no such file " + path);
+        }
+        XATTRS.computeIfAbsent(key(path), k -> new ConcurrentHashMap<>()).put(name, value.clone());
+    }
+
+    @Override
+    public byte[] getXAttr(Path path, String name) throws IOException {
+        byte[] value = getXAttrs(path).get(name);
+        if (value == null) {
+            throw new IOException("no xattr " + name + " on " + path);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+        if (!exists(path)) {
+            throw new IOException("no such file " + path);
+        }
+        Map<String, byte[]> xattrs = XATTRS.get(key(path));
+        return xattrs == null ? new HashMap<>() : new HashMap<>(xattrs);
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path, List<String> names) throws IOException {
+        Map<String, byte[]> xattrs = getXAttrs(path);
+        xattrs.keySet().retainAll(names);
+        return xattrs;
+    }
+
+    @Override
+    public List<String> listXAttrs(Path path) throws IOException {
+        return new ArrayList<>(getXAttrs(path).keySet());
+    }
+
+    @Override
+    public void removeXAttr(Path path, String name) throws IOException {
+        Map<String, byte[]> xattrs = XATTRS.get(key(path));
+        if (xattrs == null || xattrs.remove(name) == null) {
+            throw new IOException("no xattr " + name + " on " + path);
+        }
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress) throws IOException {
+        getRawFileSystem().delete(getChecksumFile(path), false);
+        return getRawFileSystem().append(path, bufferSize, progress);
+    }
+
+    @Override
+    public boolean truncate(Path path, long newLength) throws IOException {
+        getRawFileSystem().delete(getChecksumFile(path), false);
+        return getRawFileSystem().truncate(path, newLength);
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        Path to = isDirectory(dst) ? new Path(dst, src.getName()) : dst;
+        String from = key(src);
+        if (!super.rename(src, dst)) {
+            return false;
+        }
+        String into = key(to);
+        forget(into);
+        Map<String, Map<String, byte[]>> moved = new HashMap<>();
+        for (Iterator<Map.Entry<String, Map<String, byte[]>>> it = XATTRS.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Map<String, byte[]>> e = it.next();
+            if (below(e.getKey(), from)) {
+                moved.put(into + e.getKey().substring(from.length()), e.getValue());
+                it.remove();
+            }
+        }
+        XATTRS.putAll(moved);
+        return true;
+    }
+
+    @Override
+    public boolean delete(Path path, boolean recursive) throws IOException {
+        String key = key(path);
+        boolean deleted = super.delete(path, recursive);
+        if (deleted) {
+            forget(key);
+        }
+        return deleted;
+    }
+
+    private static void forget(String key) {
+        XATTRS.keySet().removeIf(k -> below(k, key));
+    }
+
+    private static boolean below(String path, String ancestor) {
+        return path.equals(ancestor) || path.startsWith(ancestor + File.separator);
+    }
+}